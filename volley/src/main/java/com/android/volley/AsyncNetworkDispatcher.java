@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.exception.VolleyError;
+import com.android.volley.network.AsyncNetwork;
+import com.android.volley.network.NetworkResponse;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A network dispatcher that hands requests to an {@link AsyncNetwork} without waiting for them, so
+ * that a single thread keeps any number of requests in flight and a slow one holds up no other.
+ *
+ * <p>Responses and errors are handed to a small pool of worker threads, which parse them, write
+ * them to the cache and post them back like a {@link NetworkDispatcher} does.
+ */
+public class AsyncNetworkDispatcher extends NetworkDispatcher
+{
+    private final AsyncNetwork mNetwork;
+
+    /**
+     * Threads parsing responses and writing them to the cache.
+     */
+    private final ExecutorService mWorkers;
+
+    /**
+     * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin
+     * processing.
+     *
+     * @param queue       Queue of incoming requests for triage
+     * @param network     Network interface to use for performing requests
+     * @param cache       Cache interface to use for writing responses to cache
+     * @param delivery    Delivery interface to use for posting responses
+     * @param workerCount Number of threads to parse responses on
+     */
+    public AsyncNetworkDispatcher(BlockingQueue<Request<?>> queue,
+                                  AsyncNetwork network,
+                                  Cache cache,
+                                  ResponseDelivery delivery,
+                                  int workerCount)
+    {
+        super(queue, network, cache, delivery);
+        mNetwork = network;
+        mWorkers = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately. Responses already being processed are still
+     * posted back; others are processed on the thread they arrive on.
+     */
+    @Override
+    public void quit()
+    {
+        super.quit();
+        mWorkers.shutdown();
+    }
+
+    @Override
+    void processRequest(final Request<?> request)
+    {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        request.sendEvent(RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_STARTED);
+        boolean started = false;
+        try
+        {
+            if (discardIfCanceled(request))
+            {
+                return;
+            }
+            mNetwork.performRequest(request, new AsyncNetwork.OnRequestComplete()
+            {
+                @Override
+                public void onSuccess(final NetworkResponse response)
+                {
+                    execute(request, startTimeMs, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            processResponse(request, response);
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(final VolleyError error)
+                {
+                    execute(request, startTimeMs, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            processError(request, error, startTimeMs);
+                        }
+                    });
+                }
+            });
+            started = true;
+        }
+        catch (Exception e)
+        {
+            processException(request, e, startTimeMs);
+        }
+        finally
+        {
+            // Otherwise the dispatch finishes once the worker is done with the outcome.
+            if (!started)
+            {
+                request.sendEvent(RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED);
+            }
+        }
+    }
+
+    /**
+     * Runs the processing of a request's outcome on a worker, finishing its dispatch afterwards.
+     */
+    private void execute(final Request<?> request,
+                         final long startTimeMs,
+                         final Runnable processing)
+    {
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    processing.run();
+                }
+                catch (Exception e)
+                {
+                    processException(request, e, startTimeMs);
+                }
+                finally
+                {
+                    request.sendEvent(RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED);
+                }
+            }
+        };
+        try
+        {
+            mWorkers.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The dispatcher has quit; still finish the request rather than dropping it.
+            task.run();
+        }
+    }
+
+    /**
+     * Creates worker threads with the priority of network dispatchers.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            return new Thread("Volley-NetworkWorker-" + mCount.incrementAndGet())
+            {
+                @Override
+                public void run()
+                {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }
+}
@@ -18,6 +18,11 @@ package com.android.volley;
 
 import com.android.volley.network.Header;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -44,7 +49,8 @@ public interface Cache
     void put(String key, Entry entry);
 
     /**
-     * Update cache metadata to the cache for 304.insteadof update all entry file.
+     * Updates the metadata of an existing entry after a 304 revalidation. Implementations should
+     * avoid rewriting the data where they can, and may fall back to {@link #put(String, Entry)}.
      *
      * @param key   Cache key
      * @param entry Data to store and metadata for cache coherency, TTL, etc.
@@ -83,10 +89,18 @@ public interface Cache
     class Entry
     {
         /**
-         * The data returned from cache.
+         * The data returned from cache. Null for entries from {@link LazyCache#getLazy(String)}
+         * whose data hasn't been read yet, which have a {@link #body} instead.
          */
         public byte[] data;
 
+        /**
+         * The data, not yet read into memory. Only set for entries returned by {@link
+         * LazyCache#getLazy(String)} or {@link LazyCache#getMetadata(String)}, and only if {@link
+         * #data} is null.
+         */
+        public Body body;
+
         /**
          * ETag for cache coherency.
          */
@@ -128,6 +142,37 @@ public interface Cache
          */
         public List<Header> allResponseHeaders;
 
+        /**
+         * Returns the data, reading it from {@link #body} first if that hasn't happened yet.
+         *
+         * @throws IOException if the body can't be read
+         */
+        public byte[] getData() throws IOException
+        {
+            if (data == null && body != null)
+            {
+                data = body.toByteArray();
+                body = null;
+            }
+            return data;
+        }
+
+        /**
+         * Returns the length of the data, whether or not it has been read yet.
+         */
+        long getDataLength()
+        {
+            return data != null ? data.length : body != null ? body.length() : 0;
+        }
+
+        /**
+         * Returns the data as a {@link Body}, wrapping {@link #data} if it has been read already.
+         */
+        public Body getBody()
+        {
+            return body != null || data == null ? body : Body.wrap(data);
+        }
+
         /**
          * True if the entry is expired.
          */
@@ -143,6 +188,208 @@ public interface Cache
         {
             return this.softTtl < System.currentTimeMillis();
         }
+
+        /**
+         * Returns a shallow copy of this entry. The data array and header collections are shared,
+         * which is safe as long as they aren't mutated.
+         */
+        Entry copy()
+        {
+            Entry copy = new Entry();
+            copy.data = data;
+            copy.body = body;
+            copy.etag = etag;
+            copy.serverDate = serverDate;
+            copy.lastModified = lastModified;
+            copy.ttl = ttl;
+            copy.softTtl = softTtl;
+            copy.responseHeaders = responseHeaders;
+            copy.allResponseHeaders = allResponseHeaders;
+            return copy;
+        }
+    }
+
+    /**
+     * The data of a cache entry, which may still be on disk. Can be read more than once, and from
+     * any thread.
+     */
+    abstract class Body
+    {
+        /**
+         * Returns the length of the data in bytes.
+         */
+        public abstract long length();
+
+        /**
+         * Opens a new stream over the data, starting at its beginning. The caller must close it.
+         */
+        public abstract InputStream openStream() throws IOException;
+
+        /**
+         * Returns the data as a read-only buffer. Bodies that are already backed by a buffer return
+         * a view of it; others read the data into memory.
+         */
+        public ByteBuffer toByteBuffer() throws IOException
+        {
+            return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+        }
+
+        /**
+         * Reads the data into an array of exactly its length.
+         */
+        @SuppressWarnings("TryFinallyCanBeTryWithResources")
+        public byte[] toByteArray() throws IOException
+        {
+            long length = length();
+            if (length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Body too large: " + length);
+            }
+            byte[] data = new byte[(int) length];
+            InputStream in = openStream();
+            try
+            {
+                int count = 0;
+                while (count < data.length)
+                {
+                    int read = in.read(data, count, data.length - count);
+                    if (read == -1)
+                    {
+                        throw new EOFException();
+                    }
+                    count += read;
+                }
+            }
+            finally
+            {
+                //noinspection ThrowFromFinallyBlock
+                in.close();
+            }
+            return data;
+        }
+
+        /**
+         * Returns a body over the given array, which must not be modified afterwards.
+         */
+        public static Body wrap(final byte[] data)
+        {
+            return new Body()
+            {
+                @Override
+                public long length()
+                {
+                    return data.length;
+                }
+
+                @Override
+                public InputStream openStream()
+                {
+                    return new ByteArrayInputStream(data);
+                }
+
+                @Override
+                public byte[] toByteArray()
+                {
+                    return data;
+                }
+            };
+        }
+
+        /**
+         * Returns a body over the remaining bytes of the given buffer, such as a memory-mapped
+         * file. The buffer's position and limit are left alone.
+         */
+        public static Body wrap(ByteBuffer buffer)
+        {
+            final ByteBuffer data = buffer.slice();
+            return new Body()
+            {
+                @Override
+                public long length()
+                {
+                    return data.remaining();
+                }
+
+                @Override
+                public InputStream openStream()
+                {
+                    return new ByteBufferInputStream(data.duplicate());
+                }
+
+                @Override
+                public ByteBuffer toByteBuffer()
+                {
+                    return data.asReadOnlyBuffer();
+                }
+
+                @Override
+                public byte[] toByteArray()
+                {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.duplicate().get(bytes);
+                    return bytes;
+                }
+            };
+        }
+
+        private static class ByteBufferInputStream extends InputStream
+        {
+            private final ByteBuffer mBuffer;
+
+            ByteBufferInputStream(ByteBuffer buffer)
+            {
+                mBuffer = buffer;
+            }
+
+            @Override
+            public int read()
+            {
+                return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                if (len == 0)
+                {
+                    return 0;
+                }
+                if (!mBuffer.hasRemaining())
+                {
+                    return -1;
+                }
+                int count = Math.min(len, mBuffer.remaining());
+                mBuffer.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public long skip(long n)
+            {
+                int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+                mBuffer.position(mBuffer.position() + count);
+                return count;
+            }
+
+            @Override
+            public int available()
+            {
+                return mBuffer.remaining();
+            }
+        }
+    }
+
+    /**
+     * Thrown when the data of an entry returned by {@link LazyCache#getMetadata(String)} is read
+     * after the entry was replaced or removed. The entry isn't corrupt; looking it up again returns
+     * the current one.
+     */
+    class EntryReplacedException extends IOException
+    {
+        public EntryReplacedException(String message)
+        {
+            super(message);
+        }
     }
 
     /**
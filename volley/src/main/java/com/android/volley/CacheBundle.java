@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.DiskCache.CacheHeader;
+import com.android.volley.DiskCache.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes cache bundles, snapshots of a {@link DiskCache} that can be shipped with an
+ * app so the first requests after install are served from the cache.
+ *
+ * <p>A bundle is a magic number followed by one record per entry and an empty record marking the
+ * end. Each record is the entry as {@link DiskCache} stores it, header and possibly compressed
+ * data, preceded by its length. As the header holds the key, entries are imported in a single
+ * pass without buffering more than one header at a time.
+ */
+class CacheBundle
+{
+    /**
+     * Magic number for the current version of the bundle format.
+     */
+    private static final int BUNDLE_MAGIC = 0x20191024;
+
+    /**
+     * Length of the record that ends a bundle.
+     */
+    private static final long END_OF_BUNDLE = 0;
+
+    private CacheBundle()
+    {
+    }
+
+    /**
+     * Imports every record of a bundle into the cache.
+     *
+     * @return the number of entries imported
+     * @throws IOException if the bundle is corrupt or ends before its last record
+     */
+    static int read(InputStream in, DiskCache cache) throws IOException
+    {
+        // Not closed, which would close the caller's stream.
+        InputStream buffered = new BufferedInputStream(in);
+        if (DiskCache.readInt(buffered) != BUNDLE_MAGIC)
+        {
+            throw new IOException("bad bundle magic");
+        }
+        int imported = 0;
+        while (true)
+        {
+            long length = DiskCache.readLong(buffered);
+            if (length == END_OF_BUNDLE)
+            {
+                return imported;
+            }
+            if (length < 0)
+            {
+                throw new IOException("bad bundle record length " + length);
+            }
+            CountingInputStream record = new CountingInputStream(buffered, length);
+            CacheHeader header = CacheHeader.readHeader(record);
+            long storedLength = record.bytesRemaining();
+            if (storedLength < 0)
+            {
+                throw new IOException("bundle record too short for its header: " + length);
+            }
+            if (cache.importEntry(header, record, storedLength))
+            {
+                imported++;
+            }
+            else
+            {
+                skipFully(record, storedLength);
+            }
+        }
+    }
+
+    /**
+     * Writes every entry of the cache to a bundle.
+     *
+     * @return the number of entries exported
+     */
+    static int write(OutputStream out, DiskCache cache) throws IOException
+    {
+        // Not closed, which would close the caller's stream.
+        OutputStream buffered = new BufferedOutputStream(out);
+        DiskCache.writeInt(buffered, BUNDLE_MAGIC);
+        int exported = 0;
+        for (String key : cache.getKeys())
+        {
+            // Entries removed since the keys were listed are left out.
+            if (cache.exportEntry(key, buffered))
+            {
+                exported++;
+            }
+        }
+        DiskCache.writeLong(buffered, END_OF_BUNDLE);
+        buffered.flush();
+        return exported;
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException
+    {
+        while (length > 0)
+        {
+            long skipped = in.skip(length);
+            if (skipped <= 0)
+            {
+                if (in.read() == -1)
+                {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
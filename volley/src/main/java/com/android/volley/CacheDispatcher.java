@@ -19,8 +19,7 @@ package com.android.volley;
 import android.os.Process;
 import android.support.annotation.VisibleForTesting;
 
-import com.android.volley.network.NetworkResponse;
-
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +69,11 @@ public class CacheDispatcher extends Thread
      */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /**
+     * Counts how requests were answered.
+     */
+    private final CacheStats.Counter mStats;
+
     /**
      * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
      * begin processing.
@@ -84,11 +88,32 @@ public class CacheDispatcher extends Thread
             BlockingQueue<Request<?>> networkQueue,
             Cache cache,
             ResponseDelivery delivery)
+    {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheStats.Counter());
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param cacheQueue   Queue of incoming requests for triage
+     * @param networkQueue Queue to post requests that require network to
+     * @param cache        Cache interface to use for resolution
+     * @param delivery     Delivery interface to use for posting responses
+     * @param stats        Counter to record hits, soft hits, expired entries and misses in
+     */
+    public CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue,
+            BlockingQueue<Request<?>> networkQueue,
+            Cache cache,
+            ResponseDelivery delivery,
+            CacheStats.Counter stats)
     {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mStats = stats;
         mWaitingRequestManager = new WaitingRequestManager(this);
     }
 
@@ -161,11 +186,15 @@ public class CacheDispatcher extends Thread
                 return;
             }
 
-            // Attempt to retrieve this item from cache.
-            Cache.Entry entry = mCache.get(request.getCacheKey());
+            // Attempt to retrieve this item from cache. Expired entries only need their validators,
+            // so their data is left on disk unless the server answers with a 304.
+            Cache.Entry entry = mCache instanceof LazyCache
+                    ? ((LazyCache) mCache).getMetadata(request.getCacheKey())
+                    : mCache.get(request.getCacheKey());
             if (entry == null)
             {
                 request.addMarker("cache-miss");
+                mStats.recordMiss(request.getCacheKey());
                 // Cache miss; send off to the network dispatcher.
                 if (!mWaitingRequestManager.maybeAddToWaitingRequests(request))
                 {
@@ -178,6 +207,7 @@ public class CacheDispatcher extends Thread
             if (entry.isExpired())
             {
                 request.addMarker("cache-hit-expired");
+                mStats.recordExpired(request.getCacheKey());
                 request.setCacheEntry(entry);
                 if (!mWaitingRequestManager.maybeAddToWaitingRequests(request))
                 {
@@ -188,12 +218,37 @@ public class CacheDispatcher extends Thread
 
             // We have a cache hit; parse its data for delivery back to the request.
             request.addMarker("cache-hit");
-            Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
+            Response<?> response;
+            try
+            {
+                response = request.parseCacheEntry(entry);
+            }
+            catch (Cache.EntryReplacedException e)
+            {
+                // A newer response was stored since the lookup; look it up again.
+                request.addMarker("cache-hit-replaced");
+                mCacheQueue.put(request);
+                return;
+            }
+            catch (IOException e)
+            {
+                // The entry turned out to be unreadable; drop it and treat this as a miss.
+                VolleyLog.d("Unreadable cache entry for %s: %s", request.getCacheKey(), e);
+                request.addMarker("cache-hit-unreadable");
+                mStats.recordMiss(request.getCacheKey());
+                mCache.remove(request.getCacheKey());
+                if (!mWaitingRequestManager.maybeAddToWaitingRequests(request))
+                {
+                    mNetworkQueue.put(request);
+                }
+                return;
+            }
             request.addMarker("cache-hit-parsed");
 
             if (!entry.refreshNeeded())
             {
                 // Completely unexpired cache hit. Just deliver the response.
+                mStats.recordHit(request.getCacheKey());
                 mDelivery.postResponse(request, response);
             }
             else
@@ -202,6 +257,7 @@ public class CacheDispatcher extends Thread
                 // but we need to also send the request to the network for
                 // refreshing.
                 request.addMarker("cache-hit-refresh-needed");
+                mStats.recordSoftHit(request.getCacheKey());
                 request.setCacheEntry(entry);
                 // Mark the response as intermediate.
                 response.intermediate = true;
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.DiskCache.CountingInputStream;
+import com.android.volley.DiskCache.IndexEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the {@link DiskCache} index.
+ *
+ * <p>Every put and remove appends one small record holding the entry metadata, so the index can
+ * be rebuilt on startup by replaying this single file instead of opening and parsing every cache
+ * file. The journal is rewritten from the live index once enough redundant records pile up.
+ *
+ * <p>In multi-process mode several processes append to the same journal, and each reads what
+ * the others appended with {@link #readTail()} to keep its index current.
+ *
+ * <p>This class is not thread safe; {@link DiskCache} synchronizes on the instance around every
+ * call except {@link #read(InputStream)}, which may run while records are being appended.
+ */
+class CacheJournal
+{
+    /**
+     * Name of the journal file inside the cache directory.
+     */
+    static final String JOURNAL_FILE = "journal";
+
+    /**
+     * Name of the temporary file used while the journal is being rewritten.
+     */
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+
+    /**
+     * Magic number for current version of journal file format. Changed along with the naming of
+     * cache files, so an older journal is discarded and the directory rescanned, which renames
+     * the files, and again when records were cut down to what the index keeps.
+     */
+    private static final int JOURNAL_MAGIC = 0x20191023;
+
+    private static final int OP_PUT = 1;
+
+    private static final int OP_REMOVE = 2;
+
+    /**
+     * Number of redundant records tolerated before the journal is compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File mJournalFile;
+
+    private final File mJournalFileTmp;
+
+    /**
+     * Unbuffered append stream; each record is handed over in a single write.
+     */
+    private OutputStream mWriter;
+
+    /**
+     * Number of records in the journal that no longer describe a live entry.
+     */
+    private int mRedundantOps;
+
+    /**
+     * Set when the replayed journal ended in a partial record that must not be appended to.
+     */
+    private boolean mCompactRequired;
+
+    /**
+     * Offset just past the last record that has been read or appended. Records from there on were
+     * appended by another process, see {@link #readTail()}.
+     */
+    private long mTailOffset;
+
+    CacheJournal(File rootDirectory)
+    {
+        mJournalFile = new File(rootDirectory, JOURNAL_FILE);
+        mJournalFileTmp = new File(rootDirectory, JOURNAL_FILE_TEMP);
+    }
+
+    /**
+     * Returns true if the given file belongs to the journal rather than to a cache entry.
+     */
+    static boolean isJournalFile(File file)
+    {
+        String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TEMP.equals(name)
+                || ProcessLock.LOCK_FILE.equals(name);
+    }
+
+    File getFile()
+    {
+        return mJournalFile;
+    }
+
+    /**
+     * Replays the journal into an ordered key to index entry map. A record cut short by a crash at
+     * the end of the file is dropped; anything else that can't be parsed fails the whole replay.
+     * Records appended after the replay started are not part of the result.
+     *
+     * @param in stream over {@link #getFile()}
+     * @return the replayed entries in journal order
+     * @throws IOException if the journal is corrupt
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    Map<String, IndexEntry> read(InputStream in) throws IOException
+    {
+        Map<String, IndexEntry> entries = new LinkedHashMap<>();
+        CountingInputStream cis = new CountingInputStream(
+                new BufferedInputStream(in), mJournalFile.length());
+        int records = 0;
+        boolean truncated = false;
+        long end;
+        try
+        {
+            if (DiskCache.readInt(cis) != JOURNAL_MAGIC)
+            {
+                throw new IOException("bad journal magic");
+            }
+            end = cis.bytesRead();
+            while (cis.bytesRemaining() > 0)
+            {
+                try
+                {
+                    readRecord(cis, entries);
+                    records++;
+                    end = cis.bytesRead();
+                }
+                catch (EOFException e)
+                {
+                    VolleyLog.d("Dropping truncated journal record");
+                    truncated = true;
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            cis.close();
+        }
+        synchronized (this)
+        {
+            // Appends made during the replay have been counted already.
+            mRedundantOps += records - entries.size();
+            mCompactRequired |= truncated;
+            mTailOffset = end;
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the records appended to the journal by other processes since it was last read or
+     * appended to. A record that is still being written is left for the next call.
+     *
+     * @return the keys that changed in the order of their last change, mapped to their entry or to
+     * null if they were removed
+     * @throws IOException if the journal is corrupt
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    Map<String, IndexEntry> readTail() throws IOException
+    {
+        Map<String, IndexEntry> changes = new LinkedHashMap<>();
+        long length = mJournalFile.length();
+        if (length <= mTailOffset)
+        {
+            return changes;
+        }
+        InputStream in = new FileInputStream(mJournalFile);
+        CountingInputStream cis =
+                new CountingInputStream(new BufferedInputStream(in), length - mTailOffset);
+        int records = 0;
+        try
+        {
+            long skip = mTailOffset;
+            while (skip > 0)
+            {
+                long skipped = in.skip(skip);
+                if (skipped <= 0)
+                {
+                    throw new EOFException();
+                }
+                skip -= skipped;
+            }
+            if (mTailOffset == 0)
+            {
+                // Started by another process since this one last looked.
+                if (DiskCache.readInt(cis) != JOURNAL_MAGIC)
+                {
+                    throw new IOException("bad journal magic");
+                }
+                mTailOffset = cis.bytesRead();
+            }
+            while (cis.bytesRemaining() > 0)
+            {
+                try
+                {
+                    readChange(cis, changes);
+                    records++;
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                mTailOffset = length - cis.bytesRemaining();
+            }
+        }
+        finally
+        {
+            cis.close();
+        }
+        mRedundantOps += records - changes.size();
+        return changes;
+    }
+
+    /**
+     * Replays the journal from the start after another process replaced or deleted it.
+     *
+     * @return the replayed entries, none if there is no journal any more
+     * @throws IOException if the journal is corrupt
+     */
+    Map<String, IndexEntry> reload() throws IOException
+    {
+        close();
+        mRedundantOps = 0;
+        mCompactRequired = false;
+        mTailOffset = 0;
+        if (!mJournalFile.exists())
+        {
+            return new LinkedHashMap<>();
+        }
+        return read(new FileInputStream(mJournalFile));
+    }
+
+    /**
+     * Returns true if the journal has grown past what has been read or appended.
+     */
+    boolean hasTail()
+    {
+        return mJournalFile.length() > mTailOffset;
+    }
+
+    private static void readRecord(CountingInputStream cis, Map<String, IndexEntry> entries)
+            throws IOException
+    {
+        String removed = readChange(cis, entries);
+        if (removed != null)
+        {
+            entries.remove(removed);
+        }
+    }
+
+    /**
+     * Reads a record into the given map, mapping a removed key to null.
+     *
+     * @return the key if the record is a remove, null otherwise
+     */
+    private static String readChange(CountingInputStream cis, Map<String, IndexEntry> changes)
+            throws IOException
+    {
+        int op = cis.read();
+        switch (op)
+        {
+            case OP_PUT:
+                String key = DiskCache.readString(cis);
+                // The file name of an entry is derived from its key; only where a packed entry
+                // lives in its segment has to be recorded.
+                long packLocation = PackStore.parseLocation(DiskCache.readString(cis));
+                long size = DiskCache.readLong(cis);
+                long ttl = DiskCache.readLong(cis);
+                long softTtl = DiskCache.readLong(cis);
+                // Re-insert so the map reflects the order of the last write.
+                changes.remove(key);
+                changes.put(key, new IndexEntry(key, size, ttl, softTtl, packLocation));
+                return null;
+            case OP_REMOVE:
+                String removed = DiskCache.readString(cis);
+                changes.remove(removed);
+                changes.put(removed, null);
+                return removed;
+            case -1:
+                throw new EOFException();
+            default:
+                throw new IOException("bad journal op " + op);
+        }
+    }
+
+    /**
+     * Records that the given entry has been written to disk.
+     *
+     * @param location where the entry is stored, see {@link DiskCache#getLocation(IndexEntry)}
+     */
+    void appendPut(IndexEntry entry, String location, boolean replaced) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        writePut(record, entry, location);
+        append(record);
+        if (replaced)
+        {
+            mRedundantOps++;
+        }
+    }
+
+    /**
+     * Records that the entry identified by key has been removed from disk.
+     */
+    void appendRemove(String key) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        record.write(OP_REMOVE);
+        DiskCache.writeString(record, key);
+        append(record);
+        // Both the remove and the put it cancels are now dead weight.
+        mRedundantOps += 2;
+    }
+
+    /**
+     * Returns true once the journal holds enough redundant records to be worth compacting.
+     */
+    boolean needsCompaction(int liveEntries)
+    {
+        return mCompactRequired
+                || (mRedundantOps >= COMPACT_THRESHOLD && mRedundantOps >= liveEntries);
+    }
+
+    /**
+     * Atomically replaces the journal with one holding exactly the given entries.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    void rewrite(Collection<IndexEntry> entries, DiskCache cache) throws IOException
+    {
+        close();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        OutputStream out = new FileOutputStream(mJournalFileTmp);
+        mTailOffset = 0;
+        try
+        {
+            DiskCache.writeInt(record, JOURNAL_MAGIC);
+            for (IndexEntry entry : entries)
+            {
+                writePut(record, entry, cache.getLocation(entry));
+                if (record.size() >= 8 * 1024)
+                {
+                    mTailOffset += record.size();
+                    record.writeTo(out);
+                    record.reset();
+                }
+            }
+            mTailOffset += record.size();
+            record.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!mJournalFileTmp.renameTo(mJournalFile))
+        {
+            throw new IOException("Unable to replace journal " + mJournalFile.getAbsolutePath());
+        }
+        mRedundantOps = 0;
+        mCompactRequired = false;
+    }
+
+    /**
+     * Deletes the journal, e.g. when it is found to be corrupt.
+     */
+    void delete()
+    {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        mJournalFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mJournalFileTmp.delete();
+        mRedundantOps = 0;
+        mCompactRequired = false;
+        mTailOffset = 0;
+    }
+
+    void close()
+    {
+        if (mWriter != null)
+        {
+            try
+            {
+                mWriter.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+            mWriter = null;
+        }
+    }
+
+    private void append(ByteArrayOutputStream record) throws IOException
+    {
+        if (mWriter == null)
+        {
+            boolean created = mJournalFile.length() == 0;
+            mWriter = new FileOutputStream(mJournalFile, true);
+            if (created)
+            {
+                ByteArrayOutputStream magic = new ByteArrayOutputStream(4);
+                DiskCache.writeInt(magic, JOURNAL_MAGIC);
+                magic.writeTo(mWriter);
+                mTailOffset = magic.size();
+            }
+        }
+        record.writeTo(mWriter);
+        mTailOffset += record.size();
+    }
+
+    private static void writePut(OutputStream os, IndexEntry entry, String location)
+            throws IOException
+    {
+        os.write(OP_PUT);
+        DiskCache.writeString(os, entry.key);
+        DiskCache.writeString(os, location);
+        DiskCache.writeLong(os, entry.size);
+        DiskCache.writeLong(os, entry.ttl);
+        DiskCache.writeLong(os, entry.softTtl);
+    }
+}
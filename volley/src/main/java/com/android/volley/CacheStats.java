@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A snapshot of how a cache has been doing, as counted by a {@link Counter}.
+ *
+ * <p>{@link StatsCache} implementations count their own lookups, evictions, bytes and prunes, see
+ * {@link StatsCache#getStats()}. The {@link RequestQueue} counts, per request, whether the cache
+ * could answer it and how fresh the answer was, see {@link RequestQueue#getCacheStats()}.
+ */
+public final class CacheStats
+{
+    /**
+     * Stats with every count at zero.
+     */
+    public static final CacheStats EMPTY = new CacheStats(new long[Counter.FIELDS]);
+
+    /**
+     * Lookups answered with an entry, including those counted in {@link #softHitCount}.
+     */
+    public final long hitCount;
+
+    /**
+     * Hits served while being refreshed from the network, as their soft TTL had passed.
+     */
+    public final long softHitCount;
+
+    /**
+     * Lookups that found an entry too old to be used at all.
+     */
+    public final long expiredCount;
+
+    /**
+     * Lookups that found nothing.
+     */
+    public final long missCount;
+
+    /**
+     * Entries evicted to keep the cache within its size.
+     */
+    public final long evictionCount;
+
+    /**
+     * Bytes of data handed out by lookups.
+     */
+    public final long bytesRead;
+
+    /**
+     * Bytes written to storage, including headers.
+     */
+    public final long bytesWritten;
+
+    /**
+     * Number of times the cache was pruned.
+     */
+    public final long pruneCount;
+
+    /**
+     * Total time spent pruning, in milliseconds.
+     */
+    public final long pruneTimeMs;
+
+    private CacheStats(long[] counts)
+    {
+        hitCount = counts[Counter.HITS];
+        softHitCount = counts[Counter.SOFT_HITS];
+        expiredCount = counts[Counter.EXPIRED];
+        missCount = counts[Counter.MISSES];
+        evictionCount = counts[Counter.EVICTIONS];
+        bytesRead = counts[Counter.BYTES_READ];
+        bytesWritten = counts[Counter.BYTES_WRITTEN];
+        pruneCount = counts[Counter.PRUNES];
+        pruneTimeMs = counts[Counter.PRUNE_TIME];
+    }
+
+    /**
+     * Returns the total number of lookups.
+     */
+    public long lookupCount()
+    {
+        return hitCount + expiredCount + missCount;
+    }
+
+    /**
+     * Returns the share of lookups that were hits, or 1 if there were none.
+     */
+    public double hitRate()
+    {
+        long lookups = lookupCount();
+        return lookups == 0 ? 1.0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * Returns the sum of these stats and the given ones, such as those of two cache tiers.
+     */
+    public CacheStats plus(CacheStats other)
+    {
+        long[] counts = toArray();
+        long[] others = other.toArray();
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += others[i];
+        }
+        return new CacheStats(counts);
+    }
+
+    /**
+     * Returns the difference between these stats and an earlier snapshot, to see what happened
+     * in between.
+     */
+    public CacheStats minus(CacheStats earlier)
+    {
+        long[] counts = toArray();
+        long[] others = earlier.toArray();
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = Math.max(0, counts[i] - others[i]);
+        }
+        return new CacheStats(counts);
+    }
+
+    private long[] toArray()
+    {
+        long[] counts = new long[Counter.FIELDS];
+        counts[Counter.HITS] = hitCount;
+        counts[Counter.SOFT_HITS] = softHitCount;
+        counts[Counter.EXPIRED] = expiredCount;
+        counts[Counter.MISSES] = missCount;
+        counts[Counter.EVICTIONS] = evictionCount;
+        counts[Counter.BYTES_READ] = bytesRead;
+        counts[Counter.BYTES_WRITTEN] = bytesWritten;
+        counts[Counter.PRUNES] = pruneCount;
+        counts[Counter.PRUNE_TIME] = pruneTimeMs;
+        return counts;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "{"
+                + "hits=" + hitCount
+                + ",softHits=" + softHitCount
+                + ",expired=" + expiredCount
+                + ",misses=" + missCount
+                + ",evictions=" + evictionCount
+                + ",bytesRead=" + bytesRead
+                + ",bytesWritten=" + bytesWritten
+                + ",prunes=" + pruneCount
+                + ",pruneTimeMs=" + pruneTimeMs
+                + "}";
+    }
+
+    /**
+     * Thread safe counters that {@link CacheStats} are taken from.
+     *
+     * <p>Counts are spread over a few stripes, each on cache lines of its own, and a thread only
+     * ever updates the stripe picked by its id. Recording is therefore an uncontended atomic add
+     * in the common case, cheap enough to leave on in production. Snapshots add up the stripes, so
+     * they may miss updates that race with them but are never torn within a single count.
+     *
+     * <p>Counts can also be broken down by key prefix, such as the host or path of the URLs that
+     * are used as cache keys. Each key is counted under the longest tracked prefix it starts with,
+     * in addition to the overall counts.
+     */
+    public static final class Counter
+    {
+        static final int HITS = 0;
+
+        static final int SOFT_HITS = 1;
+
+        static final int EXPIRED = 2;
+
+        static final int MISSES = 3;
+
+        static final int EVICTIONS = 4;
+
+        static final int BYTES_READ = 5;
+
+        static final int BYTES_WRITTEN = 6;
+
+        static final int PRUNES = 7;
+
+        static final int PRUNE_TIME = 8;
+
+        static final int FIELDS = 9;
+
+        /**
+         * Number of stripes; a power of two.
+         */
+        private static final int STRIPES = 8;
+
+        /**
+         * Longs per stripe: the counts padded to two 64 byte cache lines, so stripes don't share
+         * a line.
+         */
+        private static final int STRIPE_SIZE = 16;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+        /**
+         * Counters of the tracked prefixes. Copied on write, as prefixes are rarely added but
+         * read on every count.
+         */
+        private volatile Map<String, Counter> mPrefixes;
+
+        /**
+         * Starts counting keys with the given prefix separately as well. Keys counted before are
+         * not included.
+         */
+        public synchronized void trackPrefix(String prefix)
+        {
+            Map<String, Counter> prefixes = mPrefixes != null
+                    ? new LinkedHashMap<>(mPrefixes) : new LinkedHashMap<String, Counter>();
+            if (!prefixes.containsKey(prefix))
+            {
+                prefixes.put(prefix, new Counter());
+                mPrefixes = prefixes;
+            }
+        }
+
+        /**
+         * Records a lookup answered with an entry.
+         */
+        public void recordHit(String key)
+        {
+            add(key, HITS, 1);
+        }
+
+        /**
+         * Records a hit on an entry that needs to be refreshed. Counts as a hit as well.
+         */
+        public void recordSoftHit(String key)
+        {
+            add(key, HITS, 1);
+            add(key, SOFT_HITS, 1);
+        }
+
+        /**
+         * Records a lookup that found an entry too old to be used.
+         */
+        public void recordExpired(String key)
+        {
+            add(key, EXPIRED, 1);
+        }
+
+        /**
+         * Records a lookup that found nothing.
+         */
+        public void recordMiss(String key)
+        {
+            add(key, MISSES, 1);
+        }
+
+        /**
+         * Records the eviction of an entry.
+         */
+        public void recordEviction(String key)
+        {
+            add(key, EVICTIONS, 1);
+        }
+
+        /**
+         * Records data handed out by a lookup.
+         */
+        public void recordRead(String key, long bytes)
+        {
+            add(key, BYTES_READ, bytes);
+        }
+
+        /**
+         * Records data written to storage.
+         */
+        public void recordWrite(String key, long bytes)
+        {
+            add(key, BYTES_WRITTEN, bytes);
+        }
+
+        /**
+         * Records a prune of the whole cache. Not broken down by prefix.
+         */
+        public void recordPrune(long durationMs)
+        {
+            add(PRUNES, 1);
+            add(PRUNE_TIME, durationMs);
+        }
+
+        /**
+         * Returns the overall counts so far.
+         */
+        public CacheStats snapshot()
+        {
+            long[] counts = new long[FIELDS];
+            for (int stripe = 0; stripe < STRIPES; stripe++)
+            {
+                for (int field = 0; field < FIELDS; field++)
+                {
+                    counts[field] += mCounts.get(stripe * STRIPE_SIZE + field);
+                }
+            }
+            return new CacheStats(counts);
+        }
+
+        /**
+         * Returns the counts of keys with the given prefix, or null if it isn't tracked.
+         */
+        public CacheStats snapshot(String prefix)
+        {
+            Map<String, Counter> prefixes = mPrefixes;
+            Counter counter = prefixes != null ? prefixes.get(prefix) : null;
+            return counter != null ? counter.snapshot() : null;
+        }
+
+        private void add(String key, int field, long delta)
+        {
+            add(field, delta);
+            Map<String, Counter> prefixes = mPrefixes;
+            if (prefixes == null || key == null)
+            {
+                return;
+            }
+            String longest = null;
+            for (String prefix : prefixes.keySet())
+            {
+                if (key.startsWith(prefix) && (longest == null || prefix.length() > longest.length()))
+                {
+                    longest = prefix;
+                }
+            }
+            if (longest != null)
+            {
+                prefixes.get(longest).add(field, delta);
+            }
+        }
+
+        private void add(int field, long delta)
+        {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            mCounts.addAndGet(stripe * STRIPE_SIZE + field, delta);
+        }
+    }
+}
@@ -16,18 +16,22 @@
 
 package com.android.volley;
 
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
 
+import com.android.volley.network.ByteArrayPool;
 import com.android.volley.network.Header;
 import com.android.volley.network.Headers;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -35,31 +39,94 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified directory.
  * The default disk usage size is 5MB, but is configurable.
  *
+ * <p>The index of cached entries is persisted in a {@link CacheJournal} next to the cache files,
+ * so startup only has to replay that journal. The directory is scanned file by file only when the
+ * journal is missing or corrupt. With {@link #setLazyInitialization(boolean)} the index is loaded on
+ * a background thread instead, and entries are served straight from their files until it is ready.
+ *
+ * <p>The cache is safe for concurrent use without a global lock: the index is a concurrent map, and
+ * file I/O is guarded by a set of striped read/write locks, so lookups of other entries proceed
+ * while a large entry is being written.
+ *
+ * <p>Files are named after the MD5 hash of their key, so distinct keys never share a file in
+ * practice. Reads trust the index for which key a file belongs to and don't decode the key stored
+ * in it; that copy is only used to rebuild the index when the directory has to be scanned.
+ *
+ * <p>With {@link #setPackThreshold(int)}, small entries are appended to shared segment files
+ * instead, see {@link PackStore}. Segments are compacted on a background thread once most of their
+ * records have been replaced or removed.
+ *
+ * <p>With {@link #setMultiProcess(boolean)}, processes sharing the directory coordinate through
+ * file locks, see {@link ProcessLock}, and follow each other's changes through the journal.
+ *
  * <p>This cache supports the {@link Entry#allResponseHeaders} headers field.
  */
-public class DiskCache implements Cache
+public class DiskCache implements LazyCache, StatsCache
 {
     /**
-     * Map of the Key, CacheHeader pairs
+     * Map of the Key, IndexEntry pairs
      */
-    private final Map<String, CacheHeader> mEntries = new LinkedHashMap<>(16, .75f, true);
+    private final ConcurrentMap<String, IndexEntry> mEntries = new ConcurrentHashMap<>(16, .75f, 4);
 
     /**
      * Total amount of space currently used by the cache in bytes.
      */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /**
+     * Source of {@link IndexEntry#lastAccess} stamps, telling eviction policies how recently
+     * entries were used.
+     */
+    private final AtomicLong mAccessClock = new AtomicLong();
+
+    /**
+     * Locks guarding the cache files. A file is always guarded by the same lock, so reads of
+     * different files proceed in parallel and only writes to the same file exclude each other.
+     */
+    private final StripeLock[] mLocks;
+
+    /**
+     * Held while pruning so only one thread evicts at a time.
+     */
+    private final Lock mPruneLock = new ReentrantLock();
 
     /**
      * The root directory to use for the cache.
@@ -71,11 +138,154 @@ public class DiskCache implements Cache
      */
     private final int mMaxCacheSizeInBytes;
 
+    /**
+     * Journal of the index, replayed on {@link #initialize()}. Guarded by its own monitor.
+     */
+    private final CacheJournal mJournal;
+
+    /**
+     * Scratch buffers for compressed data on its way to and from disk.
+     */
+    private final ByteArrayPool mPool = new ByteArrayPool(POOL_SIZE_BYTES);
+
+    /**
+     * Minimum size for the data of an entry with a compressible content type to be compressed.
+     */
+    private volatile int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Segment files holding the entries small enough to be packed.
+     */
+    private final PackStore mPacks;
+
+    /**
+     * Largest size of an entry, header included, to be packed rather than get a file of its own.
+     */
+    private volatile int mPackThreshold;
+
+    /**
+     * Held while compacting segments so only one thread compacts at a time.
+     */
+    private final Lock mCompactionLock = new ReentrantLock();
+
+    /**
+     * Set while a background compaction is running or about to.
+     */
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+
+    /**
+     * How often the expiry sweeper runs, or 0 if it is off.
+     */
+    private volatile long mSweepIntervalMs;
+
+    /**
+     * How long past their hard TTL entries are kept before the sweeper removes them.
+     */
+    private volatile long mSweepGracePeriodMs;
+
+    /**
+     * The running expiry sweeper, or null. Guarded by this.
+     */
+    private Thread mSweeper;
+
+    /**
+     * Keys of evicted entries whose files are yet to be deleted by the cleaner.
+     */
+    private final Queue<String> mPendingDeletes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Set when a cleared directory has been moved aside and is waiting to be deleted.
+     */
+    private volatile boolean mTrashPending;
+
+    /**
+     * Set while a background cleanup is running or about to.
+     */
+    private final AtomicBoolean mCleanupScheduled = new AtomicBoolean();
+
+    /**
+     * Held while deleting evicted and cleared files so only one thread does at a time.
+     */
+    private final Lock mCleanupLock = new ReentrantLock();
+
+    /**
+     * Picks the entries to evict when pruning.
+     */
+    private volatile EvictionPolicy mEvictionPolicy = new EvictionPolicy.LruPolicy();
+
+    /**
+     * Lookups, evictions, bytes and prunes so far.
+     */
+    private final CacheStats.Counter mStats = new CacheStats.Counter();
+
+    /**
+     * Whether {@link #initialize()} loads the index on a background thread.
+     */
+    private volatile boolean mLazyInitialization;
+
+    /**
+     * False until the index has been loaded. Until then, a key missing from the index may still
+     * have a file on disk.
+     */
+    private volatile boolean mLoaded;
+
+    /**
+     * Counted down once the index has been loaded.
+     */
+    private final CountDownLatch mLoadLatch = new CountDownLatch(1);
+
+    /**
+     * Keys removed while the index was loading, so the loader doesn't bring them back.
+     */
+    private final Set<String> mRemovedWhileLoading =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Bumped by {@link #clear()} with every file lock held, so a load that started before doesn't
+     * index files that are gone.
+     */
+    private volatile int mClearCount;
+
+    /**
+     * Locks shared with other processes using the same directory, or null unless in multi-process
+     * mode.
+     */
+    private volatile ProcessLock mProcessLock;
+
+    /**
+     * Generation of the journal the index was last synced with in multi-process mode. Guarded by
+     * {@link #mJournal}.
+     */
+    private long mJournalGeneration;
+
+    /**
+     * Changes journaled by other processes to keys whose lock was busy when they were read, by
+     * key. Applied by the next sync, which every writer of those keys does once it holds their
+     * lock. Guarded by {@link #mJournal}.
+     */
+    private final Map<String, IndexEntry> mDeferredJournalChanges = new LinkedHashMap<>();
+
     /**
      * Default maximum disk usage in bytes.
      */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
+    /**
+     * Number of locks the cache files are spread over.
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * Region of the lock file guarding the journal, after those of the file locks.
+     */
+    private static final int JOURNAL_REGION = LOCK_STRIPES;
+
+    /**
+     * Suffix of the file an entry is written to before it is renamed into place, so that readers
+     * never see it half written, and buffers mapped from the file it replaces stay intact.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
     /**
      * High water mark percentage for the cache
      */
@@ -83,10 +293,86 @@ public class DiskCache implements Cache
     static final float HYSTERESIS_FACTOR = 0.9f;
 
     /**
-     * Magic number for current version of cache file format.
+     * Magic number of the original cache file format, with fixed-width lengths. Still read.
      */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /**
+     * Magic number for current version of cache file format: varint lengths, common header names
+     * replaced by a dictionary index, and the offset of the body up front.
+     */
+    private static final int CACHE_MAGIC_V2 = 0x20191021;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Per-thread digests for naming files, as {@link MessageDigest} isn't thread safe.
+     */
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    /**
+     * Files at least this large are memory-mapped on read rather than copied.
+     */
+    @VisibleForTesting
+    static final int MMAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * Size of the first block read from smaller files, enough for the header of most entries.
+     */
+    private static final int HEADER_BLOCK_SIZE = 4 * 1024;
+
+    /**
+     * Default minimum size for data to be compressed.
+     */
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * Compressed data is only kept if it saves at least this fraction of the original size.
+     */
+    private static final float MIN_COMPRESSION_SAVINGS = 0.1f;
+
+    /**
+     * Size of the chunks fed to the inflater from memory-mapped files.
+     */
+    private static final int INFLATE_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Most entries removed by a single run of the expiry sweeper, to bound its I/O.
+     */
+    @VisibleForTesting
+    static final int SWEEP_BATCH_SIZE = 100;
+
+    /**
+     * Number of files the cleaner deletes before giving way to other threads.
+     */
+    private static final int DELETE_BATCH_SIZE = 64;
+
+    /**
+     * Suffix of the name a cleared root directory is moved to, followed by a number.
+     */
+    private static final String TRASH_SUFFIX = ".trash-";
+
+    /**
+     * Size limit of the pool of scratch buffers used for compression.
+     */
+    private static final int POOL_SIZE_BYTES = 128 * 1024;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory using the default
      * maximum cache size of 5MB.
@@ -111,227 +397,1557 @@ public class DiskCache implements Cache
     {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mJournal = new CacheJournal(rootDirectory);
+        mPacks = new PackStore(rootDirectory);
+        mLocks = new StripeLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            mLocks[i] = new StripeLock(i);
+        }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the specified root
-     * directory. Creates the root directory if necessary.
+     * Initializes the DiskBasedCache by replaying the journal in the specified root directory, or
+     * by scanning for all files currently in it if the journal can't be used. Creates the root
+     * directory if necessary.
+     *
+     * <p>In lazy mode this only starts loading the index on a background thread and returns right
+     * away; see {@link #setLazyInitialization(boolean)}.
      */
     @Override
-    public synchronized void initialize()
+    public void initialize()
     {
-        if (!mRootDirectory.exists())
-        {
-            if (!mRootDirectory.mkdirs())
-            {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
-            }
-            return;
-        }
-        File[] files = mRootDirectory.listFiles();
-        if (files == null)
+        if (!mLazyInitialization)
         {
+            loadIndex();
             return;
         }
-        for (File file : files)
+        Thread loader = new Thread("volley-cache-loader")
         {
-            try
-            {
-                long entrySize = file.length();
-                CountingInputStream cis = new CountingInputStream(
-                        new BufferedInputStream(createInputStream(file)), entrySize);
-                try
-                {
-                    CacheHeader entry = CacheHeader.readHeader(cis);
-                    entry.size = entrySize;
-                    putEntry(entry.key, entry);
-                }
-                finally
-                {
-                    // Any IOException thrown here is handled by the below catch block by design.
-                    //noinspection ThrowFromFinallyBlock
-                    cis.close();
-                }
-            }
-            catch (IOException e)
+            @Override
+            public void run()
             {
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loadIndex();
             }
-        }
+        };
+        loader.setDaemon(true);
+        loader.start();
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Loads the index and merges it with whatever has been cached or looked up since startup.
+     * Reads and writes may run concurrently.
      */
-    @Override
-    public synchronized void clear()
+    private void loadIndex()
     {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null)
+        long startTime = SystemClock.elapsedRealtime();
+        boolean rebuilt = false;
+        try
         {
-            for (File file : files)
+            if (!mRootDirectory.exists())
             {
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
+                if (!mRootDirectory.mkdirs())
+                {
+                    VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                }
+                return;
+            }
+            int clearCount = mClearCount;
+            Map<String, IndexEntry> entries = replayJournal();
+            rebuilt = entries == null;
+            if (rebuilt)
+            {
+                entries = scanDirectory();
             }
+            mergeLoadedEntries(entries, clearCount);
         }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
-    }
-
-    /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
-     */
-    @Override
-    public synchronized Entry get(String key)
-    {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null)
+        finally
         {
-            return null;
+            mLoaded = true;
+            mRemovedWhileLoading.clear();
+            mLoadLatch.countDown();
         }
-        File file = getFileForKey(key);
-        try
+        if (rebuilt)
+        {
+            compactJournal();
+        }
+        else if (compactJournalIfNeeded())
         {
-            CountingInputStream cis = new CountingInputStream(
-                    new BufferedInputStream(
-                            createInputStream(file)), file.length());
+            lockAll();
             try
             {
-                CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
-                if (!TextUtils.equals(key, entryOnDisk.key))
-                {
-                    // File was shared by two keys and now holds data for a different entry!
-                    VolleyLog.d(
-                            "%s: key=%s, found=%s", file.getAbsolutePath(), key, entryOnDisk.key);
-                    // Remove key whose contents on disk have been replaced.
-                    removeEntry(key);
-                    return null;
-                }
-                byte[] data = streamToBytes(cis, cis.bytesRemaining());
-                return entry.toCacheEntry(data);
+                // With every lock held no writer can race us, so files the journal lost track of
+                // can go.
+                deleteUnreferencedFiles();
             }
             finally
             {
-                // Any IOException thrown here is handled by the below catch block by design.
-                //noinspection ThrowFromFinallyBlock
-                cis.close();
+                unlockAll();
             }
         }
-        catch (IOException e)
+        openPacks();
+        pruneIfNeeded();
+        // A clear may have been cut short before its files were deleted.
+        if (listTrash().length > 0)
         {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
+            mTrashPending = true;
+            scheduleCleanup();
         }
+        VolleyLog.d("Loaded cache index of %d entries in %d ms",
+                mEntries.size(), SystemClock.elapsedRealtime() - startTime);
     }
 
     /**
-     * Invalidates an entry in the cache.
+     * Loads the index from the journal.
      *
-     * @param key        Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * @return the journaled entries, or null if there is no usable journal and the directory has
+     * to be scanned instead.
      */
-    @Override
-    public synchronized void invalidate(String key, boolean fullExpire)
+    private Map<String, IndexEntry> replayJournal()
     {
-        Entry entry = get(key);
-        if (entry != null)
+        ProcessLock processLock = mProcessLock;
+        if (processLock == null)
         {
-            entry.softTtl = 0;
-            if (fullExpire)
+            return readJournal();
+        }
+        // Other processes must not replace the journal while it is replayed, and the generation
+        // read has to be the one of the journal replayed.
+        synchronized (mJournal)
+        {
+            FileLock lock = processLock.lock(JOURNAL_REGION);
+            try
             {
-                entry.ttl = 0;
+                mJournalGeneration = processLock.readGeneration();
+                return readJournal();
+            }
+            catch (IOException e)
+            {
+                VolleyLog.d("Unable to read journal generation: %s", e.toString());
+                return readJournal();
+            }
+            finally
+            {
+                processLock.release(lock);
             }
-            put(key, entry);
         }
     }
 
-    /**
-     * Puts the entry with the specified key into the cache.
-     */
-    @Override
-    public synchronized void put(String key, Entry entry)
+    private Map<String, IndexEntry> readJournal()
     {
-        // If adding this entry would trigger a prune, but pruning would cause the new entry to be
-        // deleted, then skip writing the entry in the first place, as this is just churn.
-        // Note that we don't include the cache header overhead in this calculation for simplicity,
-        // so putting entries which are just below the threshold may still cause this churn.
-        if (mTotalSize + entry.data.length > mMaxCacheSizeInBytes
-                && entry.data.length > mMaxCacheSizeInBytes * HYSTERESIS_FACTOR)
+        File journalFile = mJournal.getFile();
+        if (!journalFile.exists())
         {
-            return;
+            return null;
         }
-        File file = getFileForKey(key);
         try
         {
-            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success)
-            {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
-            }
-            fos.write(entry.data);
-            fos.close();
-            e.size = file.length();
-            putEntry(key, e);
-            pruneIfNeeded();
-            return;
-        }
-        catch (IOException ignored)
-        {
+            return mJournal.read(createInputStream(journalFile));
         }
-        boolean deleted = file.delete();
-        if (!deleted)
+        catch (IOException e)
         {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            VolleyLog.d("Unable to replay journal, rebuilding: %s", e.toString());
+            synchronized (mJournal)
+            {
+                mJournal.delete();
+                bumpJournalGeneration();
+            }
+            return null;
         }
     }
 
-    @Override
-    public void update(String key, Entry entry)
-    {
-        put(key, entry);
-        // just upgrade cache file meta,not refresh all entry
-        //        File file = getFileForKey(key);
-        //        try
-        //        {
-        //            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
-        //            CacheHeader e = new CacheHeader(key, entry);
-        //            boolean success = e.writeHeader(fos);
-        //            fos.close();
-        //            if (!success)
-        //            {
-        //                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-        //                throw new IOException();
-        //            }
-        //            return;
-        //        }
-        //        catch (IOException ignored)
-        //        {
-        //        }
-        //        boolean deleted = file.delete();
-        //        if (!deleted)
-        //        {
-        //            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
-        //        }
-    }
-
     /**
-     * Removes the specified key from the cache if it exists.
+     * Rebuilds the index by reading the header of every file in the root directory. Files that
+     * can't be read are deleted.
      */
-    @Override
-    public synchronized void remove(String key)
+    private Map<String, IndexEntry> scanDirectory()
     {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted)
+        Map<String, IndexEntry> entries = new LinkedHashMap<>();
+        File[] files = mRootDirectory.listFiles();
+        if (files == null)
+        {
+            return entries;
+        }
+        for (File file : files)
+        {
+            if (CacheJournal.isJournalFile(file) || PackStore.isPackFile(file.getName()))
+            {
+                continue;
+            }
+            if (file.getName().endsWith(TEMP_SUFFIX))
+            {
+                // Left over by a write that never finished, unless another process is writing it.
+                if (mProcessLock == null)
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+                continue;
+            }
+            CacheHeader entry = null;
+            StripeWriteLock lock = getLockForFile(file.getName()).writeLock();
+            lock.lock();
+            try
+            {
+                long entrySize = file.length();
+                CountingInputStream cis = new CountingInputStream(
+                        new BufferedInputStream(createInputStream(file)), entrySize);
+                try
+                {
+                    entry = CacheHeader.readHeader(cis);
+                    entry.size = entrySize;
+                }
+                finally
+                {
+                    // Any IOException thrown here is handled by the below catch block by design.
+                    //noinspection ThrowFromFinallyBlock
+                    cis.close();
+                }
+            }
+            catch (IOException e)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (entry != null && migrateFile(file, entry.key))
+            {
+                entries.put(entry.key, new IndexEntry(entry));
+            }
+        }
+        // A key with both a file and a packed record was moved between the two right before a
+        // crash; the file is as likely to be the newer copy, and can't be partial.
+        for (IndexEntry entry : scanSegments().values())
+        {
+            if (!entries.containsKey(entry.key))
+            {
+                entries.put(entry.key, entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Rebuilds the index of packed entries by replaying every segment, oldest first. Records that
+     * can't be parsed are skipped.
+     */
+    private Map<String, IndexEntry> scanSegments()
+    {
+        Map<String, IndexEntry> entries = new LinkedHashMap<>();
+        int[] ids;
+        try
+        {
+            ids = mPacks.listSegments();
+        }
+        catch (IOException e)
+        {
+            return entries;
+        }
+        for (int id : ids)
+        {
+            List<PackStore.Record> records;
+            try
+            {
+                records = mPacks.readRecords(id);
+            }
+            catch (IOException e)
+            {
+                VolleyLog.d("Unable to read segment %d: %s", id, e.toString());
+                continue;
+            }
+            for (PackStore.Record record : records)
+            {
+                if (record.type == PackStore.TYPE_TOMBSTONE)
+                {
+                    entries.remove(new String(record.payload, UTF_8));
+                    continue;
+                }
+                try
+                {
+                    CacheHeader entry = CacheHeader.readHeader(ByteBuffer.wrap(record.payload));
+                    entry.packLocation = record.location;
+                    entry.size = PackStore.RECORD_HEADER_SIZE + record.payload.length;
+                    // Re-insert so the map reflects the order of the last write.
+                    entries.remove(entry.key);
+                    entries.put(entry.key, new IndexEntry(entry));
+                }
+                catch (IOException e)
+                {
+                    VolleyLog.d("Skipping unreadable record in segment %d", id);
+                }
+                catch (BufferUnderflowException e)
+                {
+                    VolleyLog.d("Skipping truncated record in segment %d", id);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Moves a file named by an older naming scheme to the name for its key. Nothing but the loader
+     * knows such files, so only the lock of the new name is needed.
+     *
+     * @return false if the file was dropped because its key already has a file
+     */
+    private boolean migrateFile(File file, String key)
+    {
+        String filename = getFilenameForKey(key);
+        if (filename.equals(file.getName()))
+        {
+            return true;
+        }
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            File target = new File(mRootDirectory, filename);
+            if (!target.exists() && file.renameTo(target))
+            {
+                return true;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds loaded entries to the index. Entries written or looked up since startup are newer than
+     * what was loaded and win; entries removed or cleared since are dropped.
+     */
+    private void mergeLoadedEntries(Map<String, IndexEntry> entries, int clearCount)
+    {
+        // Loaded entries rank below anything touched since startup, in the order they were loaded.
+        long stamp = -entries.size();
+        for (IndexEntry entry : entries.values())
+        {
+            StripeWriteLock lock = getLock(entry.key).writeLock();
+            lock.lock();
+            try
+            {
+                if (mClearCount != clearCount)
+                {
+                    return;
+                }
+                entry.lastAccess = stamp++;
+                if (!mRemovedWhileLoading.contains(entry.key)
+                        && mEntries.putIfAbsent(entry.key, entry) == null)
+                {
+                    mTotalSize.addAndGet(entry.size);
+                    mEvictionPolicy.onWrite(entry);
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     *
+     * <p>The root directory is moved aside and replaced with an empty one, so the cache can be
+     * used again right away, and the old files are deleted on a background thread. If the
+     * directory can't be moved, its files are deleted before this returns.
+     */
+    @Override
+    public void clear()
+    {
+        boolean moved;
+        lockAll();
+        try
+        {
+            ProcessLock processLock = mProcessLock;
+            synchronized (mJournal)
+            {
+                FileLock lock = processLock != null ? processLock.lock(JOURNAL_REGION) : null;
+                try
+                {
+                    mJournal.delete();
+                    if (processLock != null)
+                    {
+                        // Makes the other processes replay the now missing journal, which clears
+                        // their index too.
+                        mJournalGeneration = processLock.bumpGeneration();
+                    }
+                }
+                catch (IOException e)
+                {
+                    VolleyLog.e("Unable to bump journal generation: %s", e.toString());
+                }
+                finally
+                {
+                    if (processLock != null)
+                    {
+                        processLock.release(lock);
+                    }
+                }
+            }
+            mPacks.reset();
+            // Other processes keep using the directory and its lock file, so it can't be moved.
+            moved = processLock == null && moveToTrash();
+            if (!moved)
+            {
+                File[] files = mRootDirectory.listFiles();
+                if (files != null)
+                {
+                    for (File file : files)
+                    {
+                        if (!ProcessLock.LOCK_FILE.equals(file.getName()))
+                        {
+                            //noinspection ResultOfMethodCallIgnored
+                            file.delete();
+                        }
+                    }
+                }
+            }
+            // Their files are gone with the rest.
+            mPendingDeletes.clear();
+            mEntries.clear();
+            mTotalSize.set(0);
+            mClearCount++;
+            mEvictionPolicy.onClear();
+        }
+        finally
+        {
+            unlockAll();
+        }
+        if (moved)
+        {
+            mTrashPending = true;
+            scheduleCleanup();
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Renames the root directory to a trash directory next to it and creates an empty one in its
+     * place. Must only run while every file lock is held.
+     *
+     * @return false if the directory was left where it is
+     */
+    private boolean moveToTrash()
+    {
+        File parent = mRootDirectory.getAbsoluteFile().getParentFile();
+        if (parent == null || !mRootDirectory.exists())
+        {
+            return false;
+        }
+        File trash;
+        int i = 0;
+        do
+        {
+            trash = new File(parent, mRootDirectory.getName() + TRASH_SUFFIX + i++);
+        }
+        while (trash.exists());
+        if (!mRootDirectory.renameTo(trash))
+        {
+            return false;
+        }
+        if (!mRootDirectory.mkdirs())
+        {
+            VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the trash directories of this cache that are yet to be deleted.
+     */
+    private File[] listTrash()
+    {
+        File parent = mRootDirectory.getAbsoluteFile().getParentFile();
+        final String prefix = mRootDirectory.getName() + TRASH_SUFFIX;
+        File[] trash = parent == null ? null : parent.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.getName().startsWith(prefix) && file.isDirectory();
+            }
+        });
+        return trash != null ? trash : new File[0];
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key)
+    {
+        CachedFile cached = read(key, true);
+        return cached != null ? cached.toCacheEntry() : null;
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     *
+     * <p>Entries small enough to be read into memory come with their data. The data of larger,
+     * memory-mapped entries is returned as a {@link Body} instead, and compressed ones are inflated
+     * as the body is streamed rather than up front. Like {@link #getBuffer(String)}, the body can
+     * still be read after the entry is replaced or removed, as it maps a file that is never
+     * rewritten.
+     */
+    @Override
+    public Entry getLazy(String key)
+    {
+        CachedFile cached = read(key, false);
+        return cached != null ? cached.toLazyCacheEntry() : null;
+    }
+
+    /**
+     * Returns the metadata of the cache entry with the specified key if it exists, null otherwise.
+     *
+     * <p>Only the header block of a file is read, and its body is read from disk once it is
+     * consumed. Entries that are still fresh according to the index are returned as by {@link
+     * #getLazy(String)} instead, as their data is about to be used anyway. So are packed entries,
+     * files small enough to be read whole along with their header, and memory-mapped ones.
+     */
+    @Override
+    public Entry getMetadata(String key)
+    {
+        syncJournal();
+        IndexEntry entry = mEntries.get(key);
+        if (entry == null || entry.isPacked() || entry.size <= HEADER_BLOCK_SIZE
+                || entry.size >= MMAP_THRESHOLD || entry.ttl >= System.currentTimeMillis())
+        {
+            return getLazy(key);
+        }
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try
+        {
+            Entry metadata = readMetadata(key);
+            entry.lastAccess = mAccessClock.incrementAndGet();
+            mEvictionPolicy.onAccess(entry);
+            mStats.recordHit(key);
+            return metadata;
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("%s: %s", getFileForKey(key).getAbsolutePath(), e.toString());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        removeStaleEntry(key, entry);
+        mStats.recordMiss(key);
+        return null;
+    }
+
+    /**
+     * Returns the body of the cache entry with the specified key if it exists, null otherwise.
+     *
+     * <p>Large entries are memory-mapped, so the returned buffer is read straight from the page
+     * cache instead of being copied onto the heap. The buffer stays valid after the entry is
+     * removed or replaced, as entries are replaced by renaming a new file over the old one rather
+     * than by rewriting it, but it must not be modified.
+     */
+    public ByteBuffer getBuffer(String key)
+    {
+        CachedFile cached = read(key, true);
+        return cached != null ? cached.body : null;
+    }
+
+    /**
+     * Reads the file for the given key, dropping the entry if the file turns out to be unusable.
+     *
+     * @param inflate whether to inflate compressed data that is memory-mapped
+     */
+    private CachedFile read(String key, boolean inflate)
+    {
+        syncJournal();
+        IndexEntry entry = mEntries.get(key);
+        // if the entry does not exist, return.
+        if (entry == null)
+        {
+            return recordLookup(key, mLoaded ? null : probe(key, inflate));
+        }
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try
+        {
+            CachedFile cached = readFile(key, inflate);
+            entry.lastAccess = mAccessClock.incrementAndGet();
+            mEvictionPolicy.onAccess(entry);
+            return recordLookup(key, cached);
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("%s: %s", getFileForKey(key).getAbsolutePath(), e.toString());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        removeStaleEntry(key, entry);
+        return recordLookup(key, null);
+    }
+
+    private CachedFile recordLookup(String key, CachedFile cached)
+    {
+        if (cached == null)
+        {
+            mStats.recordMiss(key);
+            return null;
+        }
+        mStats.recordHit(key);
+        // Mapped data that is still compressed is inflated by whoever reads it.
+        boolean deflated = cached.header.isCompressed() && !cached.body.hasArray();
+        mStats.recordRead(key, deflated ? cached.header.dataLength : cached.body.remaining());
+        return cached;
+    }
+
+    /**
+     * Looks for the file of a key the index doesn't know about yet, while the index is loading.
+     * A file that is found is indexed; anything that can't be read is left to the loader.
+     */
+    private CachedFile probe(String key, boolean inflate)
+    {
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try
+        {
+            CachedFile cached = readFile(key, inflate);
+            cached.header.size = getFileForKey(key).length();
+            IndexEntry entry = new IndexEntry(cached.header);
+            entry.lastAccess = mAccessClock.incrementAndGet();
+            // Writers and the loader hold the write lock, so only another probe can race us here.
+            if (mEntries.putIfAbsent(key, entry) == null)
+            {
+                mTotalSize.addAndGet(entry.size);
+                mEvictionPolicy.onWrite(entry);
+            }
+            return cached;
+        }
+        catch (IOException e)
+        {
+            // Usually there is no file at all.
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key        Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire)
+    {
+        // While the index is loading the entry may be on disk without being indexed yet.
+        if (!mEntries.containsKey(key) && mLoaded)
+        {
+            return;
+        }
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            // Only the TTLs change, so rewrite just the header where it can be done in place.
+            IndexEntry indexed = mEntries.get(key);
+            if (indexed != null && !indexed.isPacked() && mProcessLock == null)
+            {
+                Entry metadata = readMetadata(key);
+                expire(metadata, fullExpire);
+                if (rewriteHeader(key, metadata))
+                {
+                    return;
+                }
+            }
+            Entry entry = readFile(key, true).toCacheEntry();
+            expire(entry, fullExpire);
+            writeEntry(key, entry);
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("%s: %s", getFileForKey(key).getAbsolutePath(), e.toString());
+            deleteEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        pruneIfNeeded();
+    }
+
+    private static void expire(Entry entry, boolean fullExpire)
+    {
+        entry.softTtl = 0;
+        if (fullExpire)
+        {
+            entry.ttl = 0;
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache. Entries returned by {@link
+     * #getLazy(String)} or {@link #getMetadata(String)} have their data read first; if that fails,
+     * nothing is written.
+     */
+    @Override
+    public void put(String key, Entry entry)
+    {
+        // If adding this entry would trigger a prune, but pruning would cause the new entry to be
+        // deleted, then skip writing the entry in the first place, as this is just churn.
+        // Note that we don't include the cache header overhead in this calculation for simplicity,
+        // so putting entries which are just below the threshold may still cause this churn.
+        long dataLength = entry.getDataLength();
+        if (mTotalSize.get() + dataLength > mMaxCacheSizeInBytes
+                && dataLength > mMaxCacheSizeInBytes * HYSTERESIS_FACTOR)
+        {
+            return;
+        }
+        try
+        {
+            entry.getData();
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Could not read data to cache for key=%s: %s", key, e.toString());
+            return;
+        }
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            writeEntry(key, entry);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        // Pruning takes the locks of other files, so it must run without holding this one.
+        pruneIfNeeded();
+    }
+
+    /**
+     * Updates the metadata of an entry without touching its data.
+     *
+     * <p>Every file reserves some slack after its header, so a new header usually fits in the
+     * space of the old one and only the header region is rewritten in place. If it doesn't fit,
+     * or the entry is no longer cached, this falls back to {@link #put(String, Entry)}.
+     */
+    @Override
+    public void update(String key, Entry entry)
+    {
+        boolean updated;
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            updated = mEntries.containsKey(key) && rewriteHeader(key, entry);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (!updated)
+        {
+            put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key)
+    {
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            deleteEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Imports the entries of a bundle written by {@link #exportBundle(OutputStream)}, such as one
+     * shipped in the app's assets, in a single pass over the stream. Entries are stored as they
+     * are in the bundle, so compressed data isn't inflated and compressed again. Keys the cache
+     * already holds are skipped, as their entry is at least as recent as the bundled one.
+     *
+     * <p>Call this after {@link #initialize()}. Entries read before a truncated or corrupt record
+     * are kept.
+     *
+     * @param in stream over the bundle, which is read to its end but left open
+     * @return the number of entries imported
+     * @throws IOException if the bundle can't be read
+     */
+    public int importBundle(InputStream in) throws IOException
+    {
+        try
+        {
+            return CacheBundle.read(in, this);
+        }
+        finally
+        {
+            pruneIfNeeded();
+        }
+    }
+
+    /**
+     * Imports the entries of a bundle file, as {@link #importBundle(InputStream)} does.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public int importBundle(File bundle) throws IOException
+    {
+        InputStream in = createInputStream(bundle);
+        try
+        {
+            return importBundle(in);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            in.close();
+        }
+    }
+
+    /**
+     * Writes every entry of the cache to a bundle, one entry at a time, that can be imported into
+     * another cache with {@link #importBundle(InputStream)}. Entries are written as stored, so
+     * the bundle is about as large as the cache. To bundle the cache directory of a warmed up
+     * app, open a {@link DiskCache} over it and {@link #initialize()} it first.
+     *
+     * @param out stream to write the bundle to, which is flushed but left open
+     * @return the number of entries exported
+     * @throws IOException if the bundle can't be written
+     */
+    public int exportBundle(OutputStream out) throws IOException
+    {
+        return CacheBundle.write(out, this);
+    }
+
+    /**
+     * Returns the keys of the indexed entries, in no particular order.
+     */
+    List<String> getKeys()
+    {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /**
+     * Writes the stored form of an entry, header and data as they are on disk, preceded by its
+     * length.
+     *
+     * @return false if there is no such entry any more, in which case nothing was written
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    boolean exportEntry(String key, OutputStream out) throws IOException
+    {
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try
+        {
+            IndexEntry indexed = mEntries.get(key);
+            if (indexed == null)
+            {
+                return false;
+            }
+            if (indexed.isPacked())
+            {
+                byte[] record = mPacks.read(
+                        indexed.packLocation, (int) indexed.size - PackStore.RECORD_HEADER_SIZE);
+                writeLong(out, record.length);
+                out.write(record);
+                return true;
+            }
+            File file = getFileForKey(key);
+            InputStream in;
+            try
+            {
+                in = createInputStream(file);
+            }
+            catch (FileNotFoundException e)
+            {
+                return false;
+            }
+            try
+            {
+                long length = file.length();
+                writeLong(out, length);
+                copyFully(in, out, length);
+                return true;
+            }
+            finally
+            {
+                //noinspection ThrowFromFinallyBlock
+                in.close();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores an entry read from a bundle unless the cache already holds its key. Small entries are
+     * packed like any other.
+     *
+     * @param header       the header of the entry, including its key
+     * @param data         stream positioned at the stored data
+     * @param storedLength length of the stored data
+     * @return false if the entry was skipped, in which case nothing was read from the stream
+     * @throws IOException if the data can't be read or stored; nothing is indexed then
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    boolean importEntry(CacheHeader header, CountingInputStream data, long storedLength)
+            throws IOException
+    {
+        String key = header.key;
+        File file = getFileForKey(key);
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            // While the index is loading the entry may be on disk without being indexed yet.
+            if (mEntries.containsKey(key) || (!mLoaded && file.exists()))
+            {
+                return false;
+            }
+            InputStream in = data;
+            boolean packed = false;
+            if (storedLength < mPackThreshold)
+            {
+                byte[] stored = streamToBytes(data, storedLength);
+                packed = writePacked(header, stored, stored.length);
+                in = new ByteArrayInputStream(stored);
+            }
+            if (!packed)
+            {
+                File target = getWriteTarget(file);
+                OutputStream fos = new BufferedOutputStream(createOutputStream(target));
+                try
+                {
+                    fos.write(header.toBytes(CacheHeader.RESERVE_DEFAULT));
+                    copyFully(in, fos, storedLength);
+                }
+                finally
+                {
+                    //noinspection ThrowFromFinallyBlock
+                    fos.close();
+                }
+                commitWrite(target, file);
+                header.size = file.length();
+            }
+            indexWrite(key, header, packed);
+            return true;
+        }
+        catch (IOException e)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            getWriteTarget(file).delete();
+            throw e;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the file for the given key from disk. The caller must hold the key's lock.
+     *
+     * <p>Packed entries are read from their segment with a single positional read. Files of at
+     * least {@link #MMAP_THRESHOLD} bytes are mapped. Smaller ones are read with positional reads:
+     * the header is decoded from a single prefetched block and the body lands in its final array
+     * with one more read. The key stored in the file is skipped rather than decoded, as the file
+     * name already identifies it.
+     *
+     * @param inflate whether to inflate compressed data that is memory-mapped. Compressed data
+     *                read onto the heap is always inflated.
+     * @return the file contents
+     * @throws IOException if the file can't be read
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private CachedFile readFile(String key, boolean inflate) throws IOException
+    {
+        IndexEntry indexed = mEntries.get(key);
+        if (indexed != null && indexed.isPacked())
+        {
+            return readPacked(indexed.packLocation, (int) indexed.size, key);
+        }
+        File file = getFileForKey(key);
+        FileChannel channel = createReadChannel(file);
+        try
+        {
+            long length = channel.size();
+            CachedFile cached;
+            try
+            {
+                cached = length >= MMAP_THRESHOLD
+                        ? mapFile(channel, length, key)
+                        : readSmallFile(channel, (int) length, key);
+            }
+            catch (BufferUnderflowException e)
+            {
+                throw new EOFException();
+            }
+            try
+            {
+                if (!cached.header.isCompressed() || (!inflate && !cached.body.hasArray()))
+                {
+                    return cached;
+                }
+                byte[] data = inflate(cached.body, cached.header.dataLength);
+                return new CachedFile(cached.header, ByteBuffer.wrap(data));
+            }
+            finally
+            {
+                if (cached.header.isCompressed() && cached.body.hasArray())
+                {
+                    mPool.returnBuf(cached.body.array());
+                }
+            }
+        }
+        finally
+        {
+            // Any IOException thrown here is handled by the caller by design.
+            //noinspection ThrowFromFinallyBlock
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the header of the file for the given key, leaving its body on disk. The caller must
+     * hold the key's lock.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private Entry readMetadata(String key) throws IOException
+    {
+        IndexEntry indexed = mEntries.get(key);
+        if (indexed == null)
+        {
+            throw new FileNotFoundException("Cache entry removed: " + key);
+        }
+        FileChannel channel = createReadChannel(getFileForKey(key));
+        try
+        {
+            long length = channel.size();
+            CachedFile head;
+            try
+            {
+                head = readHeaderBlock(channel, (int) Math.min(length, Integer.MAX_VALUE), key);
+            }
+            catch (BufferUnderflowException e)
+            {
+                throw new EOFException();
+            }
+            CacheHeader header = head.header;
+            Entry entry = header.toCacheEntry(null);
+            long dataLength = header.isCompressed()
+                    ? header.dataLength : length - head.body.position();
+            entry.body = new DeferredBody(key, indexed.generation, dataLength);
+            return entry;
+        }
+        finally
+        {
+            // Any IOException thrown here is handled by the caller by design.
+            //noinspection ThrowFromFinallyBlock
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the data of an entry whose metadata was returned earlier.
+     *
+     * @param generation the {@link IndexEntry#generation} of the entry the metadata was read from
+     * @throws EntryReplacedException if the entry no longer holds the same response
+     * @throws IOException             if the entry can't be read
+     */
+    private byte[] readDeferred(String key, long generation) throws IOException
+    {
+        syncJournal();
+        Lock lock = getLock(key).readLock();
+        lock.lock();
+        try
+        {
+            // Writers index the entry under the write lock, so it matches the file read below.
+            IndexEntry indexed = mEntries.get(key);
+            if (indexed == null)
+            {
+                throw new EntryReplacedException("Cache entry removed: " + key);
+            }
+            if (indexed.generation != generation)
+            {
+                throw new EntryReplacedException("Cache entry replaced: " + key);
+            }
+            CachedFile cached = readFile(key, true);
+            mStats.recordRead(key, cached.body.remaining());
+            return cached.toCacheEntry().data;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads an entry from its segment. Packed entries are small, so compressed data is always
+     * inflated right away.
+     *
+     * @param size size of the record, as recorded in the index
+     */
+    private CachedFile readPacked(long location, int size, String key) throws IOException
+    {
+        byte[] record = mPacks.read(location, size - PackStore.RECORD_HEADER_SIZE);
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        CacheHeader header;
+        try
+        {
+            header = CacheHeader.readHeader(buf, key);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new EOFException();
+        }
+        ByteBuffer body = buf.slice();
+        if (header.isCompressed())
+        {
+            body = ByteBuffer.wrap(inflate(body, header.dataLength));
+        }
+        return new CachedFile(header, body);
+    }
+
+    private CachedFile mapFile(FileChannel channel, long length, String key) throws IOException
+    {
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Cache file too large: " + length);
+        }
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        CacheHeader header = CacheHeader.readHeader(mapped, key);
+        return new CachedFile(header, mapped.slice());
+    }
+
+    /**
+     * Reads a file below the mapping threshold. Compressed data is read into a pooled buffer, which
+     * the caller must return once the data is inflated.
+     */
+    private CachedFile readSmallFile(FileChannel channel, int length, String key)
+            throws IOException
+    {
+        CachedFile head = readHeaderBlock(channel, length, key);
+        ByteBuffer block = head.body;
+        int bodyLength = length - block.position();
+        byte[] body = head.header.isCompressed() ? mPool.getBuf(bodyLength) : new byte[bodyLength];
+        int prefetched = block.remaining();
+        block.get(body, 0, prefetched);
+        readFully(channel, ByteBuffer.wrap(body, prefetched, bodyLength - prefetched), block.limit());
+        return new CachedFile(head.header, ByteBuffer.wrap(body, 0, bodyLength));
+    }
+
+    /**
+     * Compresses the entry's data if its content type and size make that worthwhile, and flags
+     * the header accordingly.
+     *
+     * @return a pooled buffer holding {@link CacheHeader#storedLength} bytes of compressed data,
+     * or null if the data is to be stored as is
+     */
+    private byte[] compress(CacheHeader header, Entry entry)
+    {
+        byte[] data = entry.data;
+        if (data.length < mCompressionThreshold || !isCompressible(entry))
+        {
+            return null;
+        }
+        int limit = data.length - (int) (data.length * MIN_COMPRESSION_SAVINGS);
+        byte[] buffer = mPool.getBuf(limit);
+        Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < limit)
+            {
+                length += deflater.deflate(buffer, length, limit - length);
+            }
+            if (!deflater.finished())
+            {
+                // Doesn't compress well enough to be worth inflating on every read.
+                mPool.returnBuf(buffer);
+                return null;
+            }
+            header.flags = CacheHeader.FLAG_DEFLATE;
+            header.dataLength = data.length;
+            header.storedLength = length;
+            return buffer;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates compressed data into an array of exactly the recorded length.
+     */
+    private byte[] inflate(ByteBuffer compressed, long dataLength) throws IOException
+    {
+        if (dataLength < 0 || dataLength > Integer.MAX_VALUE)
+        {
+            throw new IOException("inflate dataLength=" + dataLength);
+        }
+        byte[] data = new byte[(int) dataLength];
+        Inflater inflater = new Inflater();
+        byte[] chunk = null;
+        try
+        {
+            if (compressed.hasArray())
+            {
+                inflater.setInput(compressed.array(),
+                        compressed.arrayOffset() + compressed.position(), compressed.remaining());
+            }
+            else
+            {
+                // Mapped data has to be fed through a heap buffer.
+                chunk = mPool.getBuf(Math.min(compressed.remaining(), INFLATE_CHUNK_SIZE));
+            }
+            int length = 0;
+            while (length < data.length)
+            {
+                if (inflater.needsInput())
+                {
+                    if (chunk == null || !compressed.hasRemaining())
+                    {
+                        throw new EOFException();
+                    }
+                    int count = Math.min(chunk.length, compressed.remaining());
+                    compressed.get(chunk, 0, count);
+                    inflater.setInput(chunk, 0, count);
+                }
+                int count = inflater.inflate(data, length, data.length - length);
+                if (count == 0 && (inflater.finished() || inflater.needsDictionary()))
+                {
+                    throw new IOException("inflate ended early at " + length);
+                }
+                length += count;
+            }
+            return data;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            inflater.end();
+            mPool.returnBuf(chunk);
+        }
+    }
+
+    /**
+     * Returns true if the entry's content type is textual and likely to compress well.
+     */
+    private static boolean isCompressible(Entry entry)
+    {
+        String contentType = null;
+        if (entry.allResponseHeaders != null)
+        {
+            for (Header header : entry.allResponseHeaders)
+            {
+                if (Headers.HEADER_CONTENT_TYPE.equalsIgnoreCase(header.getName()))
+                {
+                    contentType = header.getValue();
+                    break;
+                }
+            }
+        }
+        else if (entry.responseHeaders != null)
+        {
+            contentType = entry.responseHeaders.get(Headers.HEADER_CONTENT_TYPE);
+        }
+        if (contentType == null)
+        {
+            return false;
+        }
+        contentType = contentType.toLowerCase(Locale.US);
+        int parameters = contentType.indexOf(';');
+        if (parameters >= 0)
+        {
+            contentType = contentType.substring(0, parameters);
+        }
+        contentType = contentType.trim();
+        return contentType.startsWith("text/")
+                || contentType.endsWith("/json")
+                || contentType.endsWith("+json")
+                || contentType.endsWith("/xml")
+                || contentType.endsWith("+xml")
+                || contentType.endsWith("/javascript")
+                || contentType.endsWith("/x-www-form-urlencoded");
+    }
+
+    /**
+     * Reads blocks from the start of a file until they hold the whole header.
+     *
+     * @param key the key the file belongs to, used instead of decoding the stored one
+     * @return the header, and the last block positioned at the start of the body
+     */
+    private static CachedFile readHeaderBlock(FileChannel channel, int length, String key)
+            throws IOException
+    {
+        int blockSize = Math.min(length, HEADER_BLOCK_SIZE);
+        while (true)
+        {
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            readFully(channel, block, 0);
+            block.flip();
+            try
+            {
+                return new CachedFile(CacheHeader.readHeader(block, key), block);
+            }
+            catch (BufferUnderflowException e)
+            {
+                if (blockSize == length)
+                {
+                    throw e;
+                }
+                // Unusually large header, retry with a bigger block.
+                blockSize = (int) Math.min(length, blockSize * 4L);
+            }
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer src, long position)
+            throws IOException
+    {
+        while (src.hasRemaining())
+        {
+            position += channel.write(src, position);
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException
+    {
+        while (dst.hasRemaining())
+        {
+            int count = channel.read(dst, position);
+            if (count < 0)
+            {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Writes the entry to disk and indexes it. The caller must hold the key's write lock.
+     */
+    private void writeEntry(String key, Entry entry)
+    {
+        File file = getFileForKey(key);
+        try
+        {
+            CacheHeader e = new CacheHeader(key, entry);
+            byte[] compressed = compress(e, entry);
+            boolean packed;
+            try
+            {
+                byte[] data = compressed != null ? compressed : entry.data;
+                int dataLength = compressed != null ? (int) e.storedLength : entry.data.length;
+                packed = writePacked(e, data, dataLength);
+                if (!packed)
+                {
+                    File target = getWriteTarget(file);
+                    BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(target));
+                    boolean success = e.writeHeader(fos);
+                    if (!success)
+                    {
+                        fos.close();
+                        VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+                        throw new IOException();
+                    }
+                    fos.write(data, 0, dataLength);
+                    fos.close();
+                    commitWrite(target, file);
+                    e.size = file.length();
+                }
+            }
+            finally
+            {
+                mPool.returnBuf(compressed);
+            }
+            indexWrite(key, e, packed);
+            return;
+        }
+        catch (IOException ignored)
+        {
+        }
+        boolean deleted = file.delete();
+        if (!deleted)
+        {
+            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        }
+        //noinspection ResultOfMethodCallIgnored
+        getWriteTarget(file).delete();
+    }
+
+    /**
+     * Indexes and journals an entry that was just written. The caller must hold the key's write
+     * lock.
+     *
+     * @param packed whether the entry went to a segment rather than to its own file
+     */
+    private void indexWrite(String key, CacheHeader e, boolean packed)
+    {
+        IndexEntry previous = mEntries.get(key);
+        IndexEntry indexed = new IndexEntry(e);
+        mStats.recordWrite(key, e.size);
+        boolean replaced = putEntry(key, indexed);
+        if (packed && (previous == null || !previous.isPacked()))
+        {
+            // Drop the file of the entry this one replaces, if any, so a scan doesn't prefer it.
+            //noinspection ResultOfMethodCallIgnored
+            getFileForKey(key).delete();
+        }
+        journalPut(indexed, replaced);
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Returns the file to write the file of an entry to, a temporary file next to it which {@link
+     * #commitWrite(File, File)} renames into place. The file being replaced is never truncated, as
+     * {@link #getBuffer(String)} and lazy entries may still be reading it through a mapping.
+     */
+    private static File getWriteTarget(File file)
+    {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+    private static void commitWrite(File target, File file) throws IOException
+    {
+        if (!target.renameTo(file))
+        {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+            throw new IOException("Unable to rename " + target.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Appends the entry to the active segment if it is small enough to be packed, and records where
+     * it went in the header.
+     *
+     * @return false if the entry is to get a file of its own
+     */
+    private boolean writePacked(CacheHeader e, byte[] data, int dataLength) throws IOException
+    {
+        // Processes sharing the directory would append to the same segment over each other.
+        int threshold = mProcessLock == null ? mPackThreshold : 0;
+        if (dataLength >= threshold)
+        {
+            return false;
+        }
+        byte[] header = e.toBytes(0);
+        if (header.length + dataLength > threshold)
+        {
+            return false;
+        }
+        byte[] record = new byte[header.length + dataLength];
+        System.arraycopy(header, 0, record, 0, header.length);
+        System.arraycopy(data, 0, record, header.length, dataLength);
+        e.packLocation = mPacks.append(PackStore.TYPE_ENTRY, record);
+        e.size = PackStore.RECORD_HEADER_SIZE + record.length;
+        return true;
+    }
+
+    /**
+     * Overwrites the header of the file for the given key in place, if the new header fits in the
+     * space taken by the old one. The caller must hold the key's write lock.
+     *
+     * @return false if the file was left untouched, which it always is for packed entries
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private boolean rewriteHeader(String key, Entry entry)
+    {
+        IndexEntry indexed = mEntries.get(key);
+        // Other processes may be reading the file, and must not see a header half written.
+        if (indexed == null || indexed.isPacked() || mProcessLock != null)
+        {
+            return false;
+        }
+        File file = getFileForKey(key);
+        try
+        {
+            FileChannel channel = createWriteChannel(file);
+            try
+            {
+                long length = channel.size();
+                CachedFile head =
+                        readHeaderBlock(channel, (int) Math.min(length, Integer.MAX_VALUE), key);
+                int headerLength = head.body.position();
+                CacheHeader e = new CacheHeader(key, entry);
+                // The data is untouched, so it is still stored the way the old header says.
+                e.flags = head.header.flags;
+                e.dataLength = head.header.dataLength;
+                byte[] header = e.toBytes(headerLength);
+                if (header.length != headerLength)
+                {
+                    return false;
+                }
+                writeFully(channel, ByteBuffer.wrap(header), 0);
+                mStats.recordWrite(key, header.length);
+                e.size = length;
+                IndexEntry updated = new IndexEntry(e);
+                updated.generation = indexed.generation;
+                putEntry(key, updated);
+                journalPut(updated, true);
+                compactJournalIfNeeded();
+                return true;
+            }
+            finally
+            {
+                //noinspection ThrowFromFinallyBlock
+                channel.close();
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            return false;
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Failed to update header for %s: %s", file.getAbsolutePath(), e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the file for the given key and drops it from the index. The caller must hold the
+     * key's write lock.
+     */
+    private void deleteEntry(String key)
+    {
+        IndexEntry entry = mEntries.get(key);
+        boolean deleted = entry != null ? deleteStorage(entry) : getFileForKey(key).delete();
+        removeEntry(key);
+        if (!deleted)
         {
             VolleyLog.d(
                     "Could not delete cache entry for key=%s, filename=%s",
@@ -340,141 +1956,1522 @@ public class DiskCache implements Cache
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Deletes the file of an entry, or if it is packed, marks its record as removed. The caller
+     * must hold the key's write lock.
+     *
+     * @return false if the entry could not be deleted
+     */
+    private boolean deleteStorage(IndexEntry entry)
+    {
+        if (!entry.isPacked())
+        {
+            return getFileForKey(entry.key).delete();
+        }
+        releasePacked(entry);
+        try
+        {
+            mPacks.appendTombstone(entry.key);
+            return true;
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Failed to write tombstone for %s: %s", entry.key, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Counts the record of a packed entry as dead, compacting its segment if that makes it worth
+     * it.
+     */
+    private void releasePacked(IndexEntry entry)
+    {
+        if (mPacks.markDead(entry.packLocation, entry.size))
+        {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Drops an entry whose file failed to read, unless it has been replaced in the meantime.
+     */
+    private void removeStaleEntry(String key, IndexEntry entry)
+    {
+        StripeWriteLock lock = getLock(key).writeLock();
+        lock.lock();
+        try
+        {
+            if (mEntries.get(key) != entry)
+            {
+                return;
+            }
+            deleteEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a unique filename for the specified cache key: the hex MD5 hash of its UTF-8 bytes.
+     *
+     * @param key The key to generate a file name for.
+     * @return A 32 character filename.
+     */
+    String getFilenameForKey(String key)
+    {
+        byte[] digest = MD5.get().digest(key.getBytes(UTF_8));
+        char[] name = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++)
+        {
+            name[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            name[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(name);
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key)
+    {
+        return new File(mRootDirectory, getFilenameForKey(key));
+    }
+
+    /**
+     * Returns where an entry is stored, as recorded by the journal: the name of its file, or its
+     * location in a segment if it is packed.
+     */
+    String getLocation(IndexEntry entry)
+    {
+        return entry.isPacked()
+                ? PackStore.formatLocation(entry.packLocation) : getFilenameForKey(entry.key);
+    }
+
+    /**
+     * Sets the minimum data size for entries to be compressed on disk. Only textual content types
+     * such as JSON, XML and HTML are compressed, and only if that saves at least a tenth of their
+     * size. Defaults to 1 KB; pass {@link Integer#MAX_VALUE} to disable compression.
+     *
+     * <p>Entries are flagged individually, so changing this doesn't affect existing entries.
+     */
+    public void setCompressionThreshold(int minSizeInBytes)
+    {
+        mCompressionThreshold = minSizeInBytes;
+    }
+
+    /**
+     * Sets the largest size of an entry, header included, to be appended to a shared segment file
+     * rather than get a file of its own. Packing saves a file per entry, which dominates the cost
+     * of small entries on disk and on lookup. Defaults to 0, which stores every entry in its own
+     * file; a few KB, about a filesystem block, is a good value for caches of small API responses.
+     *
+     * <p>Entries are located individually, so changing this doesn't affect existing entries.
+     * Ignored in multi-process mode.
+     */
+    public void setPackThreshold(int maxSizeInBytes)
+    {
+        mPackThreshold = maxSizeInBytes;
+    }
+
+    /**
+     * Sets the size at which a segment is closed and a new one started.
+     */
+    @VisibleForTesting
+    void setPackSegmentSize(long segmentSize)
+    {
+        mPacks.setSegmentSize(segmentSize);
+    }
+
+    /**
+     * Returns the lock guarding the file of the given key.
+     */
+    @VisibleForTesting
+    StripeLock getLock(String key)
+    {
+        return getLockForFile(getFilenameForKey(key));
+    }
+
+    private StripeLock getLockForFile(String filename)
+    {
+        return mLocks[(filename.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /**
+     * Sets the policy deciding which entries are evicted when the cache is full. Defaults to
+     * {@link EvictionPolicy.LruPolicy}. Policies only learn about entries as they are used, so set
+     * this before {@link #initialize()}.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy)
+    {
+        mEvictionPolicy = policy;
+    }
+
+    /**
+     * Returns the lookups, evictions, bytes read and written and prunes since the cache was
+     * created.
+     */
+    @Override
+    public CacheStats getStats()
+    {
+        return mStats.snapshot();
+    }
+
+    /**
+     * Returns the stats of keys starting with the given prefix, or null unless it was passed to
+     * {@link #trackStatsPrefix(String)}. Prunes are only counted overall.
+     */
+    public CacheStats getStats(String prefix)
+    {
+        return mStats.snapshot(prefix);
+    }
+
+    /**
+     * Starts counting the stats of keys with the given prefix separately, such as the scheme and
+     * host of the URLs used as keys.
+     */
+    public void trackStatsPrefix(String prefix)
+    {
+        mStats.trackPrefix(prefix);
+    }
+
+    /**
+     * Starts removing entries whose hard TTL passed more than the given grace period ago. The
+     * index is checked every interval on a low priority background thread, and each run removes at
+     * most {@link #SWEEP_BATCH_SIZE} entries. Off by default, in which case expired entries are only
+     * removed when they are evicted or looked up.
+     *
+     * <p>Entries past their TTL are still used to revalidate responses with the server, so the
+     * grace period should cover how long that is worth it.
+     *
+     * @param intervalMs    time between runs, or 0 to stop sweeping
+     * @param gracePeriodMs time past the TTL after which entries are removed
+     */
+    public synchronized void setExpirySweep(long intervalMs, long gracePeriodMs)
+    {
+        mSweepIntervalMs = intervalMs;
+        mSweepGracePeriodMs = gracePeriodMs;
+        if (mSweeper != null)
+        {
+            // Stops once woken up; a new one is started with the new settings.
+            mSweeper.interrupt();
+            mSweeper = null;
+        }
+        if (intervalMs <= 0)
+        {
+            return;
+        }
+        final Thread sweeper = new Thread("volley-cache-sweeper")
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                while (isCurrentSweeper(this))
+                {
+                    try
+                    {
+                        Thread.sleep(mSweepIntervalMs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        continue;
+                    }
+                    // Until the index is loaded, entries can't be told apart from stray files.
+                    if (mLoaded)
+                    {
+                        sweepExpired();
+                    }
+                }
+            }
+        };
+        sweeper.setDaemon(true);
+        mSweeper = sweeper;
+        sweeper.start();
+    }
+
+    private synchronized boolean isCurrentSweeper(Thread thread)
+    {
+        return mSweeper == thread;
+    }
+
+    /**
+     * Lets several processes share the cache directory, each with its own instance. Writers of the
+     * same file in different processes exclude each other through locks on a file in the
+     * directory, and each process follows the journal to learn about the entries the others put
+     * and remove, instead of rescanning the directory. Files are written under a temporary name
+     * and renamed into place, so readers in other processes never see them half written. Entries
+     * are not packed in this mode, see {@link #setPackThreshold(int)}. Off by default.
+     *
+     * <p>Every process sharing the directory must enable this before calling {@link #initialize()}.
+     */
+    public void setMultiProcess(boolean multiProcess)
+    {
+        mProcessLock = multiProcess ? new ProcessLock(mRootDirectory) : null;
+    }
+
+    /**
+     * Makes {@link #initialize()} load the index on a background thread and return right away, so
+     * requests can be served while a large cache is still being indexed. Until the index is
+     * loaded, lookups of keys it doesn't know yet go to their file directly. Off by default.
+     */
+    public void setLazyInitialization(boolean lazy)
+    {
+        mLazyInitialization = lazy;
+    }
+
+    /**
+     * Waits for the index to be loaded.
+     *
+     * @return false if it didn't load within the timeout
+     */
+    @VisibleForTesting
+    boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return mLoadLatch.await(timeout, unit);
+    }
+
+    /**
+     * Takes every file lock, for operations that touch the whole directory. Locks are always taken
+     * in the same order and other paths never hold more than one, so this can't deadlock.
+     */
+    private void lockAll()
+    {
+        for (StripeLock lock : mLocks)
+        {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAll()
+    {
+        for (int i = mLocks.length - 1; i >= 0; i--)
+        {
+            mLocks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Prunes the cache to fit the maximum size.
+     *
+     * <p>Evicted entries leave the index and journal right away, but their files are deleted by
+     * the cleaner thread, so the caller doesn't wait for the file system.
+     */
+    private void pruneIfNeeded()
+    {
+        // Until the index is loaded it is missing the older entries, which should go first.
+        if (!mLoaded || mTotalSize.get() < mMaxCacheSizeInBytes)
+        {
+            return;
+        }
+        // Whoever is already pruning keeps going until the cache is under the low water mark.
+        if (!mPruneLock.tryLock())
+        {
+            return;
+        }
+        try
+        {
+            if (VolleyLog.DEBUG)
+            {
+                VolleyLog.v("Pruning old cache entries.");
+            }
+
+            long before = mTotalSize.get();
+            int prunedFiles = 0;
+            long startTime = SystemClock.elapsedRealtime();
+
+            EvictionPolicy policy = mEvictionPolicy;
+            List<IndexEntry> candidates = new ArrayList<>(mEntries.values());
+            policy.sortForEviction(candidates);
+            for (IndexEntry e : candidates)
+            {
+                if (mTotalSize.get() < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR)
+                {
+                    break;
+                }
+                StripeWriteLock lock = getLock(e.key).writeLock();
+                lock.lock();
+                try
+                {
+                    // Skip entries that were replaced or removed since the snapshot.
+                    if (!mEntries.remove(e.key, e))
+                    {
+                        continue;
+                    }
+                    // Files are left to the cleaner; packed records only need a tombstone.
+                    boolean deleted = true;
+                    if (e.isPacked())
+                    {
+                        deleted = deleteStorage(e);
+                    }
+                    else
+                    {
+                        mPendingDeletes.add(e.key);
+                    }
+                    if (deleted)
+                    {
+                        mTotalSize.addAndGet(-e.size);
+                    }
+                    else
+                    {
+                        VolleyLog.d(
+                                "Could not delete cache entry for key=%s, filename=%s",
+                                e.key, getFilenameForKey(e.key));
+                    }
+                    journalRemove(e.key);
+                    policy.onRemove(e, true);
+                    mStats.recordEviction(e.key);
+                    prunedFiles++;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            scheduleCleanup();
+            long duration = SystemClock.elapsedRealtime() - startTime;
+            mStats.recordPrune(duration);
+            if (VolleyLog.DEBUG)
+            {
+                VolleyLog.v(
+                        "pruned %d files, %d bytes, %d ms",
+                        prunedFiles, (mTotalSize.get() - before), duration);
+            }
+        }
+        finally
+        {
+            mPruneLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes evicted and cleared files on a background thread, unless that is already happening.
+     */
+    private void scheduleCleanup()
+    {
+        if ((mPendingDeletes.isEmpty() && !mTrashPending)
+                || !mCleanupScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        Thread cleaner = new Thread("volley-cache-cleaner")
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try
+                {
+                    cleanUp();
+                }
+                finally
+                {
+                    mCleanupScheduled.set(false);
+                }
+                // Catch anything queued after the cleanup had finished looking.
+                scheduleCleanup();
+            }
+        };
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    /**
+     * Deletes the files of evicted entries and any cleared directories, in batches of {@link
+     * #DELETE_BATCH_SIZE} between which other threads get their turn at the disk.
+     */
+    @VisibleForTesting
+    void cleanUp()
+    {
+        mCleanupLock.lock();
+        try
+        {
+            int batch = 0;
+            String key;
+            while ((key = mPendingDeletes.poll()) != null)
+            {
+                StripeWriteLock lock = getLock(key).writeLock();
+                lock.lock();
+                try
+                {
+                    // The key may have been written again since it was evicted.
+                    IndexEntry current = mEntries.get(key);
+                    if (current == null || current.isPacked())
+                    {
+                        //noinspection ResultOfMethodCallIgnored
+                        getFileForKey(key).delete();
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                if (++batch % DELETE_BATCH_SIZE == 0)
+                {
+                    Thread.yield();
+                }
+            }
+            if (mTrashPending)
+            {
+                mTrashPending = false;
+                for (File trash : listTrash())
+                {
+                    deleteTrash(trash);
+                }
+            }
+        }
+        finally
+        {
+            mCleanupLock.unlock();
+        }
+    }
+
+    private static void deleteTrash(File trash)
+    {
+        File[] files = trash.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i < files.length; i++)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                files[i].delete();
+                if ((i + 1) % DELETE_BATCH_SIZE == 0)
+                {
+                    Thread.yield();
+                }
+            }
+        }
+        if (!trash.delete())
+        {
+            VolleyLog.d("Could not delete %s", trash.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Removes up to {@link #SWEEP_BATCH_SIZE} entries whose hard TTL passed more than the grace
+     * period ago. Entries whose lock is taken are skipped rather than waited for, so lookups are
+     * never held up by the sweep.
+     *
+     * @return the number of entries removed
+     */
+    @VisibleForTesting
+    int sweepExpired()
+    {
+        long deadline = System.currentTimeMillis() - mSweepGracePeriodMs;
+        int removed = 0;
+        for (IndexEntry e : mEntries.values())
+        {
+            if (removed >= SWEEP_BATCH_SIZE)
+            {
+                break;
+            }
+            if (e.ttl >= deadline)
+            {
+                continue;
+            }
+            StripeWriteLock lock = getLock(e.key).writeLock();
+            if (!lock.tryLock())
+            {
+                continue;
+            }
+            try
+            {
+                // Skip entries that were replaced or removed since we looked.
+                if (!mEntries.remove(e.key, e))
+                {
+                    continue;
+                }
+                if (!deleteStorage(e))
+                {
+                    VolleyLog.d("Could not delete expired cache entry for key=%s", e.key);
+                }
+                mTotalSize.addAndGet(-e.size);
+                mEvictionPolicy.onRemove(e, false);
+                journalRemove(e.key);
+                removed++;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        if (removed > 0)
+        {
+            compactJournalIfNeeded();
+            VolleyLog.d("Swept %d expired cache entries", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     *
+     * @param key   The key to identify the entry by.
+     * @param entry The entry to cache.
+     * @return true if an existing entry was replaced
+     */
+    private boolean putEntry(String key, IndexEntry entry)
+    {
+        entry.lastAccess = mAccessClock.incrementAndGet();
+        IndexEntry oldEntry = mEntries.put(key, entry);
+        mEvictionPolicy.onWrite(entry);
+        if (oldEntry == null)
+        {
+            mTotalSize.addAndGet(entry.size);
+            return false;
+        }
+        mTotalSize.addAndGet(entry.size - oldEntry.size);
+        if (oldEntry.isPacked())
+        {
+            releasePacked(oldEntry);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entry identified by 'key' from the cache.
+     */
+    private void removeEntry(String key)
+    {
+        IndexEntry removed = mEntries.remove(key);
+        if (removed != null)
+        {
+            mTotalSize.addAndGet(-removed.size);
+            mEvictionPolicy.onRemove(removed, false);
+        }
+        if (!mLoaded)
+        {
+            // The key may not have been loaded yet; make sure it stays gone.
+            mRemovedWhileLoading.add(key);
+        }
+        if (removed != null || !mLoaded)
+        {
+            journalRemove(key);
+        }
+    }
+
+    private void journalPut(IndexEntry entry, boolean replaced)
+    {
+        try
+        {
+            synchronized (mJournal)
+            {
+                FileLock lock = lockJournal();
+                try
+                {
+                    mJournal.appendPut(entry, getLocation(entry), replaced);
+                }
+                finally
+                {
+                    unlockJournal(lock);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // The entry stays usable for this process; a later compaction drops the stray file.
+            VolleyLog.d("Failed to journal put for %s: %s", entry.key, e.toString());
+        }
+    }
+
+    private void journalRemove(String key)
+    {
+        try
+        {
+            synchronized (mJournal)
+            {
+                FileLock lock = lockJournal();
+                try
+                {
+                    mJournal.appendRemove(key);
+                }
+                finally
+                {
+                    unlockJournal(lock);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Failed to journal remove for %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * In multi-process mode, takes the journal lock and brings the index up to date with what
+     * other processes journaled, so records can be appended or the journal replaced. The caller
+     * must hold the journal's monitor.
+     *
+     * @return the lock to release with {@link #unlockJournal(FileLock)}, or null
+     */
+    private FileLock lockJournal()
+    {
+        ProcessLock processLock = mProcessLock;
+        if (processLock == null)
+        {
+            return null;
+        }
+        FileLock lock = processLock.lock(JOURNAL_REGION);
+        syncJournalLocked(processLock);
+        return lock;
+    }
+
+    private void unlockJournal(FileLock lock)
+    {
+        ProcessLock processLock = mProcessLock;
+        if (processLock != null)
+        {
+            processLock.release(lock);
+        }
+    }
+
+    /**
+     * Tells other processes the journal was replaced rather than appended to. The caller must hold
+     * the journal lock.
+     */
+    private void bumpJournalGeneration()
+    {
+        ProcessLock processLock = mProcessLock;
+        if (processLock == null)
+        {
+            return;
+        }
+        try
+        {
+            mJournalGeneration = processLock.bumpGeneration();
+        }
+        catch (IOException e)
+        {
+            VolleyLog.e("Unable to bump journal generation: %s", e.toString());
+        }
+    }
+
+    /**
+     * In multi-process mode, brings the index up to date with what other processes journaled
+     * since it was last synced. Costs a read of the lock file and a stat of the journal when
+     * nothing changed.
+     */
+    private void syncJournal()
+    {
+        ProcessLock processLock = mProcessLock;
+        if (processLock == null || !mLoaded)
+        {
+            return;
+        }
+        synchronized (mJournal)
+        {
+            try
+            {
+                if (processLock.readGeneration() == mJournalGeneration && !mJournal.hasTail()
+                        && mDeferredJournalChanges.isEmpty())
+                {
+                    return;
+                }
+            }
+            catch (IOException e)
+            {
+                VolleyLog.d("Unable to read journal generation: %s", e.toString());
+                return;
+            }
+            FileLock lock = processLock.lock(JOURNAL_REGION);
+            try
+            {
+                syncJournalLocked(processLock);
+            }
+            finally
+            {
+                processLock.release(lock);
+            }
+        }
+    }
+
+    /**
+     * Reads what other processes journaled into the index: the records appended since the last
+     * sync, or the whole journal if it was replaced meanwhile. The caller must hold the journal's
+     * monitor and lock.
+     */
+    private void syncJournalLocked(ProcessLock processLock)
+    {
+        if (!mLoaded)
+        {
+            // The replay of the journal catches up with everything.
+            return;
+        }
+        try
+        {
+            long generation = processLock.readGeneration();
+            Map<String, IndexEntry> changes;
+            if (generation == mJournalGeneration)
+            {
+                changes = mJournal.readTail();
+            }
+            else
+            {
+                Map<String, IndexEntry> entries = mJournal.reload();
+                mJournalGeneration = generation;
+                // Whatever the new journal doesn't have was removed.
+                changes = new LinkedHashMap<>();
+                for (String key : mEntries.keySet())
+                {
+                    if (!entries.containsKey(key))
+                    {
+                        changes.put(key, null);
+                    }
+                }
+                changes.putAll(entries);
+            }
+            applyJournalChanges(changes);
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Unable to sync with journal: %s", e.toString());
+        }
+    }
+
+    /**
+     * Applies changes other processes made to the index. Their files are theirs to write and
+     * delete, so only the index and its accounting are updated. The caller must hold the journal's
+     * monitor.
+     *
+     * <p>Each change is applied under its key's write lock, so it can't interleave with a write of
+     * the key in this process. The lock is only tried, as its holder may be waiting for the
+     * journal's monitor; changes to keys that are busy are deferred to the next sync.
+     *
+     * @param changes entries by key, or null for removed keys
+     */
+    private void applyJournalChanges(Map<String, IndexEntry> changes)
+    {
+        Map<String, IndexEntry> pending = new LinkedHashMap<>(mDeferredJournalChanges);
+        mDeferredJournalChanges.clear();
+        pending.putAll(changes);
+        for (Map.Entry<String, IndexEntry> change : pending.entrySet())
+        {
+            String key = change.getKey();
+            // Only writers in this process need excluding; the change comes from the others.
+            Lock lock = getLock(key).localWriteLock();
+            if (!lock.tryLock())
+            {
+                mDeferredJournalChanges.put(key, change.getValue());
+                continue;
+            }
+            try
+            {
+                applyJournalChange(key, change.getValue());
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies a change another process made to the index. The caller must hold the key's write
+     * lock in this process.
+     *
+     * @param entry the entry of the key, or null if it was removed
+     */
+    private void applyJournalChange(String key, IndexEntry entry)
+    {
+        IndexEntry current = mEntries.get(key);
+        if (entry == null)
+        {
+            if (current != null && mEntries.remove(current.key, current))
+            {
+                mTotalSize.addAndGet(-current.size);
+                mEvictionPolicy.onRemove(current, false);
+            }
+            return;
+        }
+        if (current != null && current.size == entry.size && current.ttl == entry.ttl
+                && current.softTtl == entry.softTtl
+                && current.packLocation == entry.packLocation)
+        {
+            // Already known, e.g. a record this process appended itself.
+            return;
+        }
+        entry.lastAccess = mAccessClock.incrementAndGet();
+        IndexEntry previous = mEntries.put(entry.key, entry);
+        mTotalSize.addAndGet(entry.size - (previous != null ? previous.size : 0));
+        mEvictionPolicy.onWrite(entry);
+    }
+
+    /**
+     * Compacts the journal once enough redundant records have piled up.
+     *
+     * @return true if the journal was rewritten
+     */
+    private boolean compactJournalIfNeeded()
+    {
+        synchronized (mJournal)
+        {
+            // The index must be complete before the journal is rewritten from it.
+            if (!mLoaded || !mJournal.needsCompaction(mEntries.size()))
+            {
+                return false;
+            }
+            return compactJournal();
+        }
+    }
+
+    /**
+     * Rewrites the journal from the in-memory index. Writers may keep going meanwhile: anything
+     * they change after the rewrite has seen it is appended to the new journal.
+     *
+     * @return true if the journal was rewritten
+     */
+    private boolean compactJournal()
+    {
+        synchronized (mJournal)
+        {
+            FileLock lock = lockJournal();
+            try
+            {
+                mJournal.rewrite(mEntries.values(), this);
+                return true;
+            }
+            catch (IOException e)
+            {
+                VolleyLog.d("Failed to compact journal: %s", e.toString());
+                mJournal.delete();
+                return false;
+            }
+            finally
+            {
+                bumpJournalGeneration();
+                unlockJournal(lock);
+            }
+        }
+    }
+
+    /**
+     * Deletes files the index doesn't know about, such as those written right before a crash that
+     * never made it into the journal. Must only run while every file lock is held.
+     */
+    private void deleteUnreferencedFiles()
+    {
+        String[] names = mRootDirectory.list();
+        if (names == null)
+        {
+            return;
+        }
+        Set<String> live = new HashSet<>(mEntries.size() * 2);
+        for (String key : mEntries.keySet())
+        {
+            live.add(getFilenameForKey(key));
+        }
+        for (String name : names)
+        {
+            File file = new File(mRootDirectory, name);
+            // Segments are compacted rather than deleted; see compactSegments().
+            if (!live.contains(name) && !CacheJournal.isJournalFile(file)
+                    && !PackStore.isPackFile(name))
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Works out how much of each segment is dead now that the index is complete, and starts
+     * compacting those worth it.
+     */
+    private void openPacks()
+    {
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        for (IndexEntry entry : mEntries.values())
+        {
+            long location = entry.packLocation;
+            if (location != PackStore.NOT_PACKED)
+            {
+                int segment = PackStore.segmentOf(location);
+                Long live = liveBytes.get(segment);
+                liveBytes.put(segment, (live != null ? live : 0) + entry.size);
+            }
+        }
+        try
+        {
+            mPacks.open(liveBytes);
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Unable to open segments: %s", e.toString());
+            return;
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Compacts segments on a background thread, unless that is already happening.
+     */
+    private void scheduleCompaction()
+    {
+        // Dead bytes are only known once the index is complete.
+        if (!mLoaded || !mCompactionScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        Thread compactor = new Thread("volley-cache-compactor")
+        {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try
+                {
+                    compactSegments();
+                }
+                finally
+                {
+                    mCompactionScheduled.set(false);
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Compacts segments, oldest first, until none has enough dead bytes to be worth it.
+     */
+    @VisibleForTesting
+    void compactSegments()
+    {
+        mCompactionLock.lock();
+        try
+        {
+            PackStore.Segment segment;
+            while ((segment = mPacks.nextCompactionCandidate()) != null)
+            {
+                if (!compactSegment(segment))
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            mCompactionLock.unlock();
+        }
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Copies the live records of a segment to the active one and deletes it. Each entry is moved
+     * under its write lock, so readers see it in one place or the other.
+     *
+     * <p>Tombstones are only needed while an older segment may still hold the record they cancel,
+     * and only until the key is written again, so those are the only ones copied.
+     *
+     * @return false if compaction had to stop
+     */
+    private boolean compactSegment(PackStore.Segment segment)
+    {
+        int clearCount = mClearCount;
+        List<PackStore.Record> records;
+        boolean olderSegments;
+        try
+        {
+            records = mPacks.readRecords(segment.id);
+            olderSegments = mPacks.hasSegmentBefore(segment.id);
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Unable to compact segment %d: %s", segment.id, e.toString());
+            return false;
+        }
+        for (PackStore.Record record : records)
+        {
+            String key;
+            try
+            {
+                key = record.type == PackStore.TYPE_TOMBSTONE
+                        ? new String(record.payload, UTF_8)
+                        : CacheHeader.readHeader(ByteBuffer.wrap(record.payload)).key;
+            }
+            catch (IOException e)
+            {
+                continue;
+            }
+            catch (BufferUnderflowException e)
+            {
+                continue;
+            }
+            StripeWriteLock lock = getLock(key).writeLock();
+            lock.lock();
+            try
+            {
+                if (mClearCount != clearCount)
+                {
+                    return false;
+                }
+                IndexEntry live = mEntries.get(key);
+                if (record.type == PackStore.TYPE_ENTRY)
+                {
+                    if (live != null && live.packLocation == record.location)
+                    {
+                        live.packLocation = mPacks.append(PackStore.TYPE_ENTRY, record.payload);
+                        journalPut(live, true);
+                    }
+                }
+                else if (live == null && olderSegments)
+                {
+                    mPacks.appendTombstone(key);
+                }
+            }
+            catch (IOException e)
+            {
+                VolleyLog.d("Unable to compact segment %d: %s", segment.id, e.toString());
+                return false;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        mPacks.deleteSegment(segment);
+        return true;
+    }
+
+    /**
+     * Reads length bytes from CountingInputStream into byte array.
      *
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @param cis    input stream
+     * @param length number of bytes to read
+     * @throws IOException if fails to read all bytes
      */
-    private String getFilenameForKey(String key)
+    @VisibleForTesting
+    static byte[] streamToBytes(CountingInputStream cis, long length) throws IOException
     {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+        long maxLength = cis.bytesRemaining();
+        // Length cannot be negative or greater than bytes remaining, and must not overflow int.
+        if (length < 0 || length > maxLength || (int) length != length)
+        {
+            throw new IOException("streamToBytes length=" + length + ", maxLength=" + maxLength);
+        }
+        byte[] bytes = new byte[(int) length];
+        new DataInputStream(cis).readFully(bytes);
+        return bytes;
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Copies exactly the given number of bytes from one stream to another.
+     *
+     * @throws EOFException if the input ends early
      */
-    public File getFileForKey(String key)
+    static void copyFully(InputStream in, OutputStream out, long length) throws IOException
     {
-        return new File(mRootDirectory, getFilenameForKey(key));
+        byte[] buffer = new byte[(int) Math.min(length, 8 * 1024)];
+        while (length > 0)
+        {
+            int count = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+            if (count == -1)
+            {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    @VisibleForTesting
+    InputStream createInputStream(File file) throws FileNotFoundException
+    {
+        return new FileInputStream(file);
+    }
+
+    @VisibleForTesting
+    OutputStream createOutputStream(File file) throws FileNotFoundException
+    {
+        return new FileOutputStream(file);
+    }
+
+    @VisibleForTesting
+    FileChannel createReadChannel(File file) throws FileNotFoundException
+    {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    @VisibleForTesting
+    FileChannel createWriteChannel(File file) throws FileNotFoundException
+    {
+        return new RandomAccessFile(file, "rw").getChannel();
     }
 
     /**
-     * Prunes the cache to fit the maximum size.
+     * Lock of a stripe of cache files. In multi-process mode its write lock also takes the
+     * stripe's region of the lock file, excluding writers in other processes, and brings the index
+     * up to date with their changes before its holder goes ahead. Reads are not locked across
+     * processes, as files are only ever replaced whole there.
      */
-    private void pruneIfNeeded()
+    @VisibleForTesting
+    class StripeLock
     {
-        if (mTotalSize < mMaxCacheSizeInBytes)
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        private final StripeWriteLock mWriteLock = new StripeWriteLock(this);
+
+        /**
+         * Region of the lock file, the index of the stripe.
+         */
+        private final int mRegion;
+
+        /**
+         * The lock on the region while the write lock is held. Guarded by the write lock.
+         */
+        private FileLock mFileLock;
+
+        StripeLock(int region)
         {
-            return;
+            mRegion = region;
         }
-        if (VolleyLog.DEBUG)
+
+        Lock readLock()
         {
-            VolleyLog.v("Pruning old cache entries.");
+            return mLock.readLock();
         }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+        StripeWriteLock writeLock()
+        {
+            return mWriteLock;
+        }
+
+        /**
+         * The write lock of this process alone, without the region of the lock file.
+         */
+        Lock localWriteLock()
+        {
+            return mLock.writeLock();
+        }
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext())
+        /**
+         * Called once the write lock has been taken, and not already held by the thread.
+         *
+         * @param wait whether to wait for other processes
+         * @return false if another process holds the region and waiting wasn't allowed
+         */
+        private boolean lockRegion(boolean wait)
         {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted)
+            ProcessLock processLock = mProcessLock;
+            if (processLock == null)
+            {
+                return true;
+            }
+            if (wait)
             {
-                mTotalSize -= e.size;
+                mFileLock = processLock.lock(mRegion);
             }
             else
             {
-                VolleyLog.d(
-                        "Could not delete cache entry for key=%s, filename=%s",
-                        e.key, getFilenameForKey(e.key));
+                try
+                {
+                    mFileLock = processLock.tryLock(mRegion);
+                    if (mFileLock == null)
+                    {
+                        return false;
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Go ahead without it, as a blocking lock would.
+                    VolleyLog.e("Unable to lock stripe %d: %s", mRegion, e.toString());
+                }
             }
-            iterator.remove();
-            prunedFiles++;
+            syncJournal();
+            return true;
+        }
 
-            if (mTotalSize < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR)
+        private void unlockRegion()
+        {
+            ProcessLock processLock = mProcessLock;
+            if (processLock != null)
             {
-                break;
+                processLock.release(mFileLock);
+            }
+            mFileLock = null;
+        }
+    }
+
+    /**
+     * The write lock of a {@link StripeLock}. Reentrant; only the outermost hold takes and releases
+     * the region of the lock file.
+     */
+    private class StripeWriteLock
+    {
+        private final StripeLock mStripe;
+
+        StripeWriteLock(StripeLock stripe)
+        {
+            mStripe = stripe;
+        }
+
+        void lock()
+        {
+            mStripe.mLock.writeLock().lock();
+            if (mStripe.mLock.getWriteHoldCount() == 1)
+            {
+                mStripe.lockRegion(true);
+            }
+        }
+
+        /**
+         * Takes the lock only if neither another thread nor another process holds it.
+         */
+        boolean tryLock()
+        {
+            if (!mStripe.mLock.writeLock().tryLock())
+            {
+                return false;
+            }
+            if (mStripe.mLock.getWriteHoldCount() == 1 && !mStripe.lockRegion(false))
+            {
+                mStripe.mLock.writeLock().unlock();
+                return false;
             }
+            return true;
         }
 
-        if (VolleyLog.DEBUG)
+        void unlock()
         {
-            VolleyLog.v(
-                    "pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+            if (mStripe.mLock.getWriteHoldCount() == 1)
+            {
+                mStripe.unlockRegion();
+            }
+            mStripe.mLock.writeLock().unlock();
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
-     *
-     * @param key   The key to identify the entry by.
-     * @param entry The entry to cache.
+     * The decoded header of a cache file and a buffer over its body.
      */
-    private void putEntry(String key, CacheHeader entry)
+    private static class CachedFile
     {
-        if (!mEntries.containsKey(key))
+        /**
+         * Header as stored in the file, including all response headers.
+         */
+        final CacheHeader header;
+
+        /**
+         * Body of the entry, either backed by an exactly sized array or memory-mapped.
+         */
+        final ByteBuffer body;
+
+        CachedFile(CacheHeader header, ByteBuffer body)
         {
-            mTotalSize += entry.size;
+            this.header = header;
+            this.body = body;
         }
-        else
+
+        Entry toCacheEntry()
+        {
+            byte[] data;
+            if (body.hasArray() && body.arrayOffset() == 0 && body.array().length == body.remaining())
+            {
+                data = body.array();
+            }
+            else
+            {
+                data = new byte[body.remaining()];
+                body.duplicate().get(data);
+            }
+            // The index may have been loaded from the journal, which doesn't keep headers.
+            return header.toCacheEntry(data);
+        }
+
+        /**
+         * Like {@link #toCacheEntry()}, but leaves memory-mapped data where it is. Compressed data
+         * is inflated as the body is read.
+         */
+        Entry toLazyCacheEntry()
         {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+            if (body.hasArray() && !header.isCompressed())
+            {
+                return toCacheEntry();
+            }
+            Entry entry = header.toCacheEntry(null);
+            entry.body = header.isCompressed()
+                    ? new DeflatedBody(body, header.dataLength) : Body.wrap(body);
+            return entry;
         }
-        mEntries.put(key, entry);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Data of a file that is read from disk only once it is consumed, and then kept.
      */
-    private void removeEntry(String key)
+    private class DeferredBody extends Body
     {
-        CacheHeader removed = mEntries.remove(key);
-        if (removed != null)
+        private final String mKey;
+
+        private final long mGeneration;
+
+        private final long mLength;
+
+        private volatile byte[] mData;
+
+        DeferredBody(String key, long generation, long length)
+        {
+            mKey = key;
+            mGeneration = generation;
+            mLength = length;
+        }
+
+        @Override
+        public long length()
+        {
+            return mLength;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException
+        {
+            return new ByteArrayInputStream(toByteArray());
+        }
+
+        @Override
+        public byte[] toByteArray() throws IOException
+        {
+            byte[] data = mData;
+            if (data == null)
+            {
+                data = readDeferred(mKey, mGeneration);
+                mData = data;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Data stored deflated, inflated as it is streamed.
+     */
+    private static class DeflatedBody extends Body
+    {
+        private final Body mCompressed;
+
+        private final long mLength;
+
+        DeflatedBody(ByteBuffer compressed, long length)
+        {
+            mCompressed = Body.wrap(compressed);
+            mLength = length;
+        }
+
+        @Override
+        public long length()
+        {
+            return mLength;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException
+        {
+            InputStream in = mCompressed.openStream();
+            return new InflaterInputStream(in, new Inflater(), INFLATE_CHUNK_SIZE)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    super.close();
+                    // Not ended by InflaterInputStream when passed in.
+                    inf.end();
+                }
+            };
+        }
+    }
+
+    /**
+     * What the index keeps of an entry: its key, where it is stored and how large it is, its TTLs
+     * and how recently it was used. The etag, dates and response headers stay on disk until the
+     * entry is read, so the index doesn't hold on to header lists that lookups never use.
+     */
+    @VisibleForTesting
+    static class IndexEntry implements EvictionPolicy.Candidate
+    {
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        /**
+         * The key that identifies the cache entry.
+         */
+        final String key;
+
+        /**
+         * Identifies the response stored, so that reads deferred from an earlier lookup can tell
+         * whether the entry was replaced since. Unique to each index entry, except that header
+         * rewrites keep the generation of the entry they update, as its data doesn't change.
+         */
+        long generation = GENERATIONS.incrementAndGet();
+
+        /**
+         * Space taken on disk, header included.
+         */
+        final long size;
+
+        /**
+         * TTL for this record.
+         */
+        final long ttl;
+
+        /**
+         * Soft TTL for this record.
+         */
+        final long softTtl;
+
+        /**
+         * Where the entry is stored in a segment, or {@link PackStore#NOT_PACKED} if it has a file
+         * of its own. Changed only under the key's write lock, as compaction moves the entry.
+         */
+        volatile long packLocation;
+
+        /**
+         * Stamp of the last read or write of this entry, used by the eviction policy.
+         */
+        volatile long lastAccess;
+
+        IndexEntry(String key, long size, long ttl, long softTtl, long packLocation)
+        {
+            this.key = key;
+            this.size = size;
+            this.ttl = ttl;
+            this.softTtl = softTtl;
+            this.packLocation = packLocation;
+        }
+
+        /**
+         * Creates the index entry of a header that has just been written or read, along with its
+         * {@link CacheHeader#size} and {@link CacheHeader#packLocation}.
+         */
+        IndexEntry(CacheHeader header)
+        {
+            this(header.key, header.size, header.ttl, header.softTtl, header.packLocation);
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public long getLastAccess()
         {
-            mTotalSize -= removed.size;
+            return lastAccess;
         }
-    }
 
-    /**
-     * Reads length bytes from CountingInputStream into byte array.
-     *
-     * @param cis    input stream
-     * @param length number of bytes to read
-     * @throws IOException if fails to read all bytes
-     */
-    @VisibleForTesting
-    static byte[] streamToBytes(CountingInputStream cis, long length) throws IOException
-    {
-        long maxLength = cis.bytesRemaining();
-        // Length cannot be negative or greater than bytes remaining, and must not overflow int.
-        if (length < 0 || length > maxLength || (int) length != length)
+        /**
+         * True if the entry is stored in a segment rather than a file of its own.
+         */
+        boolean isPacked()
         {
-            throw new IOException("streamToBytes length=" + length + ", maxLength=" + maxLength);
+            return packLocation != PackStore.NOT_PACKED;
         }
-        byte[] bytes = new byte[(int) length];
-        new DataInputStream(cis).readFully(bytes);
-        return bytes;
-    }
-
-    @VisibleForTesting
-    InputStream createInputStream(File file) throws FileNotFoundException
-    {
-        return new FileInputStream(file);
-    }
-
-    @VisibleForTesting
-    OutputStream createOutputStream(File file) throws FileNotFoundException
-    {
-        return new FileOutputStream(file);
     }
 
     /**
@@ -483,7 +3480,82 @@ public class DiskCache implements Cache
     @VisibleForTesting
     static class CacheHeader
     {
-        final String SEPARATOR = "\r\n";
+        /**
+         * The data is deflated (zlib format).
+         */
+        static final int FLAG_DEFLATE = 1;
+
+        /**
+         * All flags this version knows how to read.
+         */
+        private static final int KNOWN_FLAGS = FLAG_DEFLATE;
+
+        /**
+         * Passed to {@link #toBytes(int)} to reserve the default amount of room.
+         */
+        static final int RESERVE_DEFAULT = -1;
+
+        /**
+         * Minimum number of spare bytes reserved in the header region of a new file.
+         */
+        static final int HEADER_SLACK = 128;
+
+        /**
+         * Header regions are padded to a multiple of this, so the body starts on an aligned offset.
+         */
+        static final int HEADER_ALIGNMENT = 256;
+
+        /**
+         * Common response header names, stored in v2 headers as their index rather than spelled
+         * out. Files refer to names by position, so this list may only ever be appended to.
+         */
+        private static final String[] HEADER_NAMES = {
+                "Cache-Control",
+                "Content-Type",
+                "Content-Length",
+                "Content-Encoding",
+                "Date",
+                "ETag",
+                "Expires",
+                "Last-Modified",
+                "Server",
+                "Vary",
+                "Age",
+                "Connection",
+                "Transfer-Encoding",
+                "Accept-Ranges",
+                "Access-Control-Allow-Origin",
+                "Set-Cookie",
+                "Pragma",
+                "Keep-Alive",
+                "Content-Language",
+                "Location",
+                "Strict-Transport-Security",
+                "Via",
+                "X-Content-Type-Options",
+                "X-Frame-Options",
+                "X-XSS-Protection",
+                "X-Android-Received-Millis",
+                "X-Android-Sent-Millis",
+                "X-Android-Response-Source",
+                "X-Android-Selected-Protocol",
+        };
+
+        /**
+         * Code of each dictionary name as spelled in {@link #HEADER_NAMES} and in lower case, as
+         * sent over HTTP/2. Code 0 means the name follows as a string.
+         */
+        private static final Map<String, Integer> HEADER_CODES = new HashMap<>();
+
+        static
+        {
+            for (int i = 0; i < HEADER_NAMES.length; i++)
+            {
+                HEADER_CODES.put(HEADER_NAMES[i], 2 * i + 1);
+                HEADER_CODES.put(HEADER_NAMES[i].toLowerCase(Locale.US), 2 * i + 2);
+            }
+        }
+
         /**
          * The size of the data identified by this CacheHeader on disk (both header and data).
          *
@@ -493,6 +3565,14 @@ public class DiskCache implements Cache
          */
         long size;
 
+        /**
+         * Where the entry is stored in a segment, or {@link PackStore#NOT_PACKED} if it has a file
+         * of its own. Set along with {@link #size} for the {@link IndexEntry}.
+         *
+         * <p>This is not serialized to disk.
+         */
+        long packLocation = PackStore.NOT_PACKED;
+
         /**
          * The key that identifies the cache entry.
          */
@@ -528,13 +3608,31 @@ public class DiskCache implements Cache
          */
         final List<Header> allResponseHeaders;
 
-        private CacheHeader(String key,
-                            String etag,
-                            long serverDate,
-                            long lastModified,
-                            long ttl,
-                            long softTtl,
-                            List<Header> allResponseHeaders)
+        /**
+         * How the data is stored, a combination of the FLAG_* constants. Files in the original
+         * format have none.
+         */
+        int flags;
+
+        /**
+         * Length of the data once decoded. Only meaningful when {@link #flags} is non-zero.
+         */
+        long dataLength;
+
+        /**
+         * Length of the data as written to disk, when it differs from the decoded length.
+         *
+         * <p>This is not serialized to disk.
+         */
+        long storedLength;
+
+        CacheHeader(String key,
+                    String etag,
+                    long serverDate,
+                    long lastModified,
+                    long ttl,
+                    long softTtl,
+                    List<Header> allResponseHeaders)
         {
             this.key = key;
             this.etag = "".equals(etag) ? null : etag;
@@ -577,6 +3675,17 @@ public class DiskCache implements Cache
         static CacheHeader readHeader(CountingInputStream is) throws IOException
         {
             int magic = readInt(is);
+            if (magic == CACHE_MAGIC_V2)
+            {
+                int bodyOffset = readInt(is);
+                if (bodyOffset < 8)
+                {
+                    throw new IOException("bodyOffset=" + bodyOffset);
+                }
+                // The whole header in one read.
+                byte[] fields = streamToBytes(is, bodyOffset - 8);
+                return readFieldsV2(ByteBuffer.wrap(fields), null);
+            }
             if (magic != CACHE_MAGIC)
             {
                 // don't bother deleting, it'll get pruned eventually
@@ -589,11 +3698,159 @@ public class DiskCache implements Cache
             long ttl = readLong(is);
             long softTtl = readLong(is);
             List<Header> allResponseHeaders = readHeaderList(is);
-            readString(is); //separator \n\r, no use but must be read!
+            readString(is); // separator and padding
+            return new CacheHeader(
+                    key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+        }
+
+        private static void checkFlags(int flags) throws IOException
+        {
+            if ((flags & ~KNOWN_FLAGS) != 0)
+            {
+                throw new IOException("Unknown cache flags " + Integer.toHexString(flags));
+            }
+        }
+
+        /**
+         * True if the data on disk is compressed.
+         */
+        boolean isCompressed()
+        {
+            return (flags & FLAG_DEFLATE) != 0;
+        }
+
+        /**
+         * Reads the header from a ByteBuffer and returns a CacheHeader object. On return the
+         * buffer is positioned at the start of the body.
+         *
+         * @param buf The buffer to read from.
+         * @throws IOException              if the header is malformed
+         * @throws BufferUnderflowException if the buffer ends before the header does
+         */
+        static CacheHeader readHeader(ByteBuffer buf) throws IOException
+        {
+            return readHeader(buf, null);
+        }
+
+        /**
+         * Reads the header from a ByteBuffer, taking the key from the caller if it is known.
+         *
+         * @param buf The buffer to read from.
+         * @param key The key the entry is stored under, or null to decode the stored key.
+         * @throws IOException              if the header is malformed
+         * @throws BufferUnderflowException if the buffer ends before the header does
+         */
+        static CacheHeader readHeader(ByteBuffer buf, String key) throws IOException
+        {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            int start = buf.position();
+            int magic = buf.getInt();
+            if (magic == CACHE_MAGIC_V2)
+            {
+                int bodyOffset = buf.getInt();
+                if (bodyOffset < 8)
+                {
+                    throw new IOException("bodyOffset=" + bodyOffset);
+                }
+                if (bodyOffset > buf.limit() - start)
+                {
+                    throw new BufferUnderflowException();
+                }
+                ByteBuffer fields = buf.duplicate();
+                fields.limit(start + bodyOffset);
+                CacheHeader header = readFieldsV2(fields, key);
+                buf.position(start + bodyOffset);
+                return header;
+            }
+            if (magic != CACHE_MAGIC)
+            {
+                // don't bother deleting, it'll get pruned eventually
+                throw new IOException();
+            }
+            if (key != null)
+            {
+                skipString(buf);
+            }
+            else
+            {
+                key = readString(buf);
+            }
+            String etag = readString(buf);
+            long serverDate = buf.getLong();
+            long lastModified = buf.getLong();
+            long ttl = buf.getLong();
+            long softTtl = buf.getLong();
+            List<Header> allResponseHeaders = readHeaderList(buf);
+            skipString(buf); // separator and padding
             return new CacheHeader(
                     key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
         }
 
+        /**
+         * Reads the fields of a v2 header, which follow the magic and body offset.
+         *
+         * @param fields buffer ending where the header region does
+         * @param key    The key the entry is stored under, or null to decode the stored key.
+         */
+        private static CacheHeader readFieldsV2(ByteBuffer fields, String key) throws IOException
+        {
+            try
+            {
+                int flags = readVarInt(fields);
+                checkFlags(flags);
+                long dataLength = readVarLong(fields);
+                if (key != null)
+                {
+                    skipVarString(fields);
+                }
+                else
+                {
+                    key = readVarString(fields);
+                }
+                String etag = readVarString(fields);
+                long serverDate = readZigZagLong(fields);
+                long lastModified = readZigZagLong(fields);
+                long ttl = readZigZagLong(fields);
+                long softTtl = readZigZagLong(fields);
+                int count = readVarInt(fields);
+                List<Header> allResponseHeaders = count == 0
+                        ? Collections.<Header>emptyList()
+                        : new ArrayList<Header>(Math.min(count, 64));
+                for (int i = 0; i < count; i++)
+                {
+                    String name = readHeaderName(fields);
+                    String value = readVarString(fields).intern();
+                    allResponseHeaders.add(new Header(name, value));
+                }
+                CacheHeader header = new CacheHeader(
+                        key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+                header.flags = flags;
+                header.dataLength = dataLength;
+                return header;
+            }
+            catch (BufferUnderflowException e)
+            {
+                // The header region is complete, so it is corrupt rather than cut short.
+                throw new IOException("Malformed cache header");
+            }
+        }
+
+        private static String readHeaderName(ByteBuffer buf) throws IOException
+        {
+            int code = readVarInt(buf);
+            if (code == 0)
+            {
+                return readVarString(buf).intern();
+            }
+            int index = (code - 1) / 2;
+            if (index >= HEADER_NAMES.length)
+            {
+                throw new IOException("Unknown header name code " + code);
+            }
+            String name = HEADER_NAMES[index];
+            return (code - 1) % 2 == 0 ? name : name.toLowerCase(Locale.US).intern();
+        }
+
         /**
          * Creates a cache entry for the specified data.
          */
@@ -612,21 +3869,14 @@ public class DiskCache implements Cache
         }
 
         /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
+         * Writes the contents of this CacheHeader to the specified OutputStream, reserving room
+         * for it to grow by {@link DiskCache#update(String, Entry)}.
          */
         boolean writeHeader(OutputStream os)
         {
             try
             {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeHeaderList(allResponseHeaders, os);
-                writeString(os, SEPARATOR);
+                os.write(toBytes(RESERVE_DEFAULT));
                 os.flush();
                 return true;
             }
@@ -636,6 +3886,86 @@ public class DiskCache implements Cache
                 return false;
             }
         }
+
+        /**
+         * Serializes this CacheHeader in the v2 format, in a single buffer sized up front.
+         *
+         * <p>The header region starts with its own length, so readers skip straight to the body
+         * and any room reserved after the fields is just zeros.
+         *
+         * @param reservedLength the length to pad the header to, or {@link #RESERVE_DEFAULT} to
+         *                       reserve {@link #HEADER_SLACK} bytes rounded up to a multiple of
+         *                       {@link #HEADER_ALIGNMENT}. The result is longer if the header
+         *                       doesn't fit.
+         */
+        byte[] toBytes(int reservedLength) throws IOException
+        {
+            List<Header> headers = allResponseHeaders != null
+                    ? allResponseHeaders : Collections.<Header>emptyList();
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] etagBytes = etag == null ? new byte[0] : etag.getBytes(UTF_8);
+            int headerCount = headers.size();
+            int[] nameCodes = new int[headerCount];
+            byte[][] names = new byte[headerCount][];
+            byte[][] values = new byte[headerCount][];
+
+            int length = 8
+                    + varLongSize(flags)
+                    + varLongSize(dataLength)
+                    + varStringSize(keyBytes)
+                    + varStringSize(etagBytes)
+                    + varLongSize(zigZag(serverDate))
+                    + varLongSize(zigZag(lastModified))
+                    + varLongSize(zigZag(ttl))
+                    + varLongSize(zigZag(softTtl))
+                    + varLongSize(headerCount);
+            for (int i = 0; i < headerCount; i++)
+            {
+                Header header = headers.get(i);
+                Integer code = HEADER_CODES.get(header.getName());
+                if (code != null)
+                {
+                    nameCodes[i] = code;
+                    length += varLongSize(code);
+                }
+                else
+                {
+                    names[i] = header.getName().getBytes(UTF_8);
+                    length += 1 + varStringSize(names[i]);
+                }
+                values[i] = header.getValue().getBytes(UTF_8);
+                length += varStringSize(values[i]);
+            }
+            if (reservedLength == RESERVE_DEFAULT)
+            {
+                reservedLength = length + HEADER_SLACK;
+                reservedLength += HEADER_ALIGNMENT - 1 - (reservedLength - 1) % HEADER_ALIGNMENT;
+            }
+            int bodyOffset = Math.max(length, reservedLength);
+
+            ByteBuffer buf = ByteBuffer.allocate(bodyOffset).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(CACHE_MAGIC_V2);
+            buf.putInt(bodyOffset);
+            writeVarLong(buf, flags);
+            writeVarLong(buf, dataLength);
+            writeVarString(buf, keyBytes);
+            writeVarString(buf, etagBytes);
+            writeVarLong(buf, zigZag(serverDate));
+            writeVarLong(buf, zigZag(lastModified));
+            writeVarLong(buf, zigZag(ttl));
+            writeVarLong(buf, zigZag(softTtl));
+            writeVarLong(buf, headerCount);
+            for (int i = 0; i < headerCount; i++)
+            {
+                writeVarLong(buf, nameCodes[i]);
+                if (nameCodes[i] == 0)
+                {
+                    writeVarString(buf, names[i]);
+                }
+                writeVarString(buf, values[i]);
+            }
+            return buf.array();
+        }
     }
 
     @VisibleForTesting
@@ -709,10 +4039,8 @@ public class DiskCache implements Cache
 
     static void writeInt(OutputStream os, int n) throws IOException
     {
-        os.write((n >> 0) & 0xff);
-        os.write((n >> 8) & 0xff);
-        os.write((n >> 16) & 0xff);
-        os.write((n >> 24) & 0xff);
+        byte[] b = {(byte) n, (byte) (n >> 8), (byte) (n >> 16), (byte) (n >> 24)};
+        os.write(b, 0, b.length);
     }
 
     static int readInt(InputStream is) throws IOException
@@ -727,14 +4055,12 @@ public class DiskCache implements Cache
 
     static void writeLong(OutputStream os, long n) throws IOException
     {
-        os.write((byte) (n >>> 0));
-        os.write((byte) (n >>> 8));
-        os.write((byte) (n >>> 16));
-        os.write((byte) (n >>> 24));
-        os.write((byte) (n >>> 32));
-        os.write((byte) (n >>> 40));
-        os.write((byte) (n >>> 48));
-        os.write((byte) (n >>> 56));
+        byte[] b = new byte[8];
+        for (int i = 0; i < 8; i++)
+        {
+            b[i] = (byte) (n >>> (8 * i));
+        }
+        os.write(b, 0, b.length);
     }
 
     static long readLong(InputStream is) throws IOException
@@ -765,6 +4091,157 @@ public class DiskCache implements Cache
         return new String(b, Charset.forName("UTF-8"));
     }
 
+    static String readString(ByteBuffer buf) throws IOException
+    {
+        int length = readStringLength(buf);
+        String s;
+        if (buf.hasArray())
+        {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF_8);
+            buf.position(buf.position() + length);
+        }
+        else
+        {
+            byte[] b = new byte[length];
+            buf.get(b);
+            s = new String(b, UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Advances the buffer past a string without decoding it.
+     */
+    static void skipString(ByteBuffer buf) throws IOException
+    {
+        int length = readStringLength(buf);
+        buf.position(buf.position() + length);
+    }
+
+    private static int readStringLength(ByteBuffer buf) throws IOException
+    {
+        long n = buf.getLong();
+        if (n < 0 || n > Integer.MAX_VALUE)
+        {
+            throw new IOException("readString length=" + n);
+        }
+        if (n > buf.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        return (int) n;
+    }
+
+    /**
+     * Number of bytes {@link #writeVarLong(ByteBuffer, long)} takes for the given value.
+     */
+    static int varLongSize(long n)
+    {
+        int size = 1;
+        while ((n & ~0x7FL) != 0)
+        {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int varStringSize(byte[] b)
+    {
+        return varLongSize(b.length) + b.length;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint: seven bits per byte, low bits first, with the high bit set
+     * on all but the last byte.
+     */
+    static void writeVarLong(ByteBuffer buf, long n)
+    {
+        while ((n & ~0x7FL) != 0)
+        {
+            buf.put((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        buf.put((byte) n);
+    }
+
+    static long readVarLong(ByteBuffer buf) throws IOException
+    {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = buf.get();
+            n |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+            {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int readVarInt(ByteBuffer buf) throws IOException
+    {
+        long n = readVarLong(buf);
+        if (n < 0 || n > Integer.MAX_VALUE)
+        {
+            throw new IOException("Varint out of range: " + n);
+        }
+        return (int) n;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small negative numbers stay short as varints.
+     */
+    private static long zigZag(long n)
+    {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long readZigZagLong(ByteBuffer buf) throws IOException
+    {
+        long n = readVarLong(buf);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarString(ByteBuffer buf, byte[] b)
+    {
+        writeVarLong(buf, b.length);
+        buf.put(b);
+    }
+
+    static String readVarString(ByteBuffer buf) throws IOException
+    {
+        int length = readVarInt(buf);
+        if (length > buf.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        String s;
+        if (buf.hasArray())
+        {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF_8);
+            buf.position(buf.position() + length);
+        }
+        else
+        {
+            byte[] b = new byte[length];
+            buf.get(b);
+            s = new String(b, UTF_8);
+        }
+        return s;
+    }
+
+    private static void skipVarString(ByteBuffer buf) throws IOException
+    {
+        int length = readVarInt(buf);
+        if (length > buf.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        buf.position(buf.position() + length);
+    }
+
     static void writeHeaderList(List<Header> headers, OutputStream os) throws IOException
     {
         if (headers != null)
@@ -798,4 +4275,21 @@ public class DiskCache implements Cache
         }
         return result;
     }
+
+    static List<Header> readHeaderList(ByteBuffer buf) throws IOException
+    {
+        int size = buf.getInt();
+        if (size < 0)
+        {
+            throw new IOException("readHeaderList size=" + size);
+        }
+        List<Header> result = (size == 0) ? Collections.<Header>emptyList() : new ArrayList<Header>();
+        for (int i = 0; i < size; i++)
+        {
+            String name = readString(buf).intern();
+            String value = readString(buf).intern();
+            result.add(new Header(name, value));
+        }
+        return result;
+    }
 }
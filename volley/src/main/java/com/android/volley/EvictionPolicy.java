@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which entries {@link DiskCache} evicts once it grows over its maximum size.
+ *
+ * <p>The cache reports every access, write and removal, and when it has to prune, hands the policy
+ * a snapshot of its entries to put in eviction order. The cache then evicts from the front of that
+ * list until it is back under its low water mark. Callbacks come from many threads at once, so
+ * implementations must be thread safe.
+ */
+public interface EvictionPolicy
+{
+    /**
+     * Called when an entry is read from the cache.
+     */
+    void onAccess(Candidate entry);
+
+    /**
+     * Called when an entry is written to the cache, possibly replacing an older version.
+     */
+    void onWrite(Candidate entry);
+
+    /**
+     * Called when an entry leaves the cache.
+     *
+     * @param evicted true if it was evicted to make room, false if it was removed or expired
+     */
+    void onRemove(Candidate entry, boolean evicted);
+
+    /**
+     * Called when the whole cache is cleared.
+     */
+    void onClear();
+
+    /**
+     * Sorts the given entries in place so that those to be evicted first come first.
+     */
+    <T extends Candidate> void sortForEviction(List<T> entries);
+
+    /**
+     * What a policy gets to know about a cached entry.
+     */
+    interface Candidate
+    {
+        String getKey();
+
+        /**
+         * Size of the entry on disk, in bytes.
+         */
+        long getSize();
+
+        /**
+         * Stamp of the last read or write of the entry; larger is more recent.
+         */
+        long getLastAccess();
+    }
+
+    /**
+     * Orders candidates from least to most recently used.
+     */
+    Comparator<Candidate> RECENCY_ORDER = new Comparator<Candidate>()
+    {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs)
+        {
+            long l = lhs.getLastAccess();
+            long r = rhs.getLastAccess();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    // -----------------------------------------------------------------
+    // - Least recently used
+    // -----------------------------------------------------------------
+
+    /**
+     * Evicts the least recently used entries first. The default.
+     */
+    final class LruPolicy implements EvictionPolicy
+    {
+        @Override
+        public void onAccess(Candidate entry)
+        {
+        }
+
+        @Override
+        public void onWrite(Candidate entry)
+        {
+        }
+
+        @Override
+        public void onRemove(Candidate entry, boolean evicted)
+        {
+        }
+
+        @Override
+        public void onClear()
+        {
+        }
+
+        @Override
+        public <T extends Candidate> void sortForEviction(List<T> entries)
+        {
+            Collections.sort(entries, RECENCY_ORDER);
+        }
+    }
+
+    // -----------------------------------------------------------------
+    // - W-TinyLFU
+    // -----------------------------------------------------------------
+
+    /**
+     * Evicts by how often entries are used, so a burst of one-off entries such as a scan through
+     * a gallery of images doesn't flush small, frequently used responses.
+     *
+     * <p>Access frequencies are estimated with a count-min sketch that ages by halving all counters
+     * periodically. The most recently used entries form a small window that is always kept, so new
+     * entries get a chance to build up a frequency. Beyond the window, the least frequently used
+     * entries go first, and among equally frequent ones the least recently used. This is the
+     * admission rule of W-TinyLFU applied at pruning time: an entry leaving the window only stays
+     * if it is used more often than what it competes with.
+     */
+    final class TinyLfuPolicy implements EvictionPolicy
+    {
+        /**
+         * Number of entries the sketch is sized for unless told otherwise.
+         */
+        private static final int DEFAULT_EXPECTED_ENTRIES = 1024;
+
+        /**
+         * Share of the entries, by recency, that is protected from frequency based eviction.
+         */
+        private static final float WINDOW_FRACTION = 0.01f;
+
+        private final FrequencySketch mSketch;
+
+        public TinyLfuPolicy()
+        {
+            this(DEFAULT_EXPECTED_ENTRIES);
+        }
+
+        /**
+         * @param expectedEntries roughly how many entries the cache holds; sizes the sketch
+         */
+        public TinyLfuPolicy(int expectedEntries)
+        {
+            mSketch = new FrequencySketch(expectedEntries);
+        }
+
+        @Override
+        public void onAccess(Candidate entry)
+        {
+            mSketch.increment(entry.getKey());
+        }
+
+        @Override
+        public void onWrite(Candidate entry)
+        {
+            mSketch.increment(entry.getKey());
+        }
+
+        @Override
+        public void onRemove(Candidate entry, boolean evicted)
+        {
+            // Frequencies outlive the entries, so a popular entry that comes back is kept.
+        }
+
+        @Override
+        public void onClear()
+        {
+            mSketch.clear();
+        }
+
+        @Override
+        public <T extends Candidate> void sortForEviction(List<T> entries)
+        {
+            if (entries.isEmpty())
+            {
+                return;
+            }
+            Collections.sort(entries, RECENCY_ORDER);
+            int windowStart = entries.size() - Math.max(1, (int) (entries.size() * WINDOW_FRACTION));
+            List<T> main = new ArrayList<>(entries.subList(0, windowStart));
+            List<T> window = new ArrayList<>(entries.subList(windowStart, entries.size()));
+
+            final Map<Candidate, Integer> frequencies = new IdentityHashMap<>(main.size() * 2);
+            for (T entry : main)
+            {
+                frequencies.put(entry, mSketch.frequency(entry.getKey()));
+            }
+            // Stable, so equally frequent entries stay in recency order.
+            Collections.sort(main, new Comparator<Candidate>()
+            {
+                @Override
+                public int compare(Candidate lhs, Candidate rhs)
+                {
+                    return frequencies.get(lhs) - frequencies.get(rhs);
+                }
+            });
+            entries.clear();
+            entries.addAll(main);
+            entries.addAll(window);
+        }
+    }
+
+    // -----------------------------------------------------------------
+    // - Greedy Dual Size Frequency
+    // -----------------------------------------------------------------
+
+    /**
+     * Evicts by the value of keeping an entry relative to the space it takes, so one large entry
+     * goes before many small ones that are used as often.
+     *
+     * <p>Implements GreedyDual-Size-Frequency with a uniform cost: each entry is given the priority
+     * {@code L + frequency / size}, and the entry with the lowest priority is evicted first. L is
+     * the priority of the last evicted entry, which ages entries that haven't been used since it
+     * was lower.
+     */
+    final class GdsfPolicy implements EvictionPolicy
+    {
+        /**
+         * Per key usage, for the entries currently cached. Guarded by this.
+         */
+        private final Map<String, Priority> mPriorities = new HashMap<>();
+
+        /**
+         * The aging term L. Guarded by this.
+         */
+        private double mInflation;
+
+        @Override
+        public synchronized void onAccess(Candidate entry)
+        {
+            touch(entry);
+        }
+
+        @Override
+        public synchronized void onWrite(Candidate entry)
+        {
+            touch(entry);
+        }
+
+        @Override
+        public synchronized void onRemove(Candidate entry, boolean evicted)
+        {
+            Priority priority = mPriorities.remove(entry.getKey());
+            if (evicted && priority != null)
+            {
+                mInflation = Math.max(mInflation, priority.value);
+            }
+        }
+
+        @Override
+        public synchronized void onClear()
+        {
+            mPriorities.clear();
+            mInflation = 0;
+        }
+
+        @Override
+        public synchronized <T extends Candidate> void sortForEviction(List<T> entries)
+        {
+            final Map<Candidate, Double> values = new IdentityHashMap<>(entries.size() * 2);
+            for (T entry : entries)
+            {
+                Priority priority = mPriorities.get(entry.getKey());
+                values.put(entry, priority != null ? priority.value : mInflation);
+            }
+            Collections.sort(entries, RECENCY_ORDER);
+            // Stable, so entries of equal priority go least recently used first.
+            Collections.sort(entries, new Comparator<Candidate>()
+            {
+                @Override
+                public int compare(Candidate lhs, Candidate rhs)
+                {
+                    return Double.compare(values.get(lhs), values.get(rhs));
+                }
+            });
+        }
+
+        private void touch(Candidate entry)
+        {
+            Priority priority = mPriorities.get(entry.getKey());
+            if (priority == null)
+            {
+                priority = new Priority();
+                mPriorities.put(entry.getKey(), priority);
+            }
+            priority.frequency++;
+            priority.value = mInflation + (double) priority.frequency / Math.max(1, entry.getSize());
+        }
+
+        private static final class Priority
+        {
+            int frequency;
+
+            double value;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Count-min sketch estimating how often keys have been used recently, for {@link
+ * EvictionPolicy.TinyLfuPolicy}.
+ *
+ * <p>Each key maps to one small counter in each of a few rows; its estimate is the smallest of
+ * them, which can only be too high when keys collide in every row. Counters saturate at 15, and
+ * once enough increments have been made all counters are halved, so old popularity fades.
+ */
+class FrequencySketch
+{
+    /**
+     * Number of rows, each indexed by a different hash of the key.
+     */
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * Odd multipliers deriving each row's hash from the key's hash code.
+     */
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    /**
+     * Counters, row after row. Guarded by this.
+     */
+    private final byte[] mCounters;
+
+    /**
+     * Shift taking the top bits of a 32 bit hash as a column index.
+     */
+    private final int mShift;
+
+    private final int mWidth;
+
+    /**
+     * Number of increments after which all counters are halved.
+     */
+    private final int mSampleSize;
+
+    /**
+     * Increments since the last halving. Guarded by this.
+     */
+    private int mAdditions;
+
+    /**
+     * @param expectedEntries roughly how many distinct keys are tracked at a time
+     */
+    FrequencySketch(int expectedEntries)
+    {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        mWidth = width;
+        mShift = 32 - Integer.numberOfTrailingZeros(width);
+        mCounters = new byte[DEPTH * width];
+        mSampleSize = 10 * width;
+    }
+
+    /**
+     * Records one use of the given key.
+     */
+    synchronized void increment(String key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            int index = indexOf(hash, row);
+            if (mCounters[index] < MAX_COUNT)
+            {
+                mCounters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize)
+        {
+            age();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent uses of the given key, at most 15.
+     */
+    synchronized int frequency(String key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            frequency = Math.min(frequency, mCounters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    synchronized void clear()
+    {
+        for (int i = 0; i < mCounters.length; i++)
+        {
+            mCounters[i] = 0;
+        }
+        mAdditions = 0;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void age()
+    {
+        for (int i = 0; i < mCounters.length; i++)
+        {
+            mCounters[i] >>= 1;
+        }
+        mAdditions /= 2;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        return row * mWidth + ((hash * SEEDS[row]) >>> mShift);
+    }
+
+    /**
+     * Mixes the bits of a hash code, as many keys share long prefixes.
+     */
+    private static int spread(int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
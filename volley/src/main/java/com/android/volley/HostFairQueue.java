@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The network queue of a {@link RequestQueue}, which takes turns between the hosts of its requests
+ * and limits how many requests to one host are in flight at once.
+ *
+ * <p>Requests are kept in one {@link PriorityQueue} per host, so {@link Request#compareTo} orders
+ * the requests of a host as before. Each take picks the host whose next request has the highest
+ * {@link Request.Priority}, going round the hosts for equal priorities, so that a burst of
+ * requests to one host doesn't hold up those to others. Hosts at their limit are skipped until
+ * one of their requests is {@link #release(Request) released}, which the {@link RequestQueue} does
+ * once the network dispatch of a request has finished.
+ *
+ * <p>Iterators are snapshots and don't support removal.
+ */
+class HostFairQueue extends AbstractQueue<Request<?>> implements BlockingQueue<Request<?>>
+{
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Signalled when a request may have become available to take.
+     */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /**
+     * Hosts with requests waiting or in flight, by name. Guarded by mLock.
+     */
+    private final Map<String, Host> mHosts = new HashMap<>();
+
+    /**
+     * Hosts with requests waiting, the one served longest ago first. Guarded by mLock.
+     */
+    private final ArrayDeque<Host> mTurns = new ArrayDeque<>();
+
+    /**
+     * The host of each request taken and not released yet. Guarded by mLock.
+     */
+    private final Map<Request<?>, Host> mInFlight = new IdentityHashMap<>();
+
+    /**
+     * Number of requests waiting. Guarded by mLock.
+     */
+    private int mCount;
+
+    /**
+     * The most requests to one host in flight at once. Guarded by mLock.
+     */
+    private int mMaxPerHost = Integer.MAX_VALUE;
+
+    /**
+     * Sets the most requests to one host taken from this queue and not released yet. Lowering it
+     * doesn't affect requests already in flight.
+     */
+    void setMaxPerHost(int maxPerHost)
+    {
+        if (maxPerHost <= 0)
+        {
+            throw new IllegalArgumentException("maxPerHost must be positive: " + maxPerHost);
+        }
+        mLock.lock();
+        try
+        {
+            mMaxPerHost = maxPerHost;
+            mAvailable.signalAll();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Frees the slot of a request taken from this queue, so that another request to its host can
+     * be taken. Requests not taken from this queue, or already released, are ignored.
+     */
+    void release(Request<?> request)
+    {
+        mLock.lock();
+        try
+        {
+            Host host = mInFlight.remove(request);
+            if (host == null)
+            {
+                return;
+            }
+            host.inFlight--;
+            if (host.isIdle())
+            {
+                mHosts.remove(host.name);
+            }
+            else
+            {
+                mAvailable.signalAll();
+            }
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(@NonNull Request<?> request)
+    {
+        String name = hostOf(request);
+        mLock.lock();
+        try
+        {
+            Host host = mHosts.get(name);
+            if (host == null)
+            {
+                host = new Host(name);
+                mHosts.put(name, host);
+            }
+            if (host.waiting.isEmpty())
+            {
+                mTurns.addLast(host);
+            }
+            host.waiting.add(request);
+            mCount++;
+            mAvailable.signal();
+            return true;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@NonNull Request<?> request)
+    {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request,
+                         long timeout,
+                         @NonNull TimeUnit unit)
+    {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> poll()
+    {
+        mLock.lock();
+        try
+        {
+            return takeNext();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Request<?> take() throws InterruptedException
+    {
+        mLock.lockInterruptibly();
+        try
+        {
+            Request<?> request;
+            while ((request = takeNext()) == null)
+            {
+                mAvailable.await();
+            }
+            return request;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout,
+                           @NonNull TimeUnit unit) throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try
+        {
+            Request<?> request;
+            while ((request = takeNext()) == null)
+            {
+                if (nanos <= 0)
+                {
+                    return null;
+                }
+                nanos = mAvailable.awaitNanos(nanos);
+            }
+            return request;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> peek()
+    {
+        mLock.lock();
+        try
+        {
+            Host host = nextHost();
+            return host != null ? host.waiting.peek() : null;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        mLock.lock();
+        try
+        {
+            return mCount;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Request<?>> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Request<?>> c,
+                       int maxElements)
+    {
+        mLock.lock();
+        try
+        {
+            int drained = 0;
+            Request<?> request;
+            while (drained < maxElements && (request = takeNext()) != null)
+            {
+                c.add(request);
+                drained++;
+            }
+            return drained;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a waiting request. Requests already taken keep their slot until released.
+     */
+    @Override
+    public boolean remove(Object o)
+    {
+        if (!(o instanceof Request))
+        {
+            return false;
+        }
+        Request<?> request = (Request<?>) o;
+        String name = hostOf(request);
+        mLock.lock();
+        try
+        {
+            Host host = mHosts.get(name);
+            if (host == null || !host.waiting.remove(request))
+            {
+                return false;
+            }
+            mCount--;
+            if (host.waiting.isEmpty())
+            {
+                mTurns.remove(host);
+                if (host.isIdle())
+                {
+                    mHosts.remove(name);
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all waiting requests. Requests already taken keep their slot until released.
+     */
+    @Override
+    public void clear()
+    {
+        mLock.lock();
+        try
+        {
+            for (Host host : mTurns)
+            {
+                host.waiting.clear();
+                if (host.isIdle())
+                {
+                    mHosts.remove(host.name);
+                }
+            }
+            mTurns.clear();
+            mCount = 0;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Iterator<Request<?>> iterator()
+    {
+        List<Request<?>> snapshot = new ArrayList<>();
+        mLock.lock();
+        try
+        {
+            for (Host host : mTurns)
+            {
+                snapshot.addAll(host.waiting);
+            }
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Returns the host whose turn it is: of the hosts below their limit, the one whose next request
+     * has the highest priority, or that was served longest ago among equals. The caller must hold
+     * mLock.
+     */
+    private Host nextHost()
+    {
+        Host next = null;
+        for (Host host : mTurns)
+        {
+            if (host.inFlight < mMaxPerHost
+                    && (next == null || priorityOf(host) > priorityOf(next)))
+            {
+                next = host;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Takes the next request, or returns null if every host with requests waiting is at its limit.
+     * The caller must hold mLock.
+     */
+    private Request<?> takeNext()
+    {
+        Host host = nextHost();
+        if (host == null)
+        {
+            return null;
+        }
+        Request<?> request = host.waiting.poll();
+        mCount--;
+        // Its turn is over; it goes to the back if it has more requests.
+        mTurns.remove(host);
+        if (!host.waiting.isEmpty())
+        {
+            mTurns.addLast(host);
+        }
+        host.inFlight++;
+        mInFlight.put(request, host);
+        return request;
+    }
+
+    private static int priorityOf(Host host)
+    {
+        return host.waiting.peek().getPriority().ordinal();
+    }
+
+    /**
+     * Returns the name of the host a request goes to, or an empty string if it has none.
+     */
+    private static String hostOf(Request<?> request)
+    {
+        String url = request.getUrl();
+        if (!TextUtils.isEmpty(url))
+        {
+            String host = Uri.parse(url).getHost();
+            if (host != null)
+            {
+                return host;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * The requests to one host.
+     */
+    private static class Host
+    {
+        final String name;
+
+        /**
+         * Requests waiting to be taken, in the order of {@link Request#compareTo}.
+         */
+        final PriorityQueue<Request<?>> waiting = new PriorityQueue<>();
+
+        /**
+         * Number of requests taken and not released yet.
+         */
+        int inFlight;
+
+        Host(String name)
+        {
+            this.name = name;
+        }
+
+        boolean isIdle()
+        {
+            return waiting.isEmpty() && inFlight == 0;
+        }
+    }
+}
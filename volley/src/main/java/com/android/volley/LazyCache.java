@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} that can return entries without reading their data up front.
+ *
+ * <p>Implementing this is optional; callers check for it and fall back to {@link
+ * Cache#get(String)} for caches that don't.
+ */
+public interface LazyCache extends Cache
+{
+    /**
+     * Retrieves an entry from the cache without necessarily reading its data. The returned entry
+     * may have a null {@link Entry#data} and a {@link Entry#body} instead, which large entries can
+     * be consumed from incrementally. Use {@link Entry#getData()} where an array is needed.
+     *
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    Entry getLazy(String key);
+
+    /**
+     * Retrieves the metadata of an entry, such as its TTLs and validators, without reading its
+     * data up front. Where the data isn't returned along with the metadata, the entry has a
+     * {@link Entry#body} that reads it only once it is consumed, which fails with an
+     * {@link EntryReplacedException} if the entry was replaced or removed in the meantime.
+     *
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    Entry getMetadata(String key);
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Cache} keeping recently used entries in memory in front of another cache, typically a
+ * {@link DiskCache}.
+ *
+ * <p>The memory tier is an LRU bounded by the total size of the entries' data. Entries larger than
+ * the admission limit are never kept in memory. Entries read from the wrapped cache are promoted
+ * into memory. All writes go through to the wrapped cache, and the memory tier is updated to
+ * match, so it never holds anything newer or older than what was last written.
+ */
+public class MemoryCache implements LazyCache, StatsCache
+{
+    /**
+     * Number of locks writes are spread over.
+     */
+    private static final int LOCK_STRIPES = 16;
+
+    private static final int READ_DATA = 0;
+
+    private static final int READ_LAZY = 1;
+
+    private static final int READ_METADATA = 2;
+
+    /**
+     * The cache behind the memory tier.
+     */
+    private final Cache mDelegate;
+
+    /**
+     * Maximum total size of the data held in memory, in bytes.
+     */
+    private final int mMaxSizeInBytes;
+
+    /**
+     * Entries with more data than this are not kept in memory.
+     */
+    private final int mMaxEntrySizeInBytes;
+
+    /**
+     * Entries held in memory, in access order. Guarded by itself.
+     */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * Total size of the data held in memory. Guarded by {@link #mEntries}.
+     */
+    private long mSizeInBytes;
+
+    /**
+     * Writes to a key are serialized on one of these, so the memory tier and the wrapped cache
+     * see them in the same order.
+     */
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * Bumped by every write under the matching lock. A read that went to the wrapped cache only
+     * promotes its result if no write happened in between, so it can't resurrect stale data.
+     */
+    private final AtomicLongArray mWriteCounts = new AtomicLongArray(LOCK_STRIPES);
+
+    /**
+     * Lookups answered from memory, which never reach the wrapped cache.
+     */
+    private final CacheStats.Counter mStats = new CacheStats.Counter();
+
+    /**
+     * Creates a memory tier admitting entries of up to an eighth of its size.
+     *
+     * @param delegate       the cache behind the memory tier
+     * @param maxSizeInBytes maximum total size of the data held in memory
+     */
+    public MemoryCache(Cache delegate,
+                       int maxSizeInBytes)
+    {
+        this(delegate, maxSizeInBytes, maxSizeInBytes / 8);
+    }
+
+    /**
+     * @param delegate            the cache behind the memory tier
+     * @param maxSizeInBytes      maximum total size of the data held in memory
+     * @param maxEntrySizeInBytes entries with more data than this are only kept in the delegate
+     */
+    public MemoryCache(Cache delegate,
+                       int maxSizeInBytes,
+                       int maxEntrySizeInBytes)
+    {
+        mDelegate = delegate;
+        mMaxSizeInBytes = maxSizeInBytes;
+        mMaxEntrySizeInBytes = Math.min(maxEntrySizeInBytes, maxSizeInBytes);
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            mLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Entry get(String key)
+    {
+        return get(key, READ_DATA);
+    }
+
+    /**
+     * Entries held in memory are returned with their data. Lazily read entries from the wrapped
+     * cache are promoted only if they came with their data.
+     */
+    @Override
+    public Entry getLazy(String key)
+    {
+        return get(key, READ_LAZY);
+    }
+
+    /**
+     * Entries held in memory are returned with their data, as reading it costs nothing.
+     */
+    @Override
+    public Entry getMetadata(String key)
+    {
+        return get(key, READ_METADATA);
+    }
+
+    /**
+     * @param read one of the READ_* constants, saying how to read entries from the wrapped cache
+     */
+    private Entry get(String key, int read)
+    {
+        synchronized (mEntries)
+        {
+            Entry entry = mEntries.get(key);
+            if (entry != null)
+            {
+                mStats.recordHit(key);
+                mStats.recordRead(key, entry.data.length);
+                return entry.copy();
+            }
+        }
+        int stripe = getStripe(key);
+        long writeCount = mWriteCounts.get(stripe);
+        Entry entry = readDelegate(key, read);
+        if (entry != null && isAdmitted(entry))
+        {
+            synchronized (mLocks[stripe])
+            {
+                if (mWriteCounts.get(stripe) == writeCount)
+                {
+                    putInMemory(key, entry.copy());
+                }
+            }
+        }
+        return entry;
+    }
+
+    private Entry readDelegate(String key, int read)
+    {
+        if (read == READ_DATA || !(mDelegate instanceof LazyCache))
+        {
+            return mDelegate.get(key);
+        }
+        LazyCache delegate = (LazyCache) mDelegate;
+        return read == READ_LAZY ? delegate.getLazy(key) : delegate.getMetadata(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry)
+    {
+        int stripe = getStripe(key);
+        synchronized (mLocks[stripe])
+        {
+            mWriteCounts.incrementAndGet(stripe);
+            mDelegate.put(key, entry);
+            storeInMemory(key, entry);
+        }
+    }
+
+    @Override
+    public void update(String key, Entry entry)
+    {
+        int stripe = getStripe(key);
+        synchronized (mLocks[stripe])
+        {
+            mWriteCounts.incrementAndGet(stripe);
+            mDelegate.update(key, entry);
+            storeInMemory(key, entry);
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire)
+    {
+        int stripe = getStripe(key);
+        synchronized (mLocks[stripe])
+        {
+            mWriteCounts.incrementAndGet(stripe);
+            mDelegate.invalidate(key, fullExpire);
+            synchronized (mEntries)
+            {
+                Entry entry = mEntries.get(key);
+                if (entry != null)
+                {
+                    // Held entries are never handed out, so they can be expired in place.
+                    entry.softTtl = 0;
+                    if (fullExpire)
+                    {
+                        entry.ttl = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        int stripe = getStripe(key);
+        synchronized (mLocks[stripe])
+        {
+            mWriteCounts.incrementAndGet(stripe);
+            mDelegate.remove(key);
+            removeFromMemory(key);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        mDelegate.initialize();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            mWriteCounts.incrementAndGet(i);
+        }
+        mDelegate.clear();
+        synchronized (mEntries)
+        {
+            mEntries.clear();
+            mSizeInBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the stats of the wrapped cache, with the hits answered from memory added.
+     */
+    @Override
+    public CacheStats getStats()
+    {
+        CacheStats stats = mStats.snapshot();
+        return mDelegate instanceof StatsCache
+                ? stats.plus(((StatsCache) mDelegate).getStats()) : stats;
+    }
+
+    /**
+     * Returns the total size of the data currently held in memory.
+     */
+    @VisibleForTesting
+    long getSizeInBytes()
+    {
+        synchronized (mEntries)
+        {
+            return mSizeInBytes;
+        }
+    }
+
+    private int getStripe(String key)
+    {
+        return (key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+
+    private boolean isAdmitted(Entry entry)
+    {
+        return entry.data != null && entry.data.length <= mMaxEntrySizeInBytes;
+    }
+
+    /**
+     * Mirrors a write into memory; an entry that is too large drops any older version instead.
+     */
+    private void storeInMemory(String key, Entry entry)
+    {
+        if (isAdmitted(entry))
+        {
+            putInMemory(key, entry.copy());
+        }
+        else
+        {
+            removeFromMemory(key);
+        }
+    }
+
+    private void putInMemory(String key, Entry entry)
+    {
+        synchronized (mEntries)
+        {
+            Entry old = mEntries.put(key, entry);
+            mSizeInBytes += entry.data.length - (old != null ? old.data.length : 0);
+            trimToSize();
+        }
+    }
+
+    private void removeFromMemory(String key)
+    {
+        synchronized (mEntries)
+        {
+            Entry old = mEntries.remove(key);
+            if (old != null)
+            {
+                mSizeInBytes -= old.data.length;
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the memory tier fits its budget.
+     */
+    private void trimToSize()
+    {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSizeInBytes > mMaxSizeInBytes && iterator.hasNext())
+        {
+            mSizeInBytes -= iterator.next().data.length;
+            iterator.remove();
+        }
+    }
+}
@@ -141,14 +141,8 @@ public class NetworkDispatcher extends Thread
         request.sendEvent(RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_STARTED);
         try
         {
-            request.addMarker("network-queue-take");
-
-            // If the request was cancelled already, do not perform the
-            // network request.
-            if (request.isCanceled())
+            if (discardIfCanceled(request))
             {
-                request.finish("network-discard-cancelled");
-                request.notifyListenerResponseNotUsable();
                 return;
             }
 
@@ -156,56 +150,15 @@ public class NetworkDispatcher extends Thread
 
             // Perform the network request.
             NetworkResponse networkResponse = mNetwork.performRequest(request);
-            request.addMarker("network-http-complete");
-
-            // If the server returned 304 AND we delivered a response already,
-            // we're done -- don't deliver a second identical response.
-            if (networkResponse.notModified && request.hasHadResponseDelivered())
-            {
-                request.finish("not-modified");
-                request.notifyListenerResponseNotUsable();
-                return;
-            }
-
-            // Parse the response here on the worker thread.
-            Response<?> response = request.parseNetworkResponse(networkResponse);
-            request.addMarker("network-parse-complete");
-
-            // Write to cache if applicable.
-            // TODO: Only update cache metadata instead of entire record for 304s.
-            // FIXME:
-            if (request.shouldCache() && response.cacheEntry != null)
-            {
-                if (networkResponse.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED)
-                {
-                    mCache.update(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-header-written");
-                }
-                else
-                {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
-            }
-
-            // Post the response back.
-            request.markDelivered();
-            mDelivery.postResponse(request, response);
-            request.notifyListenerResponseReceived(response);
+            processResponse(request, networkResponse);
         }
         catch (VolleyError volleyError)
         {
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            parseAndDeliverNetworkError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
+            processError(request, volleyError, startTimeMs);
         }
         catch (Exception e)
         {
-            VolleyLog.e(e, "Unhandled exception %s", e.toString());
-            VolleyError volleyError = new VolleyError(e);
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            mDelivery.postError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
+            processException(request, e, startTimeMs);
         }
         finally
         {
@@ -213,6 +166,94 @@ public class NetworkDispatcher extends Thread
         }
     }
 
+    /**
+     * Finishes a request taken from the queue if it was cancelled in the meantime.
+     *
+     * @return whether the request was cancelled
+     */
+    final boolean discardIfCanceled(Request<?> request)
+    {
+        request.addMarker("network-queue-take");
+
+        // If the request was cancelled already, do not perform the
+        // network request.
+        if (request.isCanceled())
+        {
+            request.finish("network-discard-cancelled");
+            request.notifyListenerResponseNotUsable();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a response from the network, writes it to the cache if applicable and posts it back.
+     */
+    final void processResponse(Request<?> request,
+                               NetworkResponse networkResponse)
+    {
+        request.addMarker("network-http-complete");
+
+        // If the server returned 304 AND we delivered a response already,
+        // we're done -- don't deliver a second identical response.
+        if (networkResponse.notModified && request.hasHadResponseDelivered())
+        {
+            request.finish("not-modified");
+            request.notifyListenerResponseNotUsable();
+            return;
+        }
+
+        // Parse the response here on the worker thread.
+        Response<?> response = request.parseNetworkResponse(networkResponse);
+        request.addMarker("network-parse-complete");
+
+        // Write to cache if applicable. For 304s only the metadata changed.
+        if (request.shouldCache() && response.cacheEntry != null)
+        {
+            if (networkResponse.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                mCache.update(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-header-written");
+            }
+            else
+            {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
+        }
+
+        // Post the response back.
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        request.notifyListenerResponseReceived(response);
+    }
+
+    /**
+     * Posts back the error a request failed with.
+     */
+    final void processError(Request<?> request,
+                            VolleyError volleyError,
+                            long startTimeMs)
+    {
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        parseAndDeliverNetworkError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
+    /**
+     * Posts back an unexpected exception thrown while processing a request.
+     */
+    final void processException(Request<?> request,
+                                Exception e,
+                                long startTimeMs)
+    {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        mDelivery.postError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error)
     {
         error = request.parseNetworkError(error);
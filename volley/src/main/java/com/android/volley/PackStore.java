@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured storage for the small entries of a {@link DiskCache}.
+ *
+ * <p>Instead of a file of their own, small entries are appended as records to segment files. That
+ * saves an inode and most of a filesystem block per entry, and reads share an open channel rather
+ * than opening and closing a file each. A record is an int length, a type byte and the payload:
+ * the bytes an entry file would hold for {@link #TYPE_ENTRY}, or the UTF-8 key for a {@link
+ * #TYPE_TOMBSTONE}, which marks the entry as removed for directory scans.
+ *
+ * <p>Records are never modified. An entry that is replaced or removed leaves a dead record behind,
+ * and segments that are mostly dead are compacted by copying their live records to the active
+ * segment, see {@link DiskCache}. Segment files are named {@code pack-<id>} and ids only grow, so
+ * replaying the segments in id order replays the records in the order they were written.
+ *
+ * <p>Appends are serialized on the store. Reads are positional and run in parallel with them.
+ */
+class PackStore
+{
+    /**
+     * Prefix of the segment file names, followed by the segment id.
+     */
+    static final String PACK_PREFIX = "pack-";
+
+    /**
+     * Record holding an entry in the cache file format.
+     */
+    static final byte TYPE_ENTRY = 1;
+
+    /**
+     * Record holding the key of a removed entry.
+     */
+    static final byte TYPE_TOMBSTONE = 2;
+
+    /**
+     * Length of the record header in front of each payload: the payload length and record type.
+     */
+    static final int RECORD_HEADER_SIZE = 5;
+
+    /**
+     * Location of entries that are stored in a file of their own.
+     */
+    static final long NOT_PACKED = -1;
+
+    /**
+     * Default size at which the active segment is closed and a new one started.
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Share of dead bytes at which a segment is worth compacting.
+     */
+    static final float COMPACTION_RATIO = 0.5f;
+
+    /**
+     * Magic number at the start of every segment file.
+     */
+    private static final int PACK_MAGIC = 0x20191022;
+
+    private static final int FILE_HEADER_SIZE = 4;
+
+    /**
+     * Locations hold the offset in their low bits and the segment id above it.
+     */
+    private static final int OFFSET_BITS = 40;
+
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final File mDirectory;
+
+    /**
+     * Segments that have been opened, by id.
+     */
+    private final ConcurrentMap<Integer, Segment> mSegments = new ConcurrentHashMap<>();
+
+    /**
+     * Size at which the active segment is closed. Guarded by this.
+     */
+    private long mSegmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Segment records are appended to, or null until the first append. Guarded by this.
+     */
+    private Segment mActive;
+
+    /**
+     * Id of the next segment, or -1 until the directory has been listed. Guarded by this.
+     */
+    private int mNextId = -1;
+
+    PackStore(File directory)
+    {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns true if the given file name belongs to a segment.
+     */
+    static boolean isPackFile(String name)
+    {
+        return name.startsWith(PACK_PREFIX);
+    }
+
+    static long location(int segment, long offset)
+    {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    static int segmentOf(long location)
+    {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    static long offsetOf(long location)
+    {
+        return location & OFFSET_MASK;
+    }
+
+    /**
+     * Formats a location the way the journal records it in place of a file name.
+     */
+    static String formatLocation(long location)
+    {
+        return PACK_PREFIX + segmentOf(location) + ":" + offsetOf(location);
+    }
+
+    /**
+     * Parses a location recorded by the journal.
+     *
+     * @return the location, or {@link #NOT_PACKED} if the name is that of a file
+     */
+    static long parseLocation(String name)
+    {
+        int colon = name.indexOf(':');
+        if (!isPackFile(name) || colon < 0)
+        {
+            return NOT_PACKED;
+        }
+        try
+        {
+            return location(Integer.parseInt(name.substring(PACK_PREFIX.length(), colon)),
+                    Long.parseLong(name.substring(colon + 1)));
+        }
+        catch (NumberFormatException e)
+        {
+            return NOT_PACKED;
+        }
+    }
+
+    /**
+     * Sets the size at which the active segment is closed and a new one started.
+     */
+    synchronized void setSegmentSize(long segmentSize)
+    {
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it is full.
+     *
+     * @return the location of the record's payload
+     */
+    synchronized long append(byte type, byte[] payload) throws IOException
+    {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        Segment segment = mActive;
+        if (segment == null
+                || (segment.length + recordSize > mSegmentSize && segment.length > FILE_HEADER_SIZE))
+        {
+            segment = startSegment();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(payload.length).put(type).put(payload);
+        record.flip();
+        long position = segment.length;
+        DiskCache.writeFully(segment.channel(), record, position);
+        segment.length += recordSize;
+        return location(segment.id, position + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Appends a tombstone for the given key. Tombstones only matter to directory scans, so they are
+     * dead weight from the start.
+     */
+    void appendTombstone(String key) throws IOException
+    {
+        byte[] payload = key.getBytes(DiskCache.UTF_8);
+        markDead(append(TYPE_TOMBSTONE, payload), RECORD_HEADER_SIZE + payload.length);
+    }
+
+    /**
+     * Reads the payload at the given location.
+     */
+    byte[] read(long location, int length) throws IOException
+    {
+        Segment segment = getSegment(segmentOf(location));
+        byte[] payload = new byte[length];
+        ByteBuffer dst = ByteBuffer.wrap(payload);
+        long position = offsetOf(location);
+        try
+        {
+            DiskCache.readFully(segment.channel(), dst, position);
+        }
+        catch (ClosedChannelException e)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw e;
+            }
+            // Another thread was interrupted while using the channel, which closes it for all.
+            DiskCache.readFully(segment.channel(), dst, position + dst.position());
+        }
+        return payload;
+    }
+
+    /**
+     * Records that the record at the given location is no longer live.
+     *
+     * @return true if its segment has become worth compacting
+     */
+    boolean markDead(long location, long size)
+    {
+        Segment segment = mSegments.get(segmentOf(location));
+        if (segment == null)
+        {
+            return false;
+        }
+        segment.deadBytes.addAndGet(size);
+        return isCompactionCandidate(segment);
+    }
+
+    /**
+     * Returns the oldest segment worth compacting, or null. The active segment never is.
+     */
+    synchronized Segment nextCompactionCandidate()
+    {
+        Segment candidate = null;
+        for (Segment segment : mSegments.values())
+        {
+            if (isCompactionCandidate(segment) && (candidate == null || segment.id < candidate.id))
+            {
+                candidate = segment;
+            }
+        }
+        return candidate;
+    }
+
+    private synchronized boolean isCompactionCandidate(Segment segment)
+    {
+        return segment != mActive
+                && !segment.deleted
+                && segment.deadBytes.get() >= (segment.length - FILE_HEADER_SIZE) * COMPACTION_RATIO;
+    }
+
+    /**
+     * Returns true if there is a segment older than the given one.
+     */
+    boolean hasSegmentBefore(int id) throws IOException
+    {
+        int[] ids = listSegments();
+        return ids.length > 0 && ids[0] < id;
+    }
+
+    /**
+     * Lists the ids of the segments on disk, oldest first.
+     */
+    int[] listSegments() throws IOException
+    {
+        String[] names = mDirectory.list();
+        if (names == null)
+        {
+            throw new IOException("Unable to list " + mDirectory.getAbsolutePath());
+        }
+        int[] ids = new int[names.length];
+        int count = 0;
+        for (String name : names)
+        {
+            if (isPackFile(name))
+            {
+                try
+                {
+                    ids[count] = Integer.parseInt(name.substring(PACK_PREFIX.length()));
+                    count++;
+                }
+                catch (NumberFormatException ignored)
+                {
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Reads every record of a segment, stopping at a record cut short by a crash.
+     */
+    List<Record> readRecords(int id) throws IOException
+    {
+        Segment segment = getSegment(id);
+        FileChannel channel = segment.channel();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Segment too large: " + size);
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        DiskCache.readFully(channel, buf, 0);
+        buf.flip();
+        if (buf.remaining() < FILE_HEADER_SIZE || buf.getInt() != PACK_MAGIC)
+        {
+            throw new IOException("Bad segment magic in " + segment.file.getAbsolutePath());
+        }
+        List<Record> records = new ArrayList<>();
+        while (buf.remaining() >= RECORD_HEADER_SIZE)
+        {
+            int offset = buf.position() + RECORD_HEADER_SIZE;
+            int length = buf.getInt();
+            byte type = buf.get();
+            if (length < 0 || length > buf.remaining())
+            {
+                VolleyLog.d("Dropping truncated record in %s", segment.file.getAbsolutePath());
+                break;
+            }
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            records.add(new Record(type, location(id, offset), payload));
+        }
+        return records;
+    }
+
+    /**
+     * Sets the dead bytes of every segment but the active one from the bytes the loaded index
+     * still uses in it. Records made dead before the index was complete weren't counted.
+     *
+     * @param liveBytes bytes of live records per segment id
+     */
+    synchronized void open(Map<Integer, Long> liveBytes) throws IOException
+    {
+        for (int id : listSegments())
+        {
+            Segment segment = getSegment(id);
+            if (segment == mActive)
+            {
+                continue;
+            }
+            Long live = liveBytes.get(id);
+            long used = segment.length - FILE_HEADER_SIZE;
+            segment.deadBytes.set(Math.max(0, used - (live != null ? live : 0)));
+        }
+    }
+
+    /**
+     * Closes and deletes a segment, once none of its records are live anymore.
+     */
+    synchronized void deleteSegment(Segment segment)
+    {
+        mSegments.remove(segment.id, segment);
+        segment.close();
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+    }
+
+    /**
+     * Forgets every segment, after their files have been deleted.
+     */
+    synchronized void reset()
+    {
+        for (Segment segment : mSegments.values())
+        {
+            segment.close();
+        }
+        mSegments.clear();
+        mActive = null;
+        mNextId = -1;
+    }
+
+    private synchronized Segment startSegment() throws IOException
+    {
+        if (mNextId < 0)
+        {
+            int[] ids = listSegments();
+            mNextId = ids.length > 0 ? ids[ids.length - 1] + 1 : 0;
+        }
+        Segment segment = new Segment(mNextId, new File(mDirectory, PACK_PREFIX + mNextId));
+        ByteBuffer magic = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        magic.putInt(PACK_MAGIC);
+        magic.flip();
+        DiskCache.writeFully(segment.channel(), magic, 0);
+        segment.length = FILE_HEADER_SIZE;
+        mNextId++;
+        mSegments.put(segment.id, segment);
+        mActive = segment;
+        return segment;
+    }
+
+    private Segment getSegment(int id) throws IOException
+    {
+        Segment segment = mSegments.get(id);
+        if (segment != null)
+        {
+            return segment;
+        }
+        synchronized (this)
+        {
+            segment = mSegments.get(id);
+            if (segment == null)
+            {
+                File file = new File(mDirectory, PACK_PREFIX + id);
+                if (!file.exists())
+                {
+                    throw new FileNotFoundException(file.getAbsolutePath());
+                }
+                segment = new Segment(id, file);
+                segment.length = file.length();
+                mSegments.put(id, segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * A segment file and its shared channel.
+     */
+    static class Segment
+    {
+        final int id;
+
+        final File file;
+
+        /**
+         * Bytes of records that are no longer live, including tombstones.
+         */
+        final AtomicLong deadBytes = new AtomicLong();
+
+        /**
+         * Length of the file. Guarded by the store.
+         */
+        long length;
+
+        /**
+         * Set once the segment has been deleted, so it isn't reopened and thereby recreated.
+         */
+        volatile boolean deleted;
+
+        private volatile FileChannel mChannel;
+
+        Segment(int id, File file)
+        {
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * Returns the channel of the segment, reopening it if an interrupted thread closed it.
+         */
+        FileChannel channel() throws IOException
+        {
+            FileChannel channel = mChannel;
+            if (channel != null && channel.isOpen())
+            {
+                return channel;
+            }
+            synchronized (this)
+            {
+                if (deleted)
+                {
+                    throw new FileNotFoundException(file.getAbsolutePath());
+                }
+                if (mChannel == null || !mChannel.isOpen())
+                {
+                    mChannel = new RandomAccessFile(file, "rw").getChannel();
+                }
+                return mChannel;
+            }
+        }
+
+        synchronized void close()
+        {
+            deleted = true;
+            if (mChannel != null)
+            {
+                try
+                {
+                    mChannel.close();
+                }
+                catch (IOException ignored)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * A record read back from a segment.
+     */
+    static class Record
+    {
+        final byte type;
+
+        /**
+         * Location of the payload.
+         */
+        final long location;
+
+        final byte[] payload;
+
+        Record(byte type, long location, byte[] payload)
+        {
+            this.type = type;
+            this.location = location;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Locks shared by every process using the same {@link DiskCache} directory, taken on byte ranges
+ * of a lock file next to the journal.
+ *
+ * <p>Each lock is one byte of the file, identified by its region number. The first bytes of the
+ * file hold the journal generation instead, a counter bumped whenever the journal is replaced
+ * rather than appended to, so other processes know to replay it from the start.
+ *
+ * <p>File locks belong to the process, not to a thread, so a region must only be locked by one
+ * thread at a time; {@link DiskCache} only locks a region while holding a matching in-process
+ * lock. Interrupting a thread that is using a channel closes it, which drops every lock held
+ * through it. Locks are therefore polled for with the interrupt status cleared rather than
+ * waited for, which leaves only a tiny window for an interrupt to hit.
+ */
+class ProcessLock
+{
+    /**
+     * Name of the lock file inside the cache directory.
+     */
+    static final String LOCK_FILE = "journal.lock";
+
+    /**
+     * Length of the journal generation at the start of the file.
+     */
+    private static final int GENERATION_SIZE = 8;
+
+    /**
+     * Longest wait between two attempts at taking a lock held by another process.
+     */
+    private static final long MAX_POLL_INTERVAL_MS = 50;
+
+    private final File mFile;
+
+    /**
+     * Channel over the lock file, reopened if it gets closed. Guarded by this.
+     */
+    private FileChannel mChannel;
+
+    ProcessLock(File rootDirectory)
+    {
+        mFile = new File(rootDirectory, LOCK_FILE);
+    }
+
+    /**
+     * Takes the lock of the given region, waiting for other processes to release it.
+     *
+     * @return the lock, or null if the lock file can't be used, in which case the caller goes
+     * ahead without it
+     */
+    FileLock lock(int region)
+    {
+        boolean interrupted = false;
+        long interval = 1;
+        try
+        {
+            while (true)
+            {
+                interrupted |= Thread.interrupted();
+                try
+                {
+                    FileLock lock = tryLock(region);
+                    if (lock != null)
+                    {
+                        return lock;
+                    }
+                }
+                catch (IOException e)
+                {
+                    VolleyLog.e("Unable to lock %s: %s", mFile.getAbsolutePath(), e.toString());
+                    return null;
+                }
+                try
+                {
+                    Thread.sleep(interval);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                interval = Math.min(interval * 2, MAX_POLL_INTERVAL_MS);
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes the lock of the given region if no other process holds it.
+     *
+     * @return the lock, or null if it is held elsewhere
+     * @throws IOException if the lock file can't be used
+     */
+    FileLock tryLock(int region) throws IOException
+    {
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            try
+            {
+                return channel().tryLock(GENERATION_SIZE + region, 1, false);
+            }
+            catch (ClosedChannelException e)
+            {
+                // Another thread was interrupted while using the channel.
+                return channel().tryLock(GENERATION_SIZE + region, 1, false);
+            }
+        }
+        catch (OverlappingFileLockException e)
+        {
+            // Held by another cache over the same directory in this process.
+            return null;
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Releases a lock returned by {@link #lock(int)} or {@link #tryLock(int)}. Null is ignored.
+     */
+    void release(FileLock lock)
+    {
+        if (lock == null)
+        {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            lock.release();
+        }
+        catch (IOException e)
+        {
+            // A closed channel has released its locks already.
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the current journal generation. Reading doesn't need a lock; it only has to be
+     * current once the journal lock is held.
+     */
+    long readGeneration() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(GENERATION_SIZE);
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            FileChannel channel = channel();
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) != -1)
+            {
+                // Read until the buffer is full or the file ends.
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // A file too short to hold a generation has never had its journal replaced.
+        return buf.hasRemaining() ? 0 : buf.getLong(0);
+    }
+
+    /**
+     * Bumps the journal generation. The caller must hold the journal lock.
+     *
+     * @return the new generation
+     */
+    long bumpGeneration() throws IOException
+    {
+        long generation = readGeneration() + 1;
+        ByteBuffer buf = ByteBuffer.allocate(GENERATION_SIZE);
+        buf.putLong(0, generation);
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            DiskCache.writeFully(channel(), buf, 0);
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return generation;
+    }
+
+    private synchronized FileChannel channel() throws IOException
+    {
+        if (mChannel == null || !mChannel.isOpen())
+        {
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        }
+        return mChannel;
+    }
+}
@@ -35,13 +35,18 @@ import com.android.volley.exception.AuthFailureError;
 import com.android.volley.exception.ParseError;
 import com.android.volley.exception.TimeoutError;
 import com.android.volley.exception.VolleyError;
+import com.android.volley.network.Header;
+import com.android.volley.network.Headers;
 import com.android.volley.network.NetworkResponse;
 import com.android.volley.toolbox.SimpleRequest;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -705,6 +710,26 @@ public abstract class Request<T> implements Comparable<Request<T>>
      */
     protected abstract Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * Parses a response served from the cache. This method will be called from a worker thread.
+     *
+     * <p>The default implementation reads the entry's data into memory and hands it to {@link
+     * #parseNetworkResponse(NetworkResponse)}. Requests that can parse incrementally can override
+     * this to consume {@link Cache.Entry#getBody()} instead, so that large entries are never held
+     * in memory all at once.
+     *
+     * @param entry The cache entry, whose data may not have been read yet
+     * @return The parsed response, or null in the case of an error
+     * @throws IOException if the entry's data can't be read
+     */
+    protected Response<T> parseCacheEntry(Cache.Entry entry) throws IOException
+    {
+        List<Header> headers = entry.allResponseHeaders != null
+                ? entry.allResponseHeaders : Headers.toAllHeaderList(entry.responseHeaders);
+        return parseNetworkResponse(
+                new NetworkResponse(HttpURLConnection.HTTP_OK, entry.getData(), false, 0, headers));
+    }
+
     /**
      * Subclasses can override this method to parse 'networkError' and return a more specific error.
      *
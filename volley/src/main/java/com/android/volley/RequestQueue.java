@@ -18,9 +18,11 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 
 import com.android.volley.ResponseDelivery.DefaultResponseDelivery;
+import com.android.volley.network.AsyncNetwork;
 import com.android.volley.network.Network;
 
 import java.lang.annotation.Retention;
@@ -31,6 +33,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -114,9 +117,10 @@ public class RequestQueue
     private final PriorityBlockingQueue<Request<?>> mCacheQueue = new PriorityBlockingQueue<>();
 
     /**
-     * The queue of requests that are actually going out to the network.
+     * The queue of requests that are actually going out to the network, served fairly between
+     * hosts.
      */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue = new PriorityBlockingQueue<>();
+    private final HostFairQueue mNetworkQueue = new HostFairQueue();
 
     /**
      * Number of network request dispatcher threads to start.
@@ -153,6 +157,21 @@ public class RequestQueue
      */
     private final List<RequestEventListener> mEventListeners = new ArrayList<>();
 
+    /**
+     * Time of the last call to {@link #start()} as {@link SystemClock#elapsedRealtime()}, or -1.
+     */
+    private volatile long mStartTime = -1;
+
+    /**
+     * Milliseconds from {@link #start()} until the first request finished with a response, or -1.
+     */
+    private final AtomicLong mTimeToFirstResponse = new AtomicLong(-1);
+
+    /**
+     * How the cache answered the requests of this queue, counted by the cache dispatcher.
+     */
+    private final CacheStats.Counter mCacheStats = new CacheStats.Counter();
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -170,7 +189,8 @@ public class RequestQueue
      *
      * @param cache          A Cache to use for persisting responses to disk
      * @param network        A Network interface for performing HTTP requests
-     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param threadPoolSize Number of network dispatcher threads to create, or of threads parsing
+     *                       responses for an {@link AsyncNetwork}
      */
     public RequestQueue(Cache cache,
                         Network network,
@@ -184,7 +204,8 @@ public class RequestQueue
      *
      * @param cache          A Cache to use for persisting responses to disk
      * @param network        A Network interface for performing HTTP requests
-     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param threadPoolSize Number of network dispatcher threads to create, or of threads parsing
+     *                       responses for an {@link AsyncNetwork}
      * @param delivery       A ResponseDelivery interface for posting responses and errors
      */
     public RequestQueue(Cache cache,
@@ -204,10 +225,23 @@ public class RequestQueue
     public void start()
     {
         stop(); // Make sure any currently running dispatchers are stopped.
+        mTimeToFirstResponse.set(-1);
+        mStartTime = SystemClock.elapsedRealtime();
         // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery, mCacheStats);
         mCacheDispatcher.start();
 
+        if (mNetwork instanceof AsyncNetwork && mDispatchers.length > 0)
+        {
+            // A single dispatcher keeps every request in flight, so the pool size goes to the
+            // workers parsing responses instead.
+            NetworkDispatcher networkDispatcher = new AsyncNetworkDispatcher(
+                    mNetworkQueue, (AsyncNetwork) mNetwork, mCache, mDelivery, mDispatchers.length);
+            mDispatchers[0] = networkDispatcher;
+            networkDispatcher.start();
+            return;
+        }
+
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++)
         {
@@ -235,6 +269,19 @@ public class RequestQueue
         }
     }
 
+    /**
+     * Limits how many requests to one host are performed at once, so that a burst of requests to
+     * one host leaves network dispatchers free for others. Requests to a host at its limit wait
+     * while those to other hosts go ahead. There is no limit by default; either way the network
+     * queue takes turns between hosts whose next requests have the same priority.
+     *
+     * @param maxRequestsPerHost the most requests to one host in flight at once
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost)
+    {
+        mNetworkQueue.setMaxPerHost(maxRequestsPerHost);
+    }
+
     /**
      * Gets a sequence number.
      */
@@ -343,14 +390,73 @@ public class RequestQueue
         {
             mCurrentRequests.remove(request);
         }
+        recordFirstResponse(request);
         sendRequestEvent(request, RequestEvent.REQUEST_FINISHED);
     }
 
+    /**
+     * Returns the time in milliseconds from {@link #start()} until the first request finished with
+     * a response, whether from the cache or the network, or -1 if none has yet. Useful to see how
+     * quickly a cold start serves its first response.
+     */
+    public long getTimeToFirstResponseMs()
+    {
+        return mTimeToFirstResponse.get();
+    }
+
+    /**
+     * Returns how the cache answered the requests of this queue so far: how many were hits, how
+     * many of those needed refreshing, and how many found an expired entry or nothing at all.
+     * Requests that skip the cache aren't counted. See {@link StatsCache#getStats()} for what the
+     * cache itself counts.
+     */
+    public CacheStats getCacheStats()
+    {
+        return mCacheStats.snapshot();
+    }
+
+    /**
+     * Returns the cache stats of requests whose cache key starts with the given prefix, or null
+     * unless it was passed to {@link #trackCacheStatsPrefix(String)}.
+     */
+    public CacheStats getCacheStats(String prefix)
+    {
+        return mCacheStats.snapshot(prefix);
+    }
+
+    /**
+     * Starts counting the cache stats of requests whose cache key starts with the given prefix
+     * separately, such as the URLs of one host or API.
+     */
+    public void trackCacheStatsPrefix(String prefix)
+    {
+        mCacheStats.trackPrefix(prefix);
+    }
+
+    private void recordFirstResponse(Request<?> request)
+    {
+        long startTime = mStartTime;
+        if (startTime < 0 || mTimeToFirstResponse.get() >= 0 || !request.hasHadResponseDelivered())
+        {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        if (mTimeToFirstResponse.compareAndSet(-1, elapsed))
+        {
+            VolleyLog.d("Time to first response: %d ms", elapsed);
+        }
+    }
+
     /**
      * Sends a request life cycle event to the listeners.
      */
     void sendRequestEvent(Request<?> request, @RequestEvent int event)
     {
+        if (event == RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED)
+        {
+            // Let the next request to the same host go.
+            mNetworkQueue.release(request);
+        }
         synchronized (mEventListeners)
         {
             for (RequestEventListener listener : mEventListeners)
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} that counts how it has been doing.
+ *
+ * <p>Implementing this is optional; caches that don't are treated as having counted nothing.
+ */
+public interface StatsCache extends Cache
+{
+    /**
+     * Returns a snapshot of the lookups, evictions, bytes and prunes the cache has counted so far.
+     */
+    CacheStats getStats();
+}
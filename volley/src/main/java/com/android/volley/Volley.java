@@ -21,6 +21,8 @@ import android.content.Context;
 import com.android.volley.CachePolicy.DefaultCachePolicy;
 import com.android.volley.RequestQueue.RequestEventListener;
 import com.android.volley.RequestQueue.RequestFilter;
+import com.android.volley.network.AsyncHttpStack;
+import com.android.volley.network.BasicAsyncNetwork;
 import com.android.volley.network.BasicNetwork;
 import com.android.volley.network.ConnHttpStack;
 import com.android.volley.network.HttpStack;
@@ -65,9 +67,32 @@ public class Volley
         File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
         HttpStack httpStack = builder.httpStack == null
                 ? new ConnHttpStack(null, builder.sslSocketFactory) : builder.httpStack;
-        Network network = builder.network == null
-                ? new BasicNetwork(httpStack) : builder.network;
-        RequestQueue queue = new RequestQueue(new DiskCache(cacheDir), network);
+        Network network;
+        if (builder.network != null)
+        {
+            network = builder.network;
+        }
+        else if (httpStack instanceof AsyncHttpStack)
+        {
+            // Keeps requests in flight without tying up a dispatcher thread each.
+            network = new BasicAsyncNetwork((AsyncHttpStack) httpStack);
+        }
+        else
+        {
+            network = new BasicNetwork(httpStack);
+        }
+        Cache cache = builder.cache;
+        if (cache == null)
+        {
+            DiskCache diskCache = new DiskCache(cacheDir);
+            diskCache.setLazyInitialization(builder.lazyCacheInitialization);
+            cache = builder.writeBehindCache ? new WriteBehindCache(diskCache) : diskCache;
+        }
+        if (builder.memoryCacheSize > 0)
+        {
+            cache = new MemoryCache(cache, builder.memoryCacheSize);
+        }
+        RequestQueue queue = new RequestQueue(cache, network);
         queue.start();
         mRequestQueue = queue;
         setCachePolicy(builder.cachePolicy);
@@ -126,6 +151,10 @@ public class Volley
         private HttpStack httpStack;
         private SSLSocketFactory sslSocketFactory;
         private Network network;
+        private Cache cache;
+        private int memoryCacheSize;
+        private boolean lazyCacheInitialization;
+        private boolean writeBehindCache;
         private CachePolicy cachePolicy = new DefaultCachePolicy();
 
         public Builder(Context context)
@@ -151,6 +180,47 @@ public class Volley
             return this;
         }
 
+        /**
+         * Uses the given cache instead of the default disk cache. The options of the default disk
+         * cache, such as {@link #setLazyCacheInitialization(boolean)}, don't apply to it.
+         */
+        public Builder setCache(Cache cache)
+        {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Keeps up to the given number of bytes of recently used responses in memory, in front of
+         * the disk cache. Disabled by default.
+         */
+        public Builder setMemoryCacheSize(int sizeInBytes)
+        {
+            this.memoryCacheSize = sizeInBytes;
+            return this;
+        }
+
+        /**
+         * Loads the index of the default disk cache in the background, so the queue starts
+         * serving requests before a large cache has been indexed. Disabled by default.
+         */
+        public Builder setLazyCacheInitialization(boolean lazy)
+        {
+            this.lazyCacheInitialization = lazy;
+            return this;
+        }
+
+        /**
+         * Writes responses to the default disk cache in the background, off the network
+         * dispatchers, through a {@link WriteBehindCache}. Nothing flushes it, so writes still
+         * pending when the process dies are lost. Disabled by default.
+         */
+        public Builder setWriteBehindCache(boolean writeBehind)
+        {
+            this.writeBehindCache = writeBehind;
+            return this;
+        }
+
         public Builder setCachePolicy(CachePolicy cachePolicy)
         {
             this.cachePolicy = cachePolicy;
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that hands writes to a background thread, so callers such as the {@link
+ * NetworkDispatcher} don't wait for the disk.
+ *
+ * <p>Pending writes are kept per key: a newer write to a key replaces the one still waiting, so
+ * only the latest version of a hot entry reaches the disk. Reads see pending writes before they
+ * land. At most {@code maxPendingWrites} keys can be pending; beyond that writers block until the
+ * background thread catches up.
+ *
+ * <p>{@link #clear()} and {@link #initialize()} are passed through synchronously. Call {@link
+ * #flush()} to wait for everything pending to be written, and {@link #shutdown()} to stop the
+ * background thread; writes after shutdown go straight to the wrapped cache.
+ */
+public class WriteBehindCache implements LazyCache, StatsCache
+{
+    private static final boolean DEBUG = VolleyLog.DEBUG;
+
+    /**
+     * Default maximum number of keys with a write waiting.
+     */
+    private static final int DEFAULT_MAX_PENDING_WRITES = 64;
+
+    private static final int OP_PUT = 0;
+
+    private static final int OP_UPDATE = 1;
+
+    private static final int OP_INVALIDATE = 2;
+
+    private static final int OP_REMOVE = 3;
+
+    private static final int READ_DATA = 0;
+
+    private static final int READ_LAZY = 1;
+
+    private static final int READ_METADATA = 2;
+
+    /**
+     * The cache writes end up in.
+     */
+    private final Cache mDelegate;
+
+    private final int mMaxPendingWrites;
+
+    /**
+     * Writes not yet applied to the delegate, in the order their keys were first written. A write
+     * stays here until it has been applied, so reads keep seeing it while it is in flight.
+     * Guarded by itself.
+     */
+    private final Map<String, PendingWrite> mPending = new LinkedHashMap<>();
+
+    /**
+     * Held while a write is applied to the delegate, so {@link #clear()} can't interleave with it.
+     */
+    private final Object mApplyLock = new Object();
+
+    /**
+     * Lookups answered from pending writes, which never reach the wrapped cache.
+     */
+    private final CacheStats.Counter mStats = new CacheStats.Counter();
+
+    /**
+     * Background writer, started on the first write. Guarded by {@link #mPending}.
+     */
+    private Writer mWriter;
+
+    /**
+     * Set by {@link #shutdown()}. Guarded by {@link #mPending}.
+     */
+    private boolean mShutdown;
+
+    /**
+     * @param delegate the cache to write to
+     */
+    public WriteBehindCache(Cache delegate)
+    {
+        this(delegate, DEFAULT_MAX_PENDING_WRITES);
+    }
+
+    /**
+     * @param delegate         the cache to write to
+     * @param maxPendingWrites maximum number of keys with a write waiting before writers block
+     */
+    public WriteBehindCache(Cache delegate,
+                            int maxPendingWrites)
+    {
+        if (maxPendingWrites < 1)
+        {
+            throw new IllegalArgumentException("maxPendingWrites must be positive");
+        }
+        mDelegate = delegate;
+        mMaxPendingWrites = maxPendingWrites;
+    }
+
+    @Override
+    public Entry get(String key)
+    {
+        return get(key, READ_DATA);
+    }
+
+    @Override
+    public Entry getLazy(String key)
+    {
+        return get(key, READ_LAZY);
+    }
+
+    @Override
+    public Entry getMetadata(String key)
+    {
+        return get(key, READ_METADATA);
+    }
+
+    /**
+     * @param read one of the READ_* constants, saying how to read entries from the wrapped cache
+     */
+    private Entry get(String key, int read)
+    {
+        PendingWrite write;
+        synchronized (mPending)
+        {
+            write = mPending.get(key);
+        }
+        if (write == null)
+        {
+            return readDelegate(key, read);
+        }
+        switch (write.op)
+        {
+            case OP_PUT:
+            case OP_UPDATE:
+                mStats.recordHit(key);
+                mStats.recordRead(key, write.entry.getDataLength());
+                return write.entry.copy();
+            case OP_INVALIDATE:
+                Entry entry = readDelegate(key, read);
+                if (entry != null)
+                {
+                    write.expire(entry);
+                }
+                return entry;
+            default:
+                mStats.recordMiss(key);
+                return null;
+        }
+    }
+
+    private Entry readDelegate(String key, int read)
+    {
+        if (read == READ_DATA || !(mDelegate instanceof LazyCache))
+        {
+            return mDelegate.get(key);
+        }
+        LazyCache delegate = (LazyCache) mDelegate;
+        return read == READ_LAZY ? delegate.getLazy(key) : delegate.getMetadata(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry)
+    {
+        enqueue(key, new PendingWrite(OP_PUT, entry.copy(), false));
+    }
+
+    @Override
+    public void update(String key, Entry entry)
+    {
+        enqueue(key, new PendingWrite(OP_UPDATE, entry.copy(), false));
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire)
+    {
+        enqueue(key, new PendingWrite(OP_INVALIDATE, null, fullExpire));
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        enqueue(key, new PendingWrite(OP_REMOVE, null, false));
+    }
+
+    @Override
+    public void initialize()
+    {
+        mDelegate.initialize();
+    }
+
+    /**
+     * Drops all pending writes and clears the wrapped cache.
+     */
+    @Override
+    public void clear()
+    {
+        synchronized (mApplyLock)
+        {
+            synchronized (mPending)
+            {
+                mPending.clear();
+                mPending.notifyAll();
+            }
+            mDelegate.clear();
+        }
+    }
+
+    /**
+     * Returns the stats of the wrapped cache, with the lookups answered from pending writes added.
+     */
+    @Override
+    public CacheStats getStats()
+    {
+        CacheStats stats = mStats.snapshot();
+        return mDelegate instanceof StatsCache
+                ? stats.plus(((StatsCache) mDelegate).getStats()) : stats;
+    }
+
+    /**
+     * Blocks until every write made before this call has reached the wrapped cache.
+     */
+    public void flush()
+    {
+        synchronized (mPending)
+        {
+            while (!mPending.isEmpty() && mWriter != null)
+            {
+                try
+                {
+                    mPending.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything pending and stops the background thread. Later writes are applied to the
+     * wrapped cache on the calling thread.
+     */
+    public void shutdown()
+    {
+        synchronized (mPending)
+        {
+            mShutdown = true;
+            if (mWriter != null)
+            {
+                mWriter.quit();
+                mWriter = null;
+            }
+            mPending.notifyAll();
+        }
+        // Finish on this thread whatever the writer hasn't got to.
+        //noinspection StatementWithEmptyBody
+        while (writeNext())
+        {
+        }
+    }
+
+    @VisibleForTesting
+    int getPendingCount()
+    {
+        synchronized (mPending)
+        {
+            return mPending.size();
+        }
+    }
+
+    private void enqueue(String key, PendingWrite write)
+    {
+        synchronized (mPending)
+        {
+            while (!mShutdown && !mPending.containsKey(key) && mPending.size() >= mMaxPendingWrites)
+            {
+                try
+                {
+                    mPending.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    // Don't lose the write; apply it on this thread instead.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!mShutdown && (mPending.containsKey(key) || mPending.size() < mMaxPendingWrites))
+            {
+                PendingWrite coalesced = coalesce(mPending.get(key), write);
+                // Replacing the value keeps the key's place in line.
+                mPending.put(key, coalesced);
+                if (mWriter == null)
+                {
+                    mWriter = new Writer();
+                    mWriter.start();
+                }
+                mPending.notifyAll();
+                return;
+            }
+        }
+        synchronized (mApplyLock)
+        {
+            write.applyTo(mDelegate, key);
+        }
+    }
+
+    /**
+     * Merges a new write into the one already pending for the same key.
+     */
+    private static PendingWrite coalesce(PendingWrite pending, PendingWrite write)
+    {
+        if (pending == null || write.op != OP_INVALIDATE)
+        {
+            // Puts and removes supersede whatever came before. An update carries the full entry,
+            // so it supersedes a pending put as well.
+            if (pending != null && pending.op == OP_PUT && write.op == OP_UPDATE)
+            {
+                return new PendingWrite(OP_PUT, write.entry, false);
+            }
+            return write;
+        }
+        switch (pending.op)
+        {
+            case OP_PUT:
+            case OP_UPDATE:
+                Entry expired = pending.entry.copy();
+                write.expire(expired);
+                return new PendingWrite(pending.op, expired, false);
+            case OP_INVALIDATE:
+                return new PendingWrite(
+                        OP_INVALIDATE, null, pending.fullExpire || write.fullExpire);
+            default:
+                // Nothing left to invalidate.
+                return pending;
+        }
+    }
+
+    /**
+     * Applies the oldest pending write to the delegate.
+     *
+     * @return false if there was nothing to write
+     */
+    private boolean writeNext()
+    {
+        synchronized (mApplyLock)
+        {
+            String key;
+            PendingWrite write;
+            synchronized (mPending)
+            {
+                Iterator<Map.Entry<String, PendingWrite>> iterator = mPending.entrySet().iterator();
+                if (!iterator.hasNext())
+                {
+                    return false;
+                }
+                Map.Entry<String, PendingWrite> next = iterator.next();
+                key = next.getKey();
+                write = next.getValue();
+            }
+            try
+            {
+                write.applyTo(mDelegate, key);
+            }
+            catch (RuntimeException e)
+            {
+                VolleyLog.e(e, "Unhandled exception writing cache entry %s", key);
+            }
+            synchronized (mPending)
+            {
+                // Unless it was superseded meanwhile, the write has landed.
+                if (mPending.get(key) == write)
+                {
+                    mPending.remove(key);
+                }
+                mPending.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A write waiting for the background thread.
+     */
+    private static class PendingWrite
+    {
+        final int op;
+
+        /**
+         * Entry to put or update with; null for other operations.
+         */
+        final Entry entry;
+
+        /**
+         * Whether an invalidation also expires the hard ttl.
+         */
+        final boolean fullExpire;
+
+        PendingWrite(int op, Entry entry, boolean fullExpire)
+        {
+            this.op = op;
+            this.entry = entry;
+            this.fullExpire = fullExpire;
+        }
+
+        void expire(Entry entry)
+        {
+            entry.softTtl = 0;
+            if (fullExpire)
+            {
+                entry.ttl = 0;
+            }
+        }
+
+        void applyTo(Cache cache, String key)
+        {
+            switch (op)
+            {
+                case OP_PUT:
+                    cache.put(key, entry);
+                    break;
+                case OP_UPDATE:
+                    cache.update(key, entry);
+                    break;
+                case OP_INVALIDATE:
+                    cache.invalidate(key, fullExpire);
+                    break;
+                default:
+                    cache.remove(key);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Thread applying pending writes in the background.
+     */
+    private class Writer extends Thread
+    {
+        private volatile boolean mQuit;
+
+        Writer()
+        {
+            super("volley-cache-writer");
+            setDaemon(true);
+        }
+
+        /**
+         * Called with {@link #mPending} held. The thread isn't interrupted, as that would close a
+         * file channel the delegate might be writing to.
+         */
+        void quit()
+        {
+            mQuit = true;
+        }
+
+        @Override
+        public void run()
+        {
+            if (DEBUG)
+            {
+                VolleyLog.v("start new cache writer");
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit)
+            {
+                if (writeNext())
+                {
+                    continue;
+                }
+                synchronized (mPending)
+                {
+                    try
+                    {
+                        while (mPending.isEmpty() && !mQuit)
+                        {
+                            mPending.wait();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.exception;
+
+/**
+ * Indicates that a response body was longer than the network allows. Not retried, as the body
+ * would be just as long the next time.
+ */
+@SuppressWarnings("serial")
+public class ResponseTooLargeError extends VolleyError
+{
+    public ResponseTooLargeError(long length,
+                                 int maxLength)
+    {
+        super("Response body of at least " + length + " bytes exceeds the limit of " + maxLength);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.network;
+
+import com.android.volley.Request;
+import com.android.volley.exception.AuthFailureError;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * An HTTP stack that can also perform requests without blocking the calling thread, so that the
+ * number of requests in flight isn't bound by the number of threads waiting for them.
+ */
+public interface AsyncHttpStack extends HttpStack
+{
+    /**
+     * Starts an HTTP request with the given parameters and returns without waiting for it. Exactly
+     * one method of the callback is called once the response has arrived or the request failed,
+     * possibly from another thread. The response body is read by the callback, on that thread.
+     *
+     * @param request           the request to perform
+     * @param additionalHeaders additional headers to be sent together with {@link
+     *                          Request#getHeaders()}
+     * @param callback          the callback to notify of the outcome
+     */
+    void executeRequest(Request<?> request,
+                        Map<String, String> additionalHeaders,
+                        OnRequestComplete callback);
+
+    /**
+     * Callback of {@link #executeRequest(Request, Map, OnRequestComplete)}.
+     */
+    interface OnRequestComplete
+    {
+        /**
+         * Called with the response of the request, whatever its status code.
+         */
+        void onSuccess(HttpResponse response);
+
+        /**
+         * Called if the request failed because of an I/O error, including timeouts.
+         */
+        void onError(IOException exception);
+
+        /**
+         * Called if the request couldn't be sent because of an authentication failure.
+         */
+        void onAuthError(AuthFailureError error);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.network;
+
+import com.android.volley.Request;
+import com.android.volley.exception.VolleyError;
+
+/**
+ * A {@link Network} that can also perform requests without blocking the calling thread.
+ * {@link com.android.volley.RequestQueue} dispatches to such networks from a single thread and
+ * parses their responses on a small pool of workers.
+ */
+public interface AsyncNetwork extends Network
+{
+    /**
+     * Starts performing the specified request and returns without waiting for it. Exactly one
+     * method of the callback is called once it is done, possibly from another thread.
+     *
+     * @param request  Request to process
+     * @param callback the callback to notify of the outcome
+     */
+    void performRequest(Request<?> request,
+                        OnRequestComplete callback);
+
+    /**
+     * Callback of {@link #performRequest(Request, OnRequestComplete)}.
+     */
+    interface OnRequestComplete
+    {
+        /**
+         * Called with a {@link NetworkResponse} with data and caching metadata.
+         */
+        void onSuccess(NetworkResponse response);
+
+        /**
+         * Called if the request failed, after any retries.
+         */
+        void onError(VolleyError error);
+    }
+}
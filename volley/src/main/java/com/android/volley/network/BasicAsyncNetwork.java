@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.network;
+
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.exception.AuthFailureError;
+import com.android.volley.exception.VolleyError;
+
+import java.io.IOException;
+
+/**
+ * A {@link BasicNetwork} that performs requests over an {@link AsyncHttpStack} without blocking,
+ * retrying them from the thread that completed the previous attempt.
+ *
+ * <p>Response bodies are read on the threads of the stack, so that a slow response only holds up
+ * one of those rather than a network dispatcher.
+ */
+public class BasicAsyncNetwork extends BasicNetwork implements AsyncNetwork
+{
+    private final AsyncHttpStack mAsyncStack;
+
+    /**
+     * @param httpStack HTTP stack to be used
+     */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack)
+    {
+        super(httpStack);
+        mAsyncStack = httpStack;
+    }
+
+    /**
+     * @param httpStack HTTP stack to be used
+     * @param pool      a buffer pool that improves GC performance in copy operations
+     */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack,
+                             ByteArrayPool pool)
+    {
+        super(httpStack, pool);
+        mAsyncStack = httpStack;
+    }
+
+    /**
+     * @param httpStack   HTTP stack to be used
+     * @param pool        a buffer pool that improves GC performance in copy operations
+     * @param maxBodySize the longest response body to read into memory, in bytes
+     */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack,
+                             ByteArrayPool pool,
+                             int maxBodySize)
+    {
+        super(httpStack, pool, maxBodySize);
+        mAsyncStack = httpStack;
+    }
+
+    @Override
+    public void performRequest(Request<?> request,
+                               OnRequestComplete callback)
+    {
+        attempt(request, SystemClock.elapsedRealtime(), callback);
+    }
+
+    private void attempt(final Request<?> request,
+                         final long requestStart,
+                         final OnRequestComplete callback)
+    {
+        AsyncHttpStack.OnRequestComplete stackCallback = new AsyncHttpStack.OnRequestComplete()
+        {
+            @Override
+            public void onSuccess(HttpResponse response)
+            {
+                complete(request, requestStart, response, null, callback);
+            }
+
+            @Override
+            public void onError(IOException exception)
+            {
+                complete(request, requestStart, null, exception, callback);
+            }
+
+            @Override
+            public void onAuthError(AuthFailureError error)
+            {
+                callback.onError(error);
+            }
+        };
+        try
+        {
+            mAsyncStack.executeRequest(request, getRequestHeaders(request), stackCallback);
+        }
+        catch (AuthFailureError e)
+        {
+            callback.onError(e);
+        }
+        catch (RuntimeException e)
+        {
+            // Retries start from the stack's threads, which must not see these.
+            callback.onError(new VolleyError(e));
+        }
+    }
+
+    private void complete(Request<?> request,
+                          long requestStart,
+                          HttpResponse httpResponse,
+                          IOException failure,
+                          OnRequestComplete callback)
+    {
+        NetworkResponse response;
+        try
+        {
+            response = completeAttempt(request, requestStart, httpResponse, failure);
+        }
+        catch (VolleyError e)
+        {
+            callback.onError(e);
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            callback.onError(new VolleyError(e));
+            return;
+        }
+        if (response != null)
+        {
+            callback.onSuccess(response);
+        }
+        else
+        {
+            attempt(request, requestStart, callback);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.android.volley.exception.AuthFailureError;
 import com.android.volley.exception.ClientError;
 import com.android.volley.exception.NetworkError;
 import com.android.volley.exception.NoConnectionError;
+import com.android.volley.exception.ResponseTooLargeError;
 import com.android.volley.exception.ServerError;
 import com.android.volley.exception.TimeoutError;
 import com.android.volley.exception.VolleyError;
@@ -34,11 +35,14 @@ import com.android.volley.network.Interceptors.CacheHeaderInterceptor;
 import com.android.volley.network.Interceptors.HeaderInterceptors;
 import com.android.volley.network.Interceptors.HttpHeaderInterceptor;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -52,7 +56,12 @@ public class BasicNetwork implements Network
 
     private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
 
-    private static final int DEFAULT_POOL_SIZE = 4096;
+    private static final int DEFAULT_POOL_SIZE = 128 * 1024;
+
+    /**
+     * Body size limit used unless one is passed in, which is no limit at all.
+     */
+    private static final int DEFAULT_MAX_BODY_SIZE = Integer.MAX_VALUE;
 
     private final HttpStack mHttpStack;
 
@@ -60,14 +69,19 @@ public class BasicNetwork implements Network
 
     private final ByteArrayPool mPool;
 
+    /**
+     * The longest response body read into memory, in bytes.
+     */
+    private final int mMaxBodySize;
+
     /**
      * @param httpStack HTTP stack to be used
      */
     public BasicNetwork(HttpStack httpStack)
     {
-        // If a pool isn't passed in, then build a small default pool that will give us a lot of
-        // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        // If a pool isn't passed in, then build a default pool that holds a few buffers per size
+        // class, enough for typical responses without using too much memory.
+        this(httpStack, new SizeClassByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
     /**
@@ -76,9 +90,25 @@ public class BasicNetwork implements Network
      */
     public BasicNetwork(HttpStack httpStack,
                         ByteArrayPool pool)
+    {
+        this(httpStack, pool, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * @param httpStack   HTTP stack to be used
+     * @param pool        a buffer pool that improves GC performance in copy operations
+     * @param maxBodySize the longest response body to read into memory, in bytes. Longer responses
+     *                    fail with a {@link ResponseTooLargeError}, without being retried. Bodies
+     *                    parsed by a {@link ResponseStreamParser} are only limited when they are
+     *                    copied for the cache.
+     */
+    public BasicNetwork(HttpStack httpStack,
+                        ByteArrayPool pool,
+                        int maxBodySize)
     {
         mHttpStack = httpStack;
         mPool = pool;
+        mMaxBodySize = maxBodySize;
         mHeaderInterceptors = new HeaderInterceptors(
                 new HttpHeaderInterceptor(),
                 new CacheHeaderInterceptor());
@@ -91,149 +121,241 @@ public class BasicNetwork implements Network
         while (true)
         {
             HttpResponse httpResponse = null;
-            byte[] responseContents = null;
-            List<Header> responseHeaders = Collections.emptyList();
+            IOException failure = null;
             try
             {
-                // Gather headers.
-                Map<String, String> requestHeaders = mHeaderInterceptors.interceptRequest(request);
-                NetworkLog.logRequest(request, requestHeaders);
-                httpResponse = mHttpStack.executeRequest(request, requestHeaders);
-                int statusCode = httpResponse.getStatusCode();
-                responseHeaders = mHeaderInterceptors.interceptResponse(httpResponse, request);
-                NetworkLog.logResponse(httpResponse, responseHeaders);
-                // Handle cache validation.
-                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) // 304
+                httpResponse = mHttpStack.executeRequest(request, getRequestHeaders(request));
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            NetworkResponse response = completeAttempt(request, requestStart, httpResponse, failure);
+            if (response != null)
+            {
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Gathers the headers to send with a request.
+     */
+    Map<String, String> getRequestHeaders(Request<?> request) throws AuthFailureError
+    {
+        Map<String, String> requestHeaders = mHeaderInterceptors.interceptRequest(request);
+        NetworkLog.logRequest(request, requestHeaders);
+        return requestHeaders;
+    }
+
+    /**
+     * Handles the outcome of one attempt at performing a request, by reading the body of its
+     * response or by deciding whether to retry after an error.
+     *
+     * @param requestStart when the first attempt started, as {@link SystemClock#elapsedRealtime()}
+     * @param httpResponse the response, or null if the attempt failed before one arrived
+     * @param failure      the error the attempt failed with, or null if it got a response
+     * @return the response, or null if the request should be attempted again
+     * @throws VolleyError if the request failed for good
+     */
+    NetworkResponse completeAttempt(Request<?> request,
+                                    long requestStart,
+                                    HttpResponse httpResponse,
+                                    IOException failure) throws VolleyError
+    {
+        byte[] responseContents = null;
+        List<Header> responseHeaders = Collections.emptyList();
+        try
+        {
+            if (failure != null)
+            {
+                throw failure;
+            }
+            int statusCode = httpResponse.getStatusCode();
+            responseHeaders = mHeaderInterceptors.interceptResponse(httpResponse, request);
+            NetworkLog.logResponse(httpResponse, responseHeaders);
+            // Handle cache validation.
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) // 304
+            {
+                Entry entry = request.getCacheEntry();
+                if (entry == null)
                 {
-                    Entry entry = request.getCacheEntry();
-                    if (entry == null)
-                    {
-                        return
-                                new NetworkResponse(
-                                        HttpURLConnection.HTTP_NOT_MODIFIED,
-                                        null,
-                                        true,
-                                        SystemClock.elapsedRealtime() - requestStart,
-                                        responseHeaders);
-                    }
-                    // Combine cached and response headers so the response will be complete.
-                    List<Header> combinedHeaders = Headers.combineHeaders(responseHeaders, entry);
                     return
                             new NetworkResponse(
                                     HttpURLConnection.HTTP_NOT_MODIFIED,
-                                    entry.data,
+                                    null,
                                     true,
                                     SystemClock.elapsedRealtime() - requestStart,
-                                    combinedHeaders);
+                                    responseHeaders);
                 }
-
-                // Some responses such as 204s do not have content.  We must check.
-                InputStream inputStream = httpResponse.getContent();
-                if (inputStream != null)
+                byte[] cachedData;
+                try
                 {
-                    responseContents = inputStreamToBytes(inputStream, httpResponse.getContentLength());
+                    cachedData = entry.getData();
                 }
-                else
+                catch (IOException e)
                 {
-                    // Add 0 byte response as a way of honestly representing a
-                    // no-content request.
-                    responseContents = new byte[0];
-                }
-
-                // if the request is slow, log it.
-                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, responseContents, statusCode);
-
-                if (statusCode < 200 || statusCode > 299)
-                {
-                    throw new IOException();
+                    // Ask again without the validators, so the server sends the whole response.
+                    // The server did nothing wrong, so this doesn't use up a retry.
+                    VolleyLog.d("Unreadable cached data for %s: %s",
+                            request.getUrl(), e.toString());
+                    request.addMarker("not-modified-cache-unreadable");
+                    request.setCacheEntry(null);
+                    return null;
                 }
+                // Combine cached and response headers so the response will be complete.
+                List<Header> combinedHeaders = Headers.combineHeaders(responseHeaders, entry);
                 return
+                        new NetworkResponse(
+                                HttpURLConnection.HTTP_NOT_MODIFIED,
+                                cachedData,
+                                true,
+                                SystemClock.elapsedRealtime() - requestStart,
+                                combinedHeaders);
+            }
+
+            // Some responses such as 204s do not have content.  We must check.
+            InputStream inputStream = httpResponse.getContent();
+            if (inputStream != null
+                    && statusCode >= 200 && statusCode <= 299
+                    && request instanceof ResponseStreamParser)
+            {
+                NetworkResponse streamed =
                         new NetworkResponse(
                                 statusCode,
-                                responseContents,
+                                new byte[0],
                                 false,
                                 SystemClock.elapsedRealtime() - requestStart,
                                 responseHeaders);
+                responseContents = streamContent(
+                        (ResponseStreamParser) request,
+                        streamed,
+                        inputStream,
+                        httpResponse.getContentLength(),
+                        request.shouldCache());
             }
-            catch (SocketTimeoutException e)
+            else if (inputStream != null)
             {
-                attemptRetryOnException("socket", request, new TimeoutError());
+                responseContents = inputStreamToBytes(inputStream, httpResponse.getContentLength());
             }
-            catch (MalformedURLException e)
+            else
             {
-                throw new RuntimeException("Bad URL " + request.getUrl(), e);
+                // Add 0 byte response as a way of honestly representing a
+                // no-content request.
+                responseContents = new byte[0];
             }
-            catch (IOException e)
-            {
-                int statusCode;
-                if (httpResponse != null)
-                {
-                    statusCode = httpResponse.getStatusCode();
-                }
-                else
-                {
-                    if (request.getCachePolicy().responseInError(request, e))
-                    {
-                        Entry entry = request.getCacheEntry();
-                        if (entry != null)
-                        {
-                            // Combine cached and response headers so the response will be complete.
-                            List<Header> combinedHeaders = Headers.combineHeaders(responseHeaders, entry);
-                            return
-                                    new NetworkResponse(
-                                            HttpURLConnection.HTTP_NOT_MODIFIED,
-                                            entry.data,
-                                            true,
-                                            SystemClock.elapsedRealtime() - requestStart,
-                                            combinedHeaders);
-                        }
-                    }
 
-                    throw new NoConnectionError(e);
-                }
-                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                NetworkResponse networkResponse;
-                if (responseContents != null)
-                {
-                    networkResponse = new NetworkResponse(
+            // if the request is slow, log it.
+            long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+            logSlowRequests(requestLifetime, request, responseContents, statusCode);
+
+            if (statusCode < 200 || statusCode > 299)
+            {
+                throw new IOException();
+            }
+            return
+                    new NetworkResponse(
                             statusCode,
                             responseContents,
                             false,
                             SystemClock.elapsedRealtime() - requestStart,
                             responseHeaders);
-                    if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED // 401
-                            || statusCode == HttpURLConnection.HTTP_FORBIDDEN) //403
-                    {
-                        attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
-                    }
-                    else if (statusCode >= 400 && statusCode <= 499)
+        }
+        catch (SocketTimeoutException e)
+        {
+            attemptRetryOnException("socket", request, new TimeoutError());
+        }
+        catch (MalformedURLException e)
+        {
+            throw new RuntimeException("Bad URL " + request.getUrl(), e);
+        }
+        catch (IOException e)
+        {
+            int statusCode;
+            if (httpResponse != null)
+            {
+                statusCode = httpResponse.getStatusCode();
+            }
+            else
+            {
+                if (request.getCachePolicy().responseInError(request, e))
+                {
+                    Entry entry = request.getCacheEntry();
+                    byte[] cachedData = entry != null ? getCachedData(entry) : null;
+                    if (cachedData != null)
                     {
-                        // Don't retry other client errors.
-                        throw new ClientError(networkResponse);
+                        // Combine cached and response headers so the response will be complete.
+                        List<Header> combinedHeaders = Headers.combineHeaders(responseHeaders, entry);
+                        return
+                                new NetworkResponse(
+                                        HttpURLConnection.HTTP_NOT_MODIFIED,
+                                        cachedData,
+                                        true,
+                                        SystemClock.elapsedRealtime() - requestStart,
+                                        combinedHeaders);
                     }
-                    else if (statusCode >= 500 && statusCode <= 599)
+                }
+
+                throw new NoConnectionError(e);
+            }
+            VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+            NetworkResponse networkResponse;
+            if (responseContents != null)
+            {
+                networkResponse = new NetworkResponse(
+                        statusCode,
+                        responseContents,
+                        false,
+                        SystemClock.elapsedRealtime() - requestStart,
+                        responseHeaders);
+                if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED // 401
+                        || statusCode == HttpURLConnection.HTTP_FORBIDDEN) //403
+                {
+                    attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
+                }
+                else if (statusCode >= 400 && statusCode <= 499)
+                {
+                    // Don't retry other client errors.
+                    throw new ClientError(networkResponse);
+                }
+                else if (statusCode >= 500 && statusCode <= 599)
+                {
+                    if (request.shouldRetryServerErrors())
                     {
-                        if (request.shouldRetryServerErrors())
-                        {
-                            attemptRetryOnException("server", request, new ServerError(networkResponse));
-                        }
-                        else
-                        {
-                            throw new ServerError(networkResponse);
-                        }
+                        attemptRetryOnException("server", request, new ServerError(networkResponse));
                     }
                     else
                     {
-                        // 3xx? No reason to retry.
                         throw new ServerError(networkResponse);
                     }
                 }
                 else
                 {
-                    attemptRetryOnException("network", request, new NetworkError());
+                    // 3xx? No reason to retry.
+                    throw new ServerError(networkResponse);
                 }
             }
+            else
+            {
+                attemptRetryOnException("network", request, new NetworkError());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the data of a cache entry, or null if it can't be read.
+     */
+    private static byte[] getCachedData(Entry entry)
+    {
+        try
+        {
+            return entry.getData();
+        }
+        catch (IOException e)
+        {
+            VolleyLog.d("Unreadable cache entry: %s", e.toString());
+            return null;
         }
     }
 
@@ -283,47 +405,295 @@ public class BasicNetwork implements Network
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
     }
 
+    /**
+     * Hands a successful response body to a request that parses it as it arrives.
+     *
+     * @param copy whether to keep a copy of the body, e.g. for the cache
+     * @return the copy of the body, or an empty array if no copy was requested
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private byte[] streamContent(ResponseStreamParser parser,
+                                 NetworkResponse response,
+                                 InputStream in,
+                                 int contentLength,
+                                 boolean copy) throws IOException, ResponseTooLargeError
+    {
+        if (!copy)
+        {
+            try
+            {
+                parser.parseResponseStream(response, in);
+                return new byte[0];
+            }
+            finally
+            {
+                closeContent(in);
+            }
+        }
+        PoolingByteArrayOutputStream bytes = null;
+        byte[] buffer = null;
+        try
+        {
+            checkBodySize(contentLength);
+            bytes = new PoolingByteArrayOutputStream(mPool, contentLength);
+            InputStream tee = new TeeInputStream(in, bytes, mMaxBodySize);
+            parser.parseResponseStream(response, tee);
+            // The copy has to hold the whole body, not only what the parser needed.
+            buffer = mPool.getBuf(1024);
+            while (tee.read(buffer) != -1)
+            {
+                // The tee copies the body and enforces the limit.
+            }
+            // In case the parser caught the tee's exception at the end of the body.
+            checkBodySize(bytes.size());
+            return bytes.toByteArray();
+        }
+        catch (BodyTooLargeException e)
+        {
+            throw new ResponseTooLargeError(e.length, mMaxBodySize);
+        }
+        finally
+        {
+            closeContent(in);
+            mPool.returnBuf(buffer);
+            if (bytes != null)
+            {
+                bytes.close();
+            }
+        }
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
+     *
+     * <p>When the length is known the body is read straight into an array of that length, which is
+     * returned as is. Only bodies of unknown length, or longer than announced, are read through
+     * pooled buffers and copied.
      */
     @SuppressWarnings("TryFinallyCanBeTryWithResources")
     private byte[] inputStreamToBytes(InputStream in,
-                                      int contentLength) throws IOException, ServerError
+                                      int contentLength) throws IOException, VolleyError
     {
-        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, contentLength);
-        byte[] buffer = null;
+        if (in == null)
+        {
+            throw new ServerError();
+        }
         try
         {
-            if (in == null)
+            checkBodySize(contentLength);
+            if (contentLength < 0)
             {
-                throw new ServerError();
+                return readToEnd(in, new byte[0], -1);
             }
+            byte[] bytes = new byte[contentLength];
+            int count = readFully(in, bytes);
+            if (count < contentLength)
+            {
+                // Ended early; return what was sent, as for bodies of unknown length.
+                return Arrays.copyOf(bytes, count);
+            }
+            int next = in.read();
+            if (next == -1)
+            {
+                return bytes;
+            }
+            // Longer than announced, e.g. decompressed on the fly.
+            byte[] head = Arrays.copyOf(bytes, contentLength + 1);
+            head[contentLength] = (byte) next;
+            return readToEnd(in, head, head.length);
+        }
+        finally
+        {
+            closeContent(in);
+        }
+    }
+
+    /**
+     * Reads the rest of a body of unknown length into a byte[], after the part already read.
+     *
+     * @param head     the part of the body already read
+     * @param sizeHint the expected length of the whole body, or -1 if unknown
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private byte[] readToEnd(InputStream in,
+                             byte[] head,
+                             int sizeHint) throws IOException, ResponseTooLargeError
+    {
+        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, sizeHint);
+        byte[] buffer = null;
+        try
+        {
+            bytes.write(head, 0, head.length);
             buffer = mPool.getBuf(1024);
             int count;
             while ((count = in.read(buffer)) != -1)
             {
                 bytes.write(buffer, 0, count);
+                checkBodySize(bytes.size());
             }
             return bytes.toByteArray();
         }
         finally
         {
-            try
+            mPool.returnBuf(buffer);
+            bytes.close();
+        }
+    }
+
+    /**
+     * Reads into the whole array unless the stream ends first.
+     *
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream in,
+                                 byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count == -1)
             {
-                // Close the InputStream and release the resources by "consuming the content".
-                if (in != null)
-                {
-                    in.close();
-                }
+                break;
             }
-            catch (IOException e)
+            offset += count;
+        }
+        return offset;
+    }
+
+    /**
+     * Fails once a body turns out to be longer than the limit.
+     *
+     * @param length the length of the body, or of the part of it read so far
+     */
+    private void checkBodySize(long length) throws ResponseTooLargeError
+    {
+        if (length > mMaxBodySize)
+        {
+            throw new ResponseTooLargeError(length, mMaxBodySize);
+        }
+    }
+
+    /**
+     * Closes a response body, which releases its connection.
+     */
+    private static void closeContent(InputStream in)
+    {
+        try
+        {
+            // Close the InputStream and release the resources by "consuming the content".
+            if (in != null)
             {
-                // This can happen if there was an exception above that left the stream in
-                // an invalid state.
-                VolleyLog.v("Error occurred when closing InputStream");
+                in.close();
             }
-            mPool.returnBuf(buffer);
-            bytes.close();
+        }
+        catch (IOException e)
+        {
+            // This can happen if there was an exception above that left the stream in
+            // an invalid state.
+            VolleyLog.v("Error occurred when closing InputStream");
+        }
+    }
+
+    /**
+     * Thrown by a {@link TeeInputStream} once the body is longer than its limit, and turned into a
+     * {@link ResponseTooLargeError} by the network. An IOException, so the parser reading the body
+     * can't carry on past the limit.
+     */
+    @SuppressWarnings("serial")
+    private static class BodyTooLargeException extends IOException
+    {
+        final long length;
+
+        BodyTooLargeException(long length)
+        {
+            super("Response body of at least " + length + " bytes is too large");
+            this.length = length;
+        }
+    }
+
+    /**
+     * Copies everything read through it to an output stream, failing with a {@link
+     * BodyTooLargeException} once more than the given length has been read. Closing it does
+     * nothing, as the network closes the underlying stream once the rest of the body has been
+     * copied.
+     */
+    private static class TeeInputStream extends FilterInputStream
+    {
+        private final OutputStream mCopy;
+
+        private final int mMaxLength;
+
+        /**
+         * Number of bytes read so far.
+         */
+        private long mLength;
+
+        TeeInputStream(InputStream in,
+                       OutputStream copy,
+                       int maxLength)
+        {
+            super(in);
+            mCopy = copy;
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+            {
+                count(1);
+                mCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b,
+                        int off,
+                        int len) throws IOException
+        {
+            int count = super.read(b, off, len);
+            if (count > 0)
+            {
+                count(count);
+                mCopy.write(b, off, count);
+            }
+            return count;
+        }
+
+        private void count(int count) throws BodyTooLargeException
+        {
+            mLength += count;
+            if (mLength > mMaxLength)
+            {
+                throw new BodyTooLargeException(mLength);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // Skipped bytes still have to be copied.
+            if (n <= 0)
+            {
+                return 0;
+            }
+            int count = read(new byte[(int) Math.min(n, 4096)]);
+            return count > 0 ? count : 0;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public void close()
+        {
         }
     }
 }
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request.Builder;
@@ -18,7 +19,12 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
-public class OkHttpStack implements HttpStack
+/**
+ * An {@link HttpStack} over OkHttp, which can also perform requests asynchronously through {@link
+ * Call#enqueue}. How many of those are in flight at once is set by the client's {@link
+ * okhttp3.Dispatcher}.
+ */
+public class OkHttpStack implements AsyncHttpStack
 {
     private final OkHttpClient mHttpClient;
 
@@ -31,6 +37,53 @@ public class OkHttpStack implements HttpStack
     public HttpResponse executeRequest(Request<?> request,
                                        Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError
+    {
+        Call call = mHttpClient.newCall(buildRequest(request, additionalHeaders));
+        return toHttpResponse(call.execute());
+    }
+
+    @Override
+    public void executeRequest(Request<?> request,
+                               Map<String, String> additionalHeaders,
+                               final OnRequestComplete callback)
+    {
+        okhttp3.Request okRequest;
+        try
+        {
+            okRequest = buildRequest(request, additionalHeaders);
+        }
+        catch (AuthFailureError e)
+        {
+            callback.onAuthError(e);
+            return;
+        }
+        catch (IOException e)
+        {
+            callback.onError(e);
+            return;
+        }
+        mHttpClient.newCall(okRequest).enqueue(new Callback()
+        {
+            @Override
+            public void onFailure(Call call,
+                                  IOException e)
+            {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onResponse(Call call,
+                                   Response response)
+            {
+                // The body is read by the callback, on this thread of the client's dispatcher.
+                callback.onSuccess(toHttpResponse(response));
+            }
+        });
+    }
+
+    private static okhttp3.Request buildRequest(Request<?> request,
+                                                Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError
     {
         Builder builder = new okhttp3.Request.Builder();
         builder.url(request.getUrl());
@@ -45,14 +98,20 @@ public class OkHttpStack implements HttpStack
         }
 
         setConnectionParametersForRequest(builder, request);
+        return builder.build();
+    }
 
-        Call call = mHttpClient.newCall(builder.build());
-        Response response = call.execute();
+    private static HttpResponse toHttpResponse(Response response)
+    {
         ResponseBody body = response.body();
 
         if (body != null)
         {
-            return new HttpResponse(response.code(), convertHeaders(response.headers()), (int) body.contentLength(), body.byteStream());
+            // A length too long for an int is passed on as unknown (-1), so that the body is
+            // measured while it is read rather than truncated.
+            long length = body.contentLength();
+            int contentLength = length <= Integer.MAX_VALUE ? (int) length : -1;
+            return new HttpResponse(response.code(), convertHeaders(response.headers()), contentLength, body.byteStream());
         }
         else
         {
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Implemented by requests that parse a successful response body while it is being received,
+ * instead of having {@link BasicNetwork} read it into memory first.
+ *
+ * <p>The body is only copied if the request should be cached, in which case the copy becomes the
+ * data of the {@link NetworkResponse} returned by {@link BasicNetwork#performRequest}. Otherwise
+ * that data is empty, and the request must keep what it parsed until {@link
+ * com.android.volley.Request#parseNetworkResponse(NetworkResponse)} is called.
+ */
+public interface ResponseStreamParser
+{
+    /**
+     * Parses a successful response body. Called on the network dispatcher thread, or on a thread of
+     * the {@link AsyncHttpStack} when the network uses one, with the connection still open; it is
+     * closed as soon as this returns or throws.
+     *
+     * @param response the status code and headers of the response; its data is empty
+     * @param content  the body as it arrives; need not be read to the end or closed
+     * @throws IOException if the body can't be read, which is retried like any other network
+     *                     error
+     */
+    void parseResponseStream(NetworkResponse response,
+                             InputStream content) throws IOException;
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ByteArrayPool} that keeps its buffers in power-of-two size classes, so that getting and
+ * returning a buffer takes constant time and no lock.
+ *
+ * <p>Buffers are allocated with their length rounded up to the next size class, from {@link
+ * #MIN_CLASS_SIZE} up to the largest power of two within the pool's size limit. Each class is a
+ * lock-free stack, so threads only contend when they use the same class at the same moment.
+ * Longer buffers are allocated at the requested length and never pooled.
+ *
+ * <p>The size limit bounds the total length of the pooled buffers. Unlike {@link ByteArrayPool},
+ * which discards its least-recently-used buffers to make room, this pool drops the buffer being
+ * returned when it doesn't fit; under steady load both end up holding the buffers in use most.
+ */
+public class SizeClassByteArrayPool extends ByteArrayPool
+{
+    /**
+     * Length of the smallest size class. Smaller requests get a buffer of this length.
+     */
+    public static final int MIN_CLASS_SIZE = 256;
+
+    private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+
+    /**
+     * The top of the stack of pooled buffers of each size class, the smallest first.
+     */
+    private final AtomicReferenceArray<Node> mClasses;
+
+    /**
+     * The maximum total length of the pooled buffers.
+     */
+    private final long mSizeLimit;
+
+    /**
+     * The total length of the pooled buffers.
+     */
+    private final AtomicLong mPooledBytes = new AtomicLong();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param sizeLimit the maximum size of the pool, in bytes
+     */
+    public SizeClassByteArrayPool(int sizeLimit)
+    {
+        super(sizeLimit);
+        mSizeLimit = sizeLimit;
+        int classes = sizeLimit < MIN_CLASS_SIZE
+                ? 0
+                : 31 - Integer.numberOfLeadingZeros(sizeLimit) - MIN_CLASS_SHIFT + 1;
+        mClasses = new AtomicReferenceArray<>(classes);
+    }
+
+    /**
+     * Returns a pooled buffer of the size class fitting the requested length, or allocates one.
+     *
+     * @param len the minimum size, in bytes, of the requested buffer. The returned buffer may be
+     *            larger.
+     * @return a byte[] buffer is always returned.
+     */
+    @Override
+    public byte[] getBuf(int len)
+    {
+        int index = len <= MIN_CLASS_SIZE ? 0 : classIndex(len - 1) + 1;
+        if (index >= mClasses.length())
+        {
+            mMissCount.incrementAndGet();
+            return new byte[len];
+        }
+        while (true)
+        {
+            Node node = mClasses.get(index);
+            if (node == null)
+            {
+                mMissCount.incrementAndGet();
+                return new byte[classSize(index)];
+            }
+            if (mClasses.compareAndSet(index, node, node.next))
+            {
+                mPooledBytes.addAndGet(-node.buf.length);
+                mHitCount.incrementAndGet();
+                return node.buf;
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool, unless it is too short for the smallest size class or the pool
+     * is full. Buffers allocated elsewhere are pooled in the largest class they can serve.
+     *
+     * @param buf the buffer to return to the pool.
+     */
+    @Override
+    public void returnBuf(byte[] buf)
+    {
+        if (buf == null || buf.length < MIN_CLASS_SIZE)
+        {
+            return;
+        }
+        int index = Math.min(classIndex(buf.length), mClasses.length() - 1);
+        if (index < 0)
+        {
+            return;
+        }
+        if (mPooledBytes.addAndGet(buf.length) > mSizeLimit)
+        {
+            mPooledBytes.addAndGet(-buf.length);
+            return;
+        }
+        Node node = new Node(buf);
+        do
+        {
+            node.next = mClasses.get(index);
+        }
+        while (!mClasses.compareAndSet(index, node.next, node));
+    }
+
+    /**
+     * Returns the number of buffers handed out from the pool.
+     */
+    public long getHitCount()
+    {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of buffers that had to be allocated.
+     */
+    public long getMissCount()
+    {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the total length of the buffers currently pooled.
+     */
+    public long getPooledBytes()
+    {
+        return mPooledBytes.get();
+    }
+
+    /**
+     * Returns the index of the largest size class no longer than the given length, which is -1 for
+     * lengths below {@link #MIN_CLASS_SIZE}.
+     */
+    private static int classIndex(int len)
+    {
+        return 31 - Integer.numberOfLeadingZeros(len) - MIN_CLASS_SHIFT;
+    }
+
+    private static int classSize(int index)
+    {
+        return 1 << (index + MIN_CLASS_SHIFT);
+    }
+
+    /**
+     * An entry of a size class stack.
+     */
+    private static class Node
+    {
+        final byte[] buf;
+
+        Node next;
+
+        Node(byte[] buf)
+        {
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.exception.ParseError;
+import com.android.volley.network.Header;
+import com.android.volley.network.Headers;
+import com.android.volley.network.NetworkResponse;
+import com.android.volley.network.ResponseStreamParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+/**
+ * A request that parses its response body as it arrives, e.g. to decode a large document or to
+ * write it to a file, rather than once it has been read into memory.
+ *
+ * <p>The body is only held in memory if the request should be cached. Responses served from the
+ * cache are streamed from the cache entry, while those that come with data already read, such as
+ * 304s, are parsed from that data.
+ */
+public abstract class StreamingRequest<T> extends Request<T> implements ResponseStreamParser
+{
+    /**
+     * Lock to guard mListener as it is cleared on cancel() and read on delivery.
+     */
+    private final Object mLock = new Object();
+
+    @Nullable
+    @GuardedBy("mLock")
+    private Listener<T> mListener;
+
+    /**
+     * The response parsed from the body of the last network response, until {@link
+     * #parseNetworkResponse(NetworkResponse)} picks it up. Only used on the thread performing the
+     * network request.
+     */
+    private Response<T> mStreamedResponse;
+
+    /**
+     * Creates a new GET request.
+     *
+     * @param url           URL to fetch the response at
+     * @param listener      Listener to receive the parsed response
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(String url,
+                            @Nullable Listener<T> listener,
+                            @Nullable ErrorListener errorListener)
+    {
+        this(Method.GET, url, listener, errorListener);
+    }
+
+    /**
+     * Creates a new request with the given method.
+     *
+     * @param method        the request {@link Method} to use
+     * @param url           URL to fetch the response at
+     * @param listener      Listener to receive the parsed response
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(int method,
+                            String url,
+                            @Nullable Listener<T> listener,
+                            @Nullable ErrorListener errorListener)
+    {
+        super(method, url, errorListener);
+        mListener = listener;
+    }
+
+    /**
+     * Parses a response body, coming from the network as well as from the cache. Never called on
+     * the main thread: network responses are parsed on the network dispatcher thread, or on a
+     * thread of the {@link com.android.volley.network.AsyncHttpStack} when the network uses one,
+     * such as OkHttp's dispatcher; cache hits are parsed on the cache dispatcher thread.
+     *
+     * @param response the status code and headers of the response; its data must not be used
+     * @param content  the body, closed by the caller once this returns
+     * @return the parsed response
+     * @throws IOException if the body can't be read
+     * @throws ParseError  if the body is malformed
+     */
+    protected abstract T parseStream(NetworkResponse response,
+                                     InputStream content) throws IOException, ParseError;
+
+    @Override
+    public void cancel()
+    {
+        super.cancel();
+        synchronized (mLock)
+        {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected void deliverResponse(T response)
+    {
+        Listener<T> listener;
+        synchronized (mLock)
+        {
+            listener = mListener;
+        }
+        if (listener != null)
+        {
+            listener.onResponse(response);
+        }
+    }
+
+    @Override
+    public final void parseResponseStream(NetworkResponse response,
+                                          InputStream content) throws IOException
+    {
+        mStreamedResponse = parse(response, content, null);
+    }
+
+    @Override
+    protected final Response<T> parseNetworkResponse(NetworkResponse response)
+    {
+        Response<T> streamed = mStreamedResponse;
+        mStreamedResponse = null;
+        if (streamed != null && !response.notModified)
+        {
+            if (!streamed.isSuccess())
+            {
+                return streamed;
+            }
+            // The response data is the copy of the body kept for the cache, if any.
+            return Response.success(
+                    streamed.result,
+                    shouldCache() ? Headers.parseCacheHeaders(response) : null);
+        }
+        byte[] data = response.data != null ? response.data : new byte[0];
+        try
+        {
+            return parse(response, new ByteArrayInputStream(data), Headers.parseCacheHeaders(response));
+        }
+        catch (IOException e)
+        {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    protected Response<T> parseCacheEntry(Cache.Entry entry) throws IOException
+    {
+        Cache.Body body = entry.getBody();
+        if (body == null)
+        {
+            return super.parseCacheEntry(entry);
+        }
+        List<Header> headers = entry.allResponseHeaders != null
+                ? entry.allResponseHeaders : Headers.toAllHeaderList(entry.responseHeaders);
+        NetworkResponse response =
+                new NetworkResponse(HttpURLConnection.HTTP_OK, new byte[0], false, 0, headers);
+        InputStream in = body.openStream();
+        try
+        {
+            return parse(response, in, entry);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private Response<T> parse(NetworkResponse response,
+                              InputStream content,
+                              Cache.Entry cacheEntry) throws IOException
+    {
+        try
+        {
+            return Response.success(parseStream(response, content), cacheEntry);
+        }
+        catch (ParseError parseError)
+        {
+            return Response.error(parseError);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.volley;
 
 import com.android.volley.exception.VolleyError;
 import com.android.volley.network.Network;
+import com.android.volley.network.NetworkResponse;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.CacheTestUtils;
 
@@ -31,8 +32,12 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
@@ -54,7 +59,7 @@ public class CacheDispatcherTest
     private @Mock
     BlockingQueue<Request<?>> mNetworkQueue;
     private @Mock
-    Cache mCache;
+    LazyCache mCache;
     private @Mock
     ResponseDelivery mDelivery;
     private @Mock
@@ -103,7 +108,7 @@ public class CacheDispatcherTest
     {
         mRequest.cancel();
         mDispatcher.processRequest(mRequest);
-        verify(mCache, never()).get(anyString());
+        verify(mCache, never()).getMetadata(anyString());
         verifyNoResponse(mDelivery);
     }
 
@@ -122,18 +127,31 @@ public class CacheDispatcherTest
     public void nonExpiredCacheHit() throws Exception
     {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
         mDispatcher.processRequest(mRequest);
         verify(mDelivery).postResponse(any(Request.class), any(Response.class));
         verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
     }
 
+    // Caches that can't defer reading their data are read with get().
+    @Test
+    public void plainCacheHit() throws Exception
+    {
+        Cache cache = mock(Cache.class);
+        mDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, mDelivery);
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        when(cache.get(anyString())).thenReturn(entry);
+        mRequest.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        mDispatcher.processRequest(mRequest);
+        verify(mDelivery).postResponse(any(Request.class), any(Response.class));
+    }
+
     // A soft-expired cache hit posts a response and queues to the network.
     @Test
     public void softExpiredCacheHit() throws Exception
     {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
         mDispatcher.processRequest(mRequest);
 
         // Soft expiration needs to use the deferred Runnable variant of postResponse,
@@ -153,13 +171,140 @@ public class CacheDispatcherTest
     public void expiredCacheHit() throws Exception
     {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, true, true);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
         mDispatcher.processRequest(mRequest);
         verifyNoResponse(mDelivery);
         verify(mNetworkQueue).put(mRequest);
         assertSame(entry, mRequest.getCacheEntry());
     }
 
+    // Requests that parse incrementally consume the body without it being read into an array.
+    @Test
+    public void cacheHitParsedFromBody() throws Exception
+    {
+        final Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        final byte[] data = entry.data;
+        entry.data = null;
+        entry.body = Cache.Body.wrap(ByteBuffer.wrap(data));
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
+        Request<Long> request = new Request<Long>(Request.Method.GET, "http://foo", null)
+        {
+            @Override
+            protected Response<Long> parseNetworkResponse(NetworkResponse response)
+            {
+                throw new AssertionError("data read into memory");
+            }
+
+            @Override
+            protected Response<Long> parseCacheEntry(Cache.Entry cached) throws IOException
+            {
+                InputStream in = cached.getBody().openStream();
+                long length = 0;
+                while (in.read() != -1)
+                {
+                    length++;
+                }
+                in.close();
+                return Response.success(length, cached);
+            }
+
+            @Override
+            protected void deliverResponse(Long response)
+            {
+            }
+        };
+
+        request.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        mDispatcher.processRequest(request);
+
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(mDelivery).postResponse(any(Request.class), response.capture());
+        assertEquals((long) data.length, response.getValue().result);
+        assertNull(entry.data);
+    }
+
+    // An entry whose data can't be read is dropped and treated as a miss.
+    @Test
+    public void unreadableCacheHit() throws Exception
+    {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.data = null;
+        entry.body = new Cache.Body()
+        {
+            @Override
+            public long length()
+            {
+                return 1;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException
+            {
+                throw new IOException("gone");
+            }
+        };
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
+        mRequest.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        mDispatcher.processRequest(mRequest);
+        verifyNoResponse(mDelivery);
+        verify(mCache).remove(mRequest.getCacheKey());
+        verify(mNetworkQueue).put(mRequest);
+    }
+
+    // An entry replaced since its lookup is looked up again rather than dropped.
+    @Test
+    public void replacedCacheHit() throws Exception
+    {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.data = null;
+        entry.body = new Cache.Body()
+        {
+            @Override
+            public long length()
+            {
+                return 1;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException
+            {
+                throw new Cache.EntryReplacedException("replaced");
+            }
+        };
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
+        mRequest.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        mDispatcher.processRequest(mRequest);
+        verifyNoResponse(mDelivery);
+        verify(mCache, never()).remove(anyString());
+        verify(mNetworkQueue, never()).put(mRequest);
+        verify(mCacheQueue).put(mRequest);
+    }
+
+    @Test
+    public void lookupsAreCounted() throws Exception
+    {
+        CacheStats.Counter stats = new CacheStats.Counter();
+        mDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery, stats);
+        mRequest.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        mDispatcher.processRequest(mRequest);
+        when(mCache.getMetadata(anyString()))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, false, false))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, false, true))
+                .thenReturn(CacheTestUtils.makeRandomCacheEntry(null, true, true));
+        for (int i = 0; i < 3; i++)
+        {
+            StringRequest request = new StringRequest(Request.Method.GET, "http://bar", null, null);
+            request.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+            mDispatcher.processRequest(request);
+        }
+
+        CacheStats snapshot = stats.snapshot();
+        assertEquals(2, snapshot.hitCount);
+        assertEquals(1, snapshot.softHitCount);
+        assertEquals(1, snapshot.expiredCount);
+        assertEquals(1, snapshot.missCount);
+    }
+
     @Test
     public void duplicateCacheMiss() throws Exception
     {
@@ -202,7 +347,7 @@ public class CacheDispatcherTest
     public void duplicateSoftExpiredCacheHit_failedRequest() throws Exception
     {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
 
         StringRequest secondRequest =
                 new StringRequest(Request.Method.GET, "http://foo", null, null);
@@ -232,7 +377,7 @@ public class CacheDispatcherTest
     public void duplicateSoftExpiredCacheHit_successfulRequest() throws Exception
     {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
 
         StringRequest secondRequest =
                 new StringRequest(Request.Method.GET, "http://foo", null, null);
@@ -269,7 +414,7 @@ public class CacheDispatcherTest
         mRequest.setRequestQueue(queue);
 
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
-        when(mCache.get(anyString())).thenReturn(entry);
+        when(mCache.getMetadata(anyString())).thenReturn(entry);
         mDispatcher.processRequest(mRequest);
 
         InOrder inOrder = inOrder(listener);
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CacheStatsTest
+{
+    @Test
+    public void countsAreSnapshotted()
+    {
+        CacheStats.Counter counter = new CacheStats.Counter();
+        counter.recordHit("a");
+        counter.recordSoftHit("a");
+        counter.recordExpired("b");
+        counter.recordMiss("c");
+        counter.recordEviction("a");
+        counter.recordRead("a", 100);
+        counter.recordWrite("a", 300);
+        counter.recordPrune(7);
+
+        CacheStats stats = counter.snapshot();
+        assertEquals(2, stats.hitCount);
+        assertEquals(1, stats.softHitCount);
+        assertEquals(1, stats.expiredCount);
+        assertEquals(1, stats.missCount);
+        assertEquals(4, stats.lookupCount());
+        assertEquals(0.5, stats.hitRate(), 0);
+        assertEquals(1, stats.evictionCount);
+        assertEquals(100, stats.bytesRead);
+        assertEquals(300, stats.bytesWritten);
+        assertEquals(1, stats.pruneCount);
+        assertEquals(7, stats.pruneTimeMs);
+
+        counter.recordMiss("d");
+        CacheStats delta = counter.snapshot().minus(stats);
+        assertEquals(1, delta.missCount);
+        assertEquals(0, delta.hitCount);
+        assertEquals(2, stats.plus(stats).softHitCount);
+        assertEquals(1.0, CacheStats.EMPTY.hitRate(), 0);
+    }
+
+    @Test
+    public void keysAreCountedUnderLongestPrefix()
+    {
+        CacheStats.Counter counter = new CacheStats.Counter();
+        counter.trackPrefix("https://example.com/");
+        counter.trackPrefix("https://example.com/img/");
+        counter.recordHit("https://example.com/api/feed");
+        counter.recordHit("https://example.com/img/1.png");
+        counter.recordMiss("https://example.com/img/2.png");
+        counter.recordMiss("https://other.com/");
+
+        assertEquals(2, counter.snapshot().hitCount);
+        assertEquals(2, counter.snapshot().missCount);
+        assertEquals(1, counter.snapshot("https://example.com/").hitCount);
+        assertEquals(0, counter.snapshot("https://example.com/").missCount);
+        assertEquals(1, counter.snapshot("https://example.com/img/").hitCount);
+        assertEquals(1, counter.snapshot("https://example.com/img/").missCount);
+        assertNull(counter.snapshot("https://other.com/"));
+    }
+
+    @Test
+    public void concurrentCountsAreNotLost() throws Exception
+    {
+        final CacheStats.Counter counter = new CacheStats.Counter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        counter.recordHit("key");
+                        counter.recordRead("key", 2);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(80000, counter.snapshot().hitCount);
+        assertEquals(160000, counter.snapshot().bytesRead);
+    }
+}
@@ -27,6 +27,8 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -34,29 +36,44 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.emptyArray;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @RunWith(RobolectricTestRunner.class)
@@ -66,7 +83,7 @@ public class DiskBasedCacheTest
 
     private static final int MAX_SIZE = 1024 * 1024;
 
-    private Cache cache;
+    private DiskCache cache;
 
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
@@ -213,6 +230,29 @@ public class DiskBasedCacheTest
         assertThatEntriesAreEqual(cache.get("bit"), entry);
     }
 
+    @Test
+    public void testStatsCountLookupsWritesAndEvictions()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        diskCache.trackStatsPrefix("big");
+        Cache.Entry entry = randomData(MAX_SIZE / 2);
+        cache.put("big", entry);
+        cache.get("big");
+        cache.get("missing");
+        // Doesn't fit next to the first one, which is evicted.
+        cache.put("other", randomData(MAX_SIZE / 2));
+
+        CacheStats stats = cache.getStats();
+        assertThat(stats.hitCount, is(1L));
+        assertThat(stats.missCount, is(1L));
+        assertThat(stats.bytesRead, is((long) entry.data.length));
+        assertThat(stats.bytesWritten > MAX_SIZE, is(true));
+        assertThat(stats.evictionCount, is(1L));
+        assertThat(stats.pruneCount, is(1L));
+        assertThat(diskCache.getStats("big").evictionCount, is(1L));
+        assertThat(diskCache.getStats("big").missCount, is(0L));
+    }
+
     @Test
     public void testTrimWithMultipleEvictions_underHysteresisThreshold()
     {
@@ -289,6 +329,25 @@ public class DiskBasedCacheTest
         assertThatEntriesAreEqual(cache.get("entry4"), entry4);
     }
 
+    @Test
+    public void testEvictionPolicyPicksVictims()
+    {
+        DiskCache diskCache = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        diskCache.setEvictionPolicy(new EvictionPolicy.GdsfPolicy());
+        diskCache.initialize();
+        Cache.Entry small = randomData(1024);
+        diskCache.put("small", small);
+        Cache.Entry large1 = randomData(MAX_SIZE / 2);
+        diskCache.put("large1", large1);
+        Cache.Entry large2 = randomData(MAX_SIZE / 2);
+        diskCache.put("large2", large2);
+
+        // Least recently used, but the small entry is worth more per byte than a large one.
+        assertThatEntriesAreEqual(diskCache.get("small"), small);
+        assertThat(diskCache.get("large1"), is(nullValue()));
+        assertThatEntriesAreEqual(diskCache.get("large2"), large2);
+    }
+
     @Test
     public void testLargeEntryDoesntClearCache()
     {
@@ -323,8 +382,7 @@ public class DiskBasedCacheTest
         assertThatEntriesAreEqual(cache.get("key"), entry);
 
         // Overwrite the magic header
-        File cacheFolder = temporaryFolder.getRoot();
-        File file = cacheFolder.listFiles()[0];
+        File file = listCachedFiles()[0];
         FileOutputStream fos = new FileOutputStream(file);
         try
         {
@@ -341,35 +399,63 @@ public class DiskBasedCacheTest
     }
 
     @Test
-    @SuppressWarnings("TryFinallyCanBeTryWithResources")
-    public void testGetWrongKey() throws IOException
+    public void testGetTrustsIndexOverStoredKey() throws IOException
     {
         // Cache something
         Cache.Entry entry = randomData(1023);
         cache.put("key", entry);
         assertThatEntriesAreEqual(cache.get("key"), entry);
 
-        // Access the cached file
-        File cacheFolder = temporaryFolder.getRoot();
-        File file = cacheFolder.listFiles()[0];
-        FileOutputStream fos = new FileOutputStream(file);
-        try
-        {
-            // Overwrite with a different key
-            CacheHeader wrongHeader = new CacheHeader("bad", entry);
-            wrongHeader.writeHeader(fos);
-        }
-        finally
-        {
-            //noinspection ThrowFromFinallyBlock
-            fos.close();
-        }
+        // Overwrite the cached file with a different key
+        File file = listCachedFiles()[0];
+        writeCacheFile(file, "bad", entry);
 
-        // key is gone, but file is still there
-        assertThat(cache.get("key"), is(nullValue()));
-        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+        // Reads don't decode the stored key, the file name identifies it.
+        assertThat(cache.get("key").data, is(equalTo(entry.data)));
+
+        // A rescan goes by the stored key and moves the file to where that key belongs.
+        assertThat(new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILE).delete(), is(true));
+        DiskCache rescanned = new DiskCache(temporaryFolder.getRoot());
+        rescanned.initialize();
+        assertThat(rescanned.get("key"), is(nullValue()));
+        assertThatEntriesAreEqual(rescanned.get("bad"), entry);
+        assertThat(listCachedFiles()[0], is(equalTo(rescanned.getFileForKey("bad"))));
+    }
+
+    @Test
+    public void testFilenamesAreFixedWidthHashes()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        String filename = diskCache.getFilenameForKey("http://example.com/a");
+        assertThat(filename.matches("[0-9a-f]{32}"), is(true));
+        // The halves of these keys have equal hash codes, which used to map them to one file.
+        assertThat(legacyFilenameForKey("AaAa"), is(equalTo(legacyFilenameForKey("BBBB"))));
+        assertThat(diskCache.getFilenameForKey("AaAa"),
+                is(not(equalTo(diskCache.getFilenameForKey("BBBB")))));
+
+        Cache.Entry first = randomData(100);
+        Cache.Entry second = randomData(100);
+        cache.put("AaAa", first);
+        cache.put("BBBB", second);
+        assertThatEntriesAreEqual(cache.get("AaAa"), first);
+        assertThatEntriesAreEqual(cache.get("BBBB"), second);
+    }
+
+    @Test
+    public void testLegacyFilesAreMigrated() throws IOException
+    {
+        // A directory left by an older version, without a current journal.
+        assertThat(new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILE).delete(), is(true));
+        Cache.Entry entry = randomData(1023);
+        File legacy = new File(temporaryFolder.getRoot(), legacyFilenameForKey("legacy"));
+        writeCacheFile(legacy, "legacy", entry);
 
-        // Note: file is now a zombie because its key does not map to its name
+        DiskCache migrated = new DiskCache(temporaryFolder.getRoot());
+        migrated.initialize();
+
+        assertThat(legacy.exists(), is(false));
+        assertThat(migrated.getFileForKey("legacy").exists(), is(true));
+        assertThatEntriesAreEqual(migrated.get("legacy"), entry);
     }
 
     @Test
@@ -486,6 +572,528 @@ public class DiskBasedCacheTest
         assertThat(cache.get("kilobyte3"), is(nullValue()));
     }
 
+    @Test
+    public void testInitializeFromJournal() throws IOException
+    {
+        Cache.Entry entry = randomData(1023);
+        entry.etag = "etag";
+        entry.ttl = 9876543L;
+        cache.put("kilobyte", entry);
+        cache.put("kilobyte2", randomData(1024));
+        cache.remove("kilobyte2");
+
+        DiskCache reloaded = spy(new DiskCache(temporaryFolder.getRoot()));
+        reloaded.initialize();
+
+        // Only the journal is read, not the individual cache files.
+        verify(reloaded).createInputStream(any(File.class));
+        assertThatEntriesAreEqual(reloaded.get("kilobyte"), entry);
+        assertThat(reloaded.get("kilobyte2"), is(nullValue()));
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void testInitializeWithCorruptJournal() throws IOException
+    {
+        Cache.Entry entry = randomData(1023);
+        cache.put("kilobyte", entry);
+
+        FileOutputStream fos = new FileOutputStream(
+                new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILE));
+        try
+        {
+            DiskCache.writeInt(fos, 0); // overwrite magic
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        // Falls back to scanning the directory.
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot());
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("kilobyte"), entry);
+    }
+
+    @Test
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void testInitializeWithTruncatedJournal() throws IOException
+    {
+        Cache.Entry entry = randomData(1023);
+        cache.put("kilobyte", entry);
+        cache.put("kilobyte2", randomData(1024));
+
+        // Cut the last record short, as if the process died while appending it.
+        File journal = new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILE);
+        CountingInputStream cis =
+                new CountingInputStream(new FileInputStream(journal), journal.length());
+        byte[] contents;
+        try
+        {
+            contents = DiskCache.streamToBytes(cis, journal.length() - 3);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            cis.close();
+        }
+        FileOutputStream fos = new FileOutputStream(journal);
+        try
+        {
+            fos.write(contents);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot());
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("kilobyte"), entry);
+        // The unjournaled file is cleaned up.
+        assertThat(reloaded.get("kilobyte2"), is(nullValue()));
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testLazyInitializeServesWhileLoading() throws Exception
+    {
+        Cache.Entry entry = randomData(1023);
+        cache.put("kilobyte", entry);
+        cache.put("kilobyte2", randomData(1024));
+
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        DiskCache reloaded = spy(new DiskCache(temporaryFolder.getRoot()));
+        doAnswer(new Answer<InputStream>()
+        {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable
+            {
+                loading.countDown();
+                release.await();
+                return (InputStream) invocation.callRealMethod();
+            }
+        }).when(reloaded).createInputStream(any(File.class));
+        reloaded.setLazyInitialization(true);
+        reloaded.initialize();
+        assertThat(loading.await(5, TimeUnit.SECONDS), is(true));
+
+        // The loader is stuck on the journal, but entries are served from their files.
+        assertThatEntriesAreEqual(reloaded.get("kilobyte"), entry);
+        reloaded.remove("kilobyte2");
+
+        release.countDown();
+        assertThat(reloaded.awaitLoaded(5, TimeUnit.SECONDS), is(true));
+        assertThatEntriesAreEqual(reloaded.get("kilobyte"), entry);
+        // The loaded journal doesn't bring back what was removed meanwhile.
+        assertThat(reloaded.get("kilobyte2"), is(nullValue()));
+        assertThat(listCachedFiles(), is(arrayWithSize(1)));
+    }
+
+    @Test
+    public void testUpdateRewritesHeaderOnly() throws IOException
+    {
+        DiskCache spied = spy(new DiskCache(temporaryFolder.getRoot(), MAX_SIZE));
+        spied.initialize();
+        Cache.Entry entry = randomData(100 * 1024);
+        entry.etag = "etag";
+        entry.ttl = 1000L;
+        spied.put("key", entry);
+        long sizeOnDisk = listCachedFiles()[0].length();
+
+        Cache.Entry revalidated = randomData(100 * 1024);
+        revalidated.etag = "etag";
+        revalidated.ttl = 2000L;
+        revalidated.softTtl = 1500L;
+        revalidated.responseHeaders = new HashMap<>();
+        revalidated.responseHeaders.put("Date", "Thu, 17 Oct 2019 10:00:00 GMT");
+        spied.update("key", revalidated);
+
+        // Only the initial put went through a full write.
+        verify(spied).createOutputStream(any(File.class));
+        assertThat(listCachedFiles()[0].length(), is(sizeOnDisk));
+        assertThatEntriesAreEqual(spied.get("key"), revalidated);
+
+        // The new metadata is journaled as well.
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), revalidated);
+    }
+
+    @Test
+    public void testInvalidateRewritesOnlyHeader() throws IOException
+    {
+        DiskCache spied = spy(new DiskCache(temporaryFolder.getRoot(), MAX_SIZE));
+        spied.initialize();
+        Cache.Entry entry = textData("application/json", 100 * 1024, 26);
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        spied.put("key", entry);
+        long sizeOnDisk = listCachedFiles()[0].length();
+
+        spied.invalidate("key", false);
+
+        verify(spied).createOutputStream(any(File.class));
+        assertThat(listCachedFiles()[0].length(), is(sizeOnDisk));
+        entry.softTtl = 0;
+        assertThatEntriesAreEqual(spied.get("key"), entry);
+    }
+
+    @Test
+    public void testUpdateFallsBackToPutWhenHeaderGrows() throws IOException
+    {
+        DiskCache spied = spy(new DiskCache(temporaryFolder.getRoot(), MAX_SIZE));
+        spied.initialize();
+        Cache.Entry entry = randomData(1023);
+        spied.put("key", entry);
+
+        Cache.Entry revalidated = randomData(1023);
+        revalidated.responseHeaders = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+        {
+            revalidated.responseHeaders.put("header" + i, "value" + i);
+        }
+        spied.update("key", revalidated);
+
+        verify(spied, times(2)).createOutputStream(any(File.class));
+        assertThatEntriesAreEqual(spied.get("key"), revalidated);
+    }
+
+    @Test
+    public void testUpdateOfMissingEntryPuts()
+    {
+        Cache.Entry entry = randomData(1023);
+        cache.update("key", entry);
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testCompressibleEntryIsCompressed()
+    {
+        Cache.Entry entry = textData("application/json; charset=utf-8", 10 * 1024, 26);
+        cache.put("key", entry);
+
+        assertThat(listCachedFiles()[0].length() < entry.data.length * 3 / 4, is(true));
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key"), entry);
+    }
+
+    @Test
+    public void testUncompressibleEntriesAreStoredAsIs()
+    {
+        // Binary content type.
+        Cache.Entry image = textData("image/png", 10 * 1024, 26);
+        cache.put("image", image);
+        // Below the threshold.
+        Cache.Entry small = textData("text/plain", 512, 26);
+        cache.put("small", small);
+        // Random data doesn't compress.
+        Cache.Entry random = randomData(10 * 1024);
+        random.allResponseHeaders = new ArrayList<>();
+        random.allResponseHeaders.add(new Header("Content-Type", "text/plain"));
+        random.responseHeaders = new HashMap<>();
+        random.responseHeaders.put("Content-Type", "text/plain");
+        cache.put("random", random);
+
+        assertThat(((DiskCache) cache).getFileForKey("image").length() > image.data.length, is(true));
+        assertThat(((DiskCache) cache).getFileForKey("small").length() > small.data.length, is(true));
+        assertThat(((DiskCache) cache).getFileForKey("random").length() > random.data.length, is(true));
+        assertThatEntriesAreEqual(cache.get("image"), image);
+        assertThatEntriesAreEqual(cache.get("small"), small);
+        assertThatEntriesAreEqual(cache.get("random"), random);
+    }
+
+    @Test
+    public void testCompressionCanBeDisabled()
+    {
+        ((DiskCache) cache).setCompressionThreshold(Integer.MAX_VALUE);
+        Cache.Entry entry = textData("application/json", 10 * 1024, 26);
+        cache.put("key", entry);
+
+        assertThat(listCachedFiles()[0].length() > entry.data.length, is(true));
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testLargeCompressedEntryIsMapped()
+    {
+        DiskCache large = new DiskCache(temporaryFolder.getRoot(), 4 * MAX_SIZE);
+        large.initialize();
+        // Random text from a four letter alphabet compresses to roughly a third.
+        Cache.Entry entry = textData("text/plain", 4 * DiskCache.MMAP_THRESHOLD, 4);
+        large.put("key", entry);
+
+        long length = listCachedFiles()[0].length();
+        assertThat(length >= DiskCache.MMAP_THRESHOLD, is(true));
+        assertThat(length < entry.data.length, is(true));
+        assertThatEntriesAreEqual(large.get("key"), entry);
+    }
+
+    @Test
+    public void testGetLazyLeavesLargeEntriesOnDisk() throws IOException
+    {
+        Cache.Entry small = randomData(1023);
+        cache.put("small", small);
+        Cache.Entry large = randomData(DiskCache.MMAP_THRESHOLD);
+        cache.put("large", large);
+
+        assertThat(cache.getLazy("small").data, is(equalTo(small.data)));
+        assertThat(cache.getLazy("small").body, is(nullValue()));
+        assertThat(cache.getLazy("unknown-key"), is(nullValue()));
+
+        Cache.Entry lazy = cache.getLazy("large");
+        assertThat(lazy.data, is(nullValue()));
+        assertThat(lazy.body.length(), is((long) large.data.length));
+        assertThat(lazy.body.toByteBuffer().isDirect(), is(true));
+        assertThat(readFully(lazy.body.openStream()), is(equalTo(large.data)));
+        // The body can be read again, and materialized for code that needs an array.
+        assertThat(lazy.getData(), is(equalTo(large.data)));
+        assertThatEntriesAreEqual(lazy, large);
+    }
+
+    @Test
+    public void testLazyBodySurvivesReplacement() throws IOException
+    {
+        Cache.Entry large = randomData(DiskCache.MMAP_THRESHOLD);
+        cache.put("large", large);
+        Cache.Entry lazy = cache.getLazy("large");
+
+        cache.put("large", randomData(DiskCache.MMAP_THRESHOLD / 2));
+        cache.remove("large");
+
+        assertThat(readFully(lazy.body.openStream()), is(equalTo(large.data)));
+    }
+
+    @Test
+    public void testGetMetadataDefersBodyOfExpiredEntries() throws IOException
+    {
+        Cache.Entry expired = randomData(16 * 1024);
+        expired.etag = "etag";
+        expired.lastModified = 1234L;
+        cache.put("expired", expired);
+        Cache.Entry fresh = randomData(16 * 1024);
+        fresh.ttl = Long.MAX_VALUE;
+        cache.put("fresh", fresh);
+
+        assertThat(cache.getMetadata("fresh").data, is(equalTo(fresh.data)));
+        assertThat(cache.getMetadata("unknown-key"), is(nullValue()));
+
+        Cache.Entry metadata = cache.getMetadata("expired");
+        assertThat(metadata.data, is(nullValue()));
+        assertThat(metadata.etag, is("etag"));
+        assertThat(metadata.lastModified, is(1234L));
+        assertThat(metadata.body.length(), is((long) expired.data.length));
+        assertThat(metadata.getData(), is(equalTo(expired.data)));
+        assertThat(cache.getStats().hitCount, is(2L));
+        assertThat(cache.getStats().bytesRead, is(2L * expired.data.length));
+
+        // Once the entry holds another response, its old metadata can't be used to read it.
+        Cache.Entry stale = cache.getMetadata("expired");
+        expired.etag = "other";
+        cache.put("expired", expired);
+        try
+        {
+            stale.getData();
+            fail("Should have thrown exception");
+        }
+        catch (Cache.EntryReplacedException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPutOfEntryWithUnreadBody()
+    {
+        Cache.Entry large = randomData(DiskCache.MMAP_THRESHOLD);
+        cache.put("large", large);
+        Cache.Entry expired = randomData(16 * 1024);
+        cache.put("expired", expired);
+
+        cache.put("large-copy", cache.getLazy("large"));
+        cache.put("expired-copy", cache.getMetadata("expired"));
+
+        assertThatEntriesAreEqual(cache.get("large-copy"), large);
+        assertThatEntriesAreEqual(cache.get("expired-copy"), expired);
+    }
+
+    @Test
+    public void testGetMetadataDetectsReplacementWithoutValidators() throws IOException
+    {
+        Cache.Entry entry = randomData(16 * 1024);
+        entry.serverDate = 0;
+        entry.lastModified = 0;
+        entry.etag = null;
+        cache.put("key", entry);
+
+        // A header rewrite keeps the data, so the body can still be read.
+        Cache.Entry revalidated = cache.getMetadata("key");
+        entry.softTtl = 1234L;
+        cache.update("key", entry);
+        assertThat(revalidated.getData(), is(equalTo(entry.data)));
+
+        Cache.Entry stale = cache.getMetadata("key");
+        cache.put("key", randomData(16 * 1024));
+        try
+        {
+            stale.getData();
+            fail("Should have thrown exception");
+        }
+        catch (Cache.EntryReplacedException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetLazyInflatesWhileStreaming() throws IOException
+    {
+        DiskCache large = new DiskCache(temporaryFolder.getRoot(), 4 * MAX_SIZE);
+        large.initialize();
+        Cache.Entry entry = textData("text/plain", 4 * DiskCache.MMAP_THRESHOLD, 4);
+        large.put("key", entry);
+
+        Cache.Entry lazy = large.getLazy("key");
+        assertThat(lazy.data, is(nullValue()));
+        assertThat(lazy.body.length(), is((long) entry.data.length));
+        assertThat(readFully(lazy.body.openStream()), is(equalTo(entry.data)));
+        assertThat(lazy.getData(), is(equalTo(entry.data)));
+    }
+
+    @Test
+    public void testUpdateKeepsCompressedData() throws IOException
+    {
+        Cache.Entry entry = textData("application/json", 10 * 1024, 26);
+        cache.put("key", entry);
+        long length = listCachedFiles()[0].length();
+
+        entry.ttl = 1234L;
+        cache.update("key", entry);
+
+        assertThat(listCachedFiles()[0].length(), is(length));
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testGetDoesNotWaitForPutOfOtherKey() throws Exception
+    {
+        final DiskCache slow = spy(new DiskCache(temporaryFolder.getRoot(), MAX_SIZE));
+        slow.initialize();
+        String otherKey = "other";
+        for (int i = 0; slow.getLock(otherKey) == slow.getLock("key"); i++)
+        {
+            otherKey = "other" + i;
+        }
+        Cache.Entry other = randomData(1023);
+        slow.put(otherKey, other);
+
+        // Block the next write half way through.
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<OutputStream>()
+        {
+            @Override
+            public OutputStream answer(InvocationOnMock invocation) throws Throwable
+            {
+                File file = invocation.getArgument(0);
+                return new FilterOutputStream(new FileOutputStream(file))
+                {
+                    @Override
+                    public void write(int b) throws IOException
+                    {
+                        writing.countDown();
+                        try
+                        {
+                            release.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new IOException(e);
+                        }
+                        super.write(b);
+                    }
+                };
+            }
+        }).when(slow).createOutputStream(any(File.class));
+        final Cache.Entry entry = randomData(511);
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                slow.put("key", entry);
+            }
+        };
+        writer.start();
+        assertThat(writing.await(5, TimeUnit.SECONDS), is(true));
+
+        assertThatEntriesAreEqual(slow.get(otherKey), other);
+
+        release.countDown();
+        writer.join();
+        assertThatEntriesAreEqual(slow.get("key"), entry);
+    }
+
+    @Test
+    public void testConcurrentPutGetRemove() throws Exception
+    {
+        final int threads = 4;
+        final int keysPerThread = 50;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < keysPerThread; i++)
+                        {
+                            String key = "key-" + thread + "-" + i;
+                            Cache.Entry entry = randomData(100 + i);
+                            cache.put(key, entry);
+                            assertThatEntriesAreEqual(cache.get(key), entry);
+                            if (i % 2 == 0)
+                            {
+                                cache.remove(key);
+                                assertThat(cache.get(key), is(nullValue()));
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failures.add(e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(failures, is(empty()));
+        assertThat(listCachedFiles(), is(arrayWithSize(threads * keysPerThread / 2)));
+
+        // The journal reflects every operation.
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThat(reloaded.get("key-0-0"), is(nullValue()));
+        assertThat(reloaded.get("key-0-1"), is(notNullValue()));
+    }
+
     @Test
     public void testManyResponseHeaders()
     {
@@ -632,6 +1240,601 @@ public class DiskBasedCacheTest
         assertEquals(DiskCache.readHeaderList(cis), sameKeys);
     }
 
+    @Test
+    public void serializeHeaderToByteBuffer() throws Exception
+    {
+        Cache.Entry entry = randomData(0);
+        entry.etag = "etag";
+        entry.serverDate = 1234567L;
+        entry.ttl = 9876543L;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("ファイカス", "value"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new CacheHeader("key", entry).writeHeader(baos);
+        baos.write(42);
+
+        ByteBuffer heap = ByteBuffer.wrap(baos.toByteArray());
+        CacheHeader header = CacheHeader.readHeader(heap);
+        assertEquals(header.key, "key");
+        assertEquals(header.etag, "etag");
+        assertEquals(header.serverDate, 1234567L);
+        assertEquals(header.ttl, 9876543L);
+        assertEquals(header.allResponseHeaders, entry.allResponseHeaders);
+        assertEquals(heap.remaining(), 1);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(baos.size());
+        direct.put(baos.toByteArray());
+        direct.flip();
+        assertEquals(CacheHeader.readHeader(direct).allResponseHeaders, entry.allResponseHeaders);
+        assertEquals(direct.get(), 42);
+    }
+
+    @Test
+    public void serializeCompactHeader() throws Exception
+    {
+        Cache.Entry entry = randomData(0);
+        entry.etag = "\"v1\"";
+        entry.serverDate = 1571600000000L;
+        entry.lastModified = 0;
+        entry.ttl = -1;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.allResponseHeaders = new ArrayList<>();
+        // Dictionary names as spelled by HTTP/1.1 and HTTP/2, and a name spelled out.
+        entry.allResponseHeaders.add(new Header("Content-Type", "text/html"));
+        entry.allResponseHeaders.add(new Header("cache-control", "max-age=60"));
+        entry.allResponseHeaders.add(new Header("X-Custom", "ファイカス"));
+        entry.allResponseHeaders.add(new Header("Set-Cookie", ""));
+        byte[] bytes = new CacheHeader("key", entry).toBytes(CacheHeader.RESERVE_DEFAULT);
+        assertEquals(0, bytes.length % CacheHeader.HEADER_ALIGNMENT);
+
+        CacheHeader header = CacheHeader.readHeader(ByteBuffer.wrap(bytes));
+        assertEquals("key", header.key);
+        assertEquals(entry.etag, header.etag);
+        assertEquals(entry.serverDate, header.serverDate);
+        assertEquals(entry.lastModified, header.lastModified);
+        assertEquals(entry.ttl, header.ttl);
+        assertEquals(entry.softTtl, header.softTtl);
+        assertEquals(entry.allResponseHeaders, header.allResponseHeaders);
+
+        CountingInputStream cis =
+                new CountingInputStream(new ByteArrayInputStream(bytes), bytes.length);
+        assertEquals(entry.allResponseHeaders, CacheHeader.readHeader(cis).allResponseHeaders);
+        assertEquals(bytes.length, cis.bytesRead());
+    }
+
+    @Test
+    public void testCompactHeaderIsSmaller() throws IOException
+    {
+        Cache.Entry entry = randomData(0);
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", "application/json"));
+        entry.allResponseHeaders.add(new Header("Cache-Control", "max-age=60"));
+        entry.allResponseHeaders.add(new Header("Date", "Mon, 21 Oct 2019 07:28:00 GMT"));
+        CacheHeader header = new CacheHeader("http://example.com/api", entry);
+
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        writeLegacyHeader(legacy, header);
+        int compact = header.toBytes(0).length;
+
+        assertThat(compact < legacy.size() * 2 / 3, is(true));
+    }
+
+    @Test
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void testLegacyFormatIsRead() throws IOException
+    {
+        Cache.Entry entry = randomData(1023);
+        entry.etag = "etag";
+        entry.ttl = 5000;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", "image/png"));
+        entry.responseHeaders = new HashMap<>();
+        entry.responseHeaders.put("Content-Type", "image/png");
+        cache.put("key", entry);
+
+        // Replace the file with one written by a version before the compact format.
+        FileOutputStream fos = new FileOutputStream(listCachedFiles()[0]);
+        try
+        {
+            writeLegacyHeader(fos, new CacheHeader("key", entry));
+            fos.write(entry.data);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+        CountingInputStream cis = new CountingInputStream(
+                new FileInputStream(listCachedFiles()[0]), listCachedFiles()[0].length());
+        try
+        {
+            assertEquals("key", CacheHeader.readHeader(cis).key);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            cis.close();
+        }
+
+        // Updating the header keeps the data and moves the file to the current format.
+        entry.ttl = 6000;
+        cache.update("key", entry);
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testPutGetLargeHeaders()
+    {
+        // Headers alone span several of the blocks read up front.
+        Cache.Entry entry = randomData(2048);
+        entry.allResponseHeaders = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            entry.allResponseHeaders.add(new Header("header" + i, "value" + i));
+        }
+        entry.responseHeaders = new HashMap<>();
+        for (Header header : entry.allResponseHeaders)
+        {
+            entry.responseHeaders.put(header.getName(), header.getValue());
+        }
+        cache.put("key", entry);
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+    }
+
+    @Test
+    public void testLargeEntryIsMapped()
+    {
+        Cache.Entry entry = randomData(DiskCache.MMAP_THRESHOLD);
+        cache.put("key", entry);
+
+        assertThatEntriesAreEqual(cache.get("key"), entry);
+        ByteBuffer buffer = ((DiskCache) cache).getBuffer("key");
+        assertThat(buffer.isDirect(), is(true));
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        assertThat(data, is(equalTo(entry.data)));
+    }
+
+    @Test
+    public void testMappedBufferSurvivesReplacement()
+    {
+        Cache.Entry entry = randomData(DiskCache.MMAP_THRESHOLD);
+        cache.put("key", entry);
+        ByteBuffer buffer = ((DiskCache) cache).getBuffer("key");
+
+        cache.put("key", randomData(DiskCache.MMAP_THRESHOLD / 2));
+        cache.invalidate("key", true);
+
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        assertThat(data, is(equalTo(entry.data)));
+    }
+
+    @Test
+    public void testGetBufferOfSmallEntry()
+    {
+        Cache.Entry entry = randomData(1023);
+        cache.put("key", entry);
+
+        ByteBuffer buffer = ((DiskCache) cache).getBuffer("key");
+        assertThat(buffer.array(), is(equalTo(entry.data)));
+        assertThat(((DiskCache) cache).getBuffer("unknown-key"), is(nullValue()));
+    }
+
+    @Test
+    public void testClearMovesFilesAsideForCleaner()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        cache.put("key", randomData(511));
+        cache.put("other", randomData(511));
+
+        cache.clear();
+
+        // The cache is empty and usable straight away, whether or not the files are gone yet.
+        assertThat(listCachedFiles(), is(emptyArray()));
+        assertThat(cache.get("key"), is(nullValue()));
+        Cache.Entry entry = randomData(100);
+        cache.put("new", entry);
+        assertThatEntriesAreEqual(cache.get("new"), entry);
+
+        diskCache.cleanUp();
+        assertThat(listTrash(), is(emptyArray()));
+        assertThatEntriesAreEqual(cache.get("new"), entry);
+    }
+
+    @Test
+    public void testLeftoverTrashIsDeletedOnInitialize() throws Exception
+    {
+        File trash = new File(temporaryFolder.getRoot().getParentFile(),
+                temporaryFolder.getRoot().getName() + ".trash-0");
+        assertThat(trash.mkdir(), is(true));
+        assertThat(new File(trash, "file").createNewFile(), is(true));
+
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        reloaded.cleanUp();
+
+        assertThat(trash.exists(), is(false));
+    }
+
+    @Test
+    public void testEvictedFilesAreDeletedByCleaner()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        cache.put("evicted", randomData(MAX_SIZE / 2));
+        cache.put("rewritten", randomData(MAX_SIZE / 2));
+        cache.put("other", randomData(MAX_SIZE / 2));
+        // Both earlier entries were evicted; write one of them again before the cleaner runs.
+        assertThat(cache.get("evicted"), is(nullValue()));
+        Cache.Entry entry = randomData(100);
+        cache.put("rewritten", entry);
+
+        diskCache.cleanUp();
+
+        assertThat(diskCache.getFileForKey("evicted").exists(), is(false));
+        assertThatEntriesAreEqual(cache.get("rewritten"), entry);
+    }
+
+    @Test
+    public void testSweepRemovesEntriesPastGracePeriod()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long now = System.currentTimeMillis();
+        diskCache.setExpirySweep(TimeUnit.DAYS.toMillis(1), hour);
+        Cache.Entry expired = randomData(100);
+        expired.ttl = now - 2 * hour;
+        cache.put("expired", expired);
+        Cache.Entry inGrace = randomData(100);
+        inGrace.ttl = now - hour / 2;
+        cache.put("in-grace", inGrace);
+        Cache.Entry fresh = randomData(100);
+        fresh.ttl = now + hour;
+        cache.put("fresh", fresh);
+
+        assertThat(diskCache.sweepExpired(), is(1));
+        diskCache.setExpirySweep(0, 0);
+
+        assertThat(cache.get("expired"), is(nullValue()));
+        assertThat(diskCache.getFileForKey("expired").exists(), is(false));
+        assertThatEntriesAreEqual(cache.get("in-grace"), inGrace);
+        assertThatEntriesAreEqual(cache.get("fresh"), fresh);
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThat(reloaded.get("expired"), is(nullValue()));
+    }
+
+    @Test
+    public void testJournaledIndexKeepsTtlsAndReadsHeadersFromDisk()
+    {
+        Cache.Entry expired = randomData(100);
+        expired.ttl = 1;
+        expired.etag = "etag";
+        expired.lastModified = 1234L;
+        cache.put("expired", expired);
+        Cache.Entry fresh = textData("application/json", 100, 4);
+        fresh.ttl = Long.MAX_VALUE;
+        fresh.etag = "etag2";
+        cache.put("fresh", fresh);
+
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+
+        // The journal only holds what the index needs; the rest comes from the files.
+        assertThatEntriesAreEqual(reloaded.get("fresh"), fresh);
+        assertThat(reloaded.sweepExpired(), is(1));
+        assertThat(reloaded.get("expired"), is(nullValue()));
+    }
+
+    @Test
+    public void testSweepIsBatchedAndSkipsLockedEntries() throws Exception
+    {
+        final DiskCache diskCache = (DiskCache) cache;
+        Cache.Entry expired = randomData(10);
+        expired.ttl = 1;
+        for (int i = 0; i < DiskCache.SWEEP_BATCH_SIZE + 10; i++)
+        {
+            cache.put("key" + i, expired);
+        }
+
+        // Hold a lock from another thread; the sweep must not wait for it.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                diskCache.getLock("key0").readLock().lock();
+                locked.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ignored)
+                {
+                }
+                diskCache.getLock("key0").readLock().unlock();
+            }
+        };
+        holder.start();
+        locked.await();
+        try
+        {
+            assertThat(diskCache.sweepExpired(), is(DiskCache.SWEEP_BATCH_SIZE));
+            assertThat(diskCache.sweepExpired(), is(lessThan(10)));
+        }
+        finally
+        {
+            release.countDown();
+            holder.join();
+        }
+        assertThatEntriesAreEqual(cache.get("key0"), expired);
+    }
+
+    @Test
+    public void testSmallEntriesArePacked()
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        diskCache.setPackThreshold(4096);
+        List<Cache.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            Cache.Entry entry = randomData(500 + i);
+            entry.etag = "etag" + i;
+            entries.add(entry);
+            cache.put("key" + i, entry);
+        }
+        Cache.Entry large = randomData(8192);
+        cache.put("large", large);
+
+        // One segment for the small entries, one file for the large one.
+        assertThat(listCachedFiles(), is(arrayWithSize(2)));
+        assertThat(diskCache.getFileForKey("key0").exists(), is(false));
+        for (int i = 0; i < entries.size(); i++)
+        {
+            assertThatEntriesAreEqual(cache.get("key" + i), entries.get(i));
+        }
+        assertThatEntriesAreEqual(cache.get("large"), large);
+
+        // Growing out of the threshold moves an entry to a file, and shrinking moves it back.
+        cache.put("key0", large);
+        assertThat(diskCache.getFileForKey("key0").exists(), is(true));
+        assertThatEntriesAreEqual(cache.get("key0"), large);
+        cache.put("key0", entries.get(0));
+        assertThat(diskCache.getFileForKey("key0").exists(), is(false));
+        assertThatEntriesAreEqual(cache.get("key0"), entries.get(0));
+
+        cache.remove("key1");
+        assertThat(cache.get("key1"), is(nullValue()));
+        // Packed entries can't be updated in place, so they are written again.
+        cache.update("key2", entries.get(3));
+        assertThatEntriesAreEqual(cache.get("key2"), entries.get(3));
+    }
+
+    @Test
+    public void testPackedEntriesSurviveRestart() throws IOException
+    {
+        ((DiskCache) cache).setPackThreshold(4096);
+        Cache.Entry entry = textData("application/json", 2000, 4);
+        cache.put("replaced", randomData(100));
+        cache.put("replaced", entry);
+        cache.put("removed", randomData(200));
+        cache.remove("removed");
+        cache.put("kept", randomData(300));
+
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("replaced"), entry);
+        assertThat(reloaded.get("removed"), is(nullValue()));
+        assertThatEntriesAreEqual(reloaded.get("kept"), randomData(300));
+
+        // Without the journal the segments are replayed, tombstones included.
+        assertThat(new File(temporaryFolder.getRoot(), CacheJournal.JOURNAL_FILE).delete(), is(true));
+        DiskCache rescanned = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        rescanned.initialize();
+        assertThatEntriesAreEqual(rescanned.get("replaced"), entry);
+        assertThat(rescanned.get("removed"), is(nullValue()));
+        assertThatEntriesAreEqual(rescanned.get("kept"), randomData(300));
+    }
+
+    @Test
+    public void testBundleRoundTrip() throws IOException
+    {
+        DiskCache source = (DiskCache) cache;
+        source.setPackThreshold(4096);
+        Cache.Entry packed = randomData(300);
+        packed.etag = "etag";
+        source.put("packed", packed);
+        Cache.Entry compressed = textData("application/json", 10 * 1024, 26);
+        compressed.ttl = 1234L;
+        source.put("compressed", compressed);
+        Cache.Entry large = randomData(DiskCache.MMAP_THRESHOLD);
+        source.put("large", large);
+
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        assertThat(source.exportBundle(bundle), is(3));
+
+        DiskCache target = new DiskCache(temporaryFolder.newFolder(), MAX_SIZE);
+        target.initialize();
+        Cache.Entry newer = randomData(10);
+        target.put("packed", newer);
+        assertThat(target.importBundle(new ByteArrayInputStream(bundle.toByteArray())), is(2));
+
+        // Keys the cache already held keep their entry.
+        assertThatEntriesAreEqual(target.get("packed"), newer);
+        assertThatEntriesAreEqual(target.get("compressed"), compressed);
+        assertThatEntriesAreEqual(target.get("large"), large);
+
+        // Imported entries are indexed and journaled like any other.
+        DiskCache reloaded = new DiskCache(target.getFileForKey("large").getParentFile(), MAX_SIZE);
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("compressed"), compressed);
+    }
+
+    @Test
+    public void testTruncatedBundleKeepsLeadingEntries() throws IOException
+    {
+        cache.put("first", randomData(1000));
+        cache.put("second", randomData(2000));
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        ((DiskCache) cache).exportBundle(bundle);
+        byte[] truncated = bundle.toByteArray();
+
+        DiskCache target = new DiskCache(temporaryFolder.newFolder(), MAX_SIZE);
+        target.initialize();
+        try
+        {
+            target.importBundle(new ByteArrayInputStream(truncated, 0, truncated.length - 100));
+            fail("Should have thrown exception");
+        }
+        catch (EOFException e)
+        {
+            // expected
+        }
+        // Only the entry cut short is missing, whichever of the two was written last.
+        Cache.Entry first = target.get("first");
+        Cache.Entry second = target.get("second");
+        assertThat(first == null ^ second == null, is(true));
+    }
+
+    @Test
+    public void testMultiProcessInstancesFollowEachOther() throws IOException
+    {
+        File root = temporaryFolder.newFolder();
+        DiskCache first = new DiskCache(root, MAX_SIZE);
+        first.setMultiProcess(true);
+        first.initialize();
+        DiskCache second = new DiskCache(root, MAX_SIZE);
+        second.setMultiProcess(true);
+        second.initialize();
+
+        Cache.Entry entry = randomData(1000);
+        first.put("key", entry);
+        assertThatEntriesAreEqual(second.get("key"), entry);
+        second.remove("key");
+        assertThat(first.get("key"), is(nullValue()));
+
+        // Files are renamed into place, so nothing is left under a temporary name.
+        first.put("other", randomData(2000));
+        assertThat(root.list().length, is(3));
+        assertThat(second.get("other"), is(notNullValue()));
+    }
+
+    @Test
+    public void testMultiProcessChangesWaitForBusyKeys() throws IOException
+    {
+        File root = temporaryFolder.newFolder();
+        DiskCache first = new DiskCache(root, MAX_SIZE);
+        first.setMultiProcess(true);
+        first.initialize();
+        DiskCache second = new DiskCache(root, MAX_SIZE);
+        second.setMultiProcess(true);
+        second.initialize();
+
+        Cache.Entry entry = randomData(1000);
+        first.put("key", entry);
+        Lock lock = second.getLock("key").readLock();
+        lock.lock();
+        try
+        {
+            // The change can't be applied while the key is in use, so it's left for later.
+            assertThat(second.get("key"), is(nullValue()));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        assertThatEntriesAreEqual(second.get("key"), entry);
+    }
+
+    @Test
+    public void testMultiProcessInstancesReloadReplacedJournal() throws IOException
+    {
+        File root = temporaryFolder.newFolder();
+        DiskCache first = new DiskCache(root, MAX_SIZE);
+        first.setMultiProcess(true);
+        first.initialize();
+        DiskCache second = new DiskCache(root, MAX_SIZE);
+        second.setMultiProcess(true);
+        second.initialize();
+        first.put("cleared", randomData(1000));
+        assertThat(second.get("cleared"), is(notNullValue()));
+
+        // Clearing deletes the journal, which the other instance notices by its generation.
+        first.clear();
+        Cache.Entry entry = randomData(500);
+        first.put("key", entry);
+        assertThat(second.get("cleared"), is(nullValue()));
+        assertThatEntriesAreEqual(second.get("key"), entry);
+
+        // Only the lock file survives a clear, so the instances keep sharing it.
+        second.clear();
+        assertThat(first.get("key"), is(nullValue()));
+        assertThat(root.list(), is(equalTo(new String[] {ProcessLock.LOCK_FILE})));
+    }
+
+    @Test
+    public void testCompactionReclaimsDeadSegments() throws IOException
+    {
+        DiskCache diskCache = (DiskCache) cache;
+        diskCache.setPackThreshold(4096);
+        diskCache.setPackSegmentSize(4096);
+        for (int i = 0; i < 20; i++)
+        {
+            cache.put("key" + i, randomData(1000));
+        }
+        // Replace all but one entry, leaving the old segments mostly dead.
+        Cache.Entry entry = randomData(900);
+        for (int i = 1; i < 20; i++)
+        {
+            cache.put("key" + i, entry);
+        }
+        int segments = listCachedFiles().length;
+
+        diskCache.compactSegments();
+
+        // The live records were moved on and the segments they were in are gone.
+        assertThat(listCachedFiles().length < segments, is(true));
+        assertThat(new File(temporaryFolder.getRoot(), PackStore.PACK_PREFIX + "0").exists(),
+                is(false));
+        assertThatEntriesAreEqual(cache.get("key0"), randomData(1000));
+        for (int i = 1; i < 20; i++)
+        {
+            assertThatEntriesAreEqual(cache.get("key" + i), entry);
+        }
+        DiskCache reloaded = new DiskCache(temporaryFolder.getRoot(), MAX_SIZE);
+        reloaded.initialize();
+        assertThatEntriesAreEqual(reloaded.get("key0"), randomData(1000));
+        assertThatEntriesAreEqual(reloaded.get("key19"), entry);
+    }
+
+    @Test
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void testGetTruncatedFile() throws IOException
+    {
+        cache.put("key", randomData(1023));
+
+        // Keep the magic and part of the key only.
+        FileOutputStream fos = new FileOutputStream(listCachedFiles()[0]);
+        try
+        {
+            DiskCache.writeInt(fos, 0x20150306);
+            DiskCache.writeLong(fos, 3);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(listCachedFiles(), is(emptyArray()));
+    }
+
     @Test
     public void publicMethods() throws Exception
     {
@@ -644,6 +1847,68 @@ public class DiskBasedCacheTest
 
     /* Test helpers */
 
+    /**
+     * The file name used for a key before names were hashes.
+     */
+    private static String legacyFilenameForKey(String key)
+    {
+        int firstHalfLength = key.length() / 2;
+        return String.valueOf(key.substring(0, firstHalfLength).hashCode())
+                + String.valueOf(key.substring(firstHalfLength).hashCode());
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static void writeCacheFile(File file, String key, Cache.Entry entry) throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            new CacheHeader(key, entry).writeHeader(fos);
+            fos.write(entry.data);
+        }
+        finally
+        {
+            //noinspection ThrowFromFinallyBlock
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes a header the way versions before the compact format did.
+     */
+    private static void writeLegacyHeader(OutputStream os, CacheHeader header) throws IOException
+    {
+        DiskCache.writeInt(os, 0x20150306);
+        DiskCache.writeString(os, header.key);
+        DiskCache.writeString(os, header.etag == null ? "" : header.etag);
+        DiskCache.writeLong(os, header.serverDate);
+        DiskCache.writeLong(os, header.lastModified);
+        DiskCache.writeLong(os, header.ttl);
+        DiskCache.writeLong(os, header.softTtl);
+        DiskCache.writeHeaderList(header.allResponseHeaders, os);
+        DiskCache.writeString(os, "\r\n");
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
     private void assertThatEntriesAreEqual(Cache.Entry actual, Cache.Entry expected)
     {
         assertThat(actual.data, is(equalTo(expected.data)));
@@ -664,9 +1929,46 @@ public class DiskBasedCacheTest
         return entry;
     }
 
+    private static Cache.Entry textData(String contentType, int length, int alphabetSize)
+    {
+        Cache.Entry entry = new Cache.Entry();
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) ('a' + random.nextInt(alphabetSize));
+        }
+        entry.data = data;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", contentType));
+        entry.responseHeaders = new HashMap<>();
+        entry.responseHeaders.put("Content-Type", contentType);
+        return entry;
+    }
+
     private File[] listCachedFiles()
     {
-        return temporaryFolder.getRoot().listFiles();
+        return temporaryFolder.getRoot().listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return !CacheJournal.isJournalFile(file);
+            }
+        });
+    }
+
+    private File[] listTrash()
+    {
+        final String prefix = temporaryFolder.getRoot().getName() + ".trash-";
+        return temporaryFolder.getRoot().getParentFile().listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.getName().startsWith(prefix);
+            }
+        });
     }
 
     private int getEntrySizeOnDisk(String key)
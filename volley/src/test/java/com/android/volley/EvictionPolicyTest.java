@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the eviction policies, plus a simulator replaying key traces through a cache of
+ * fixed size and reporting the hit ratio of each policy.
+ *
+ * <p>A recorded trace can be replayed by pointing the {@code volley.evictionTrace} system property
+ * at a file with one {@code key size} access per line.
+ */
+public class EvictionPolicyTest
+{
+    private static final int API_RESPONSE_SIZE = 2 * 1024;
+
+    private static final int IMAGE_SIZE = 48 * 1024;
+
+    private static final long CACHE_SIZE = 512 * 1024;
+
+    @Test
+    public void lruEvictsLeastRecentlyUsedFirst()
+    {
+        List<SimEntry> entries = entries(new SimEntry("b", 1, 2), new SimEntry("a", 1, 1),
+                new SimEntry("c", 1, 3));
+
+        new EvictionPolicy.LruPolicy().sortForEviction(entries);
+
+        assertEquals("a b c", keys(entries));
+    }
+
+    @Test
+    public void tinyLfuKeepsFrequentlyUsedEntries()
+    {
+        EvictionPolicy policy = new EvictionPolicy.TinyLfuPolicy();
+        SimEntry hot = new SimEntry("hot", 1, 1);
+        SimEntry cold = new SimEntry("cold", 1, 2);
+        SimEntry newest = new SimEntry("newest", 1, 3);
+        for (int i = 0; i < 5; i++)
+        {
+            policy.onAccess(hot);
+        }
+        policy.onWrite(cold);
+        policy.onWrite(newest);
+        List<SimEntry> entries = entries(hot, cold, newest);
+
+        policy.sortForEviction(entries);
+
+        // The newest entry is in the window; of the others the rarely used one goes first.
+        assertEquals("cold hot newest", keys(entries));
+    }
+
+    @Test
+    public void gdsfEvictsLargeEntriesFirst()
+    {
+        EvictionPolicy policy = new EvictionPolicy.GdsfPolicy();
+        SimEntry large = new SimEntry("large", 1000, 2);
+        SimEntry small = new SimEntry("small", 10, 1);
+        policy.onWrite(large);
+        policy.onWrite(small);
+        List<SimEntry> entries = entries(large, small);
+
+        policy.sortForEviction(entries);
+        assertEquals("large small", keys(entries));
+
+        // Evicting raises the bar for the survivors, which age unless they are used again.
+        policy.onRemove(large, true);
+        SimEntry next = new SimEntry("next", 10, 3);
+        policy.onWrite(next);
+        entries = entries(next, small);
+        policy.sortForEviction(entries);
+        assertEquals("small next", keys(entries));
+    }
+
+    @Test
+    public void frequencySketchEstimatesAndAges()
+    {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 4; i++)
+        {
+            sketch.increment("key");
+        }
+        assertTrue(sketch.frequency("key") >= 4);
+        assertEquals(0, sketch.frequency("other"));
+
+        // Saturate the key, then make enough other increments for every counter to be halved.
+        for (int i = 0; i < 20; i++)
+        {
+            sketch.increment("key");
+        }
+        assertEquals(15, sketch.frequency("key"));
+        boolean aged = false;
+        for (int i = 0; i < 10000 && !aged; i++)
+        {
+            sketch.increment("filler" + i);
+            aged = sketch.frequency("key") < 15;
+        }
+        assertTrue(aged);
+    }
+
+    @Test
+    public void simulateScanResistance()
+    {
+        List<Access> trace = scanTrace(new Random(42), 50000);
+
+        double lru = report("scan", "lru", new EvictionPolicy.LruPolicy(), trace);
+        double tinyLfu = report("scan", "tinylfu", new EvictionPolicy.TinyLfuPolicy(), trace);
+        double gdsf = report("scan", "gdsf", new EvictionPolicy.GdsfPolicy(), trace);
+
+        // One-off images must not flush the popular API responses.
+        assertTrue(tinyLfu > lru);
+        assertTrue(gdsf > lru);
+    }
+
+    @Test
+    public void simulateRecordedTrace() throws IOException
+    {
+        String path = System.getProperty("volley.evictionTrace");
+        Assume.assumeTrue(path != null);
+        List<Access> trace = readTrace(path);
+        report(path, "lru", new EvictionPolicy.LruPolicy(), trace);
+        report(path, "tinylfu", new EvictionPolicy.TinyLfuPolicy(), trace);
+        report(path, "gdsf", new EvictionPolicy.GdsfPolicy(), trace);
+    }
+
+    /* Simulator */
+
+    private static double report(String trace, String name, EvictionPolicy policy,
+                                 List<Access> accesses)
+    {
+        double hitRatio = new Simulator(policy, CACHE_SIZE).replay(accesses);
+        System.out.println(String.format("%s: %s hit ratio %.3f", trace, name, hitRatio));
+        return hitRatio;
+    }
+
+    /**
+     * Popular small API responses, with Zipf distributed popularity, interleaved with a scan
+     * through images that are each requested once.
+     */
+    private static List<Access> scanTrace(Random random, int length)
+    {
+        int apiKeys = 200;
+        double[] cumulative = new double[apiKeys];
+        double sum = 0;
+        for (int i = 0; i < apiKeys; i++)
+        {
+            sum += 1 / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        List<Access> trace = new ArrayList<>(length);
+        int image = 0;
+        for (int i = 0; i < length; i++)
+        {
+            if (random.nextInt(4) == 0)
+            {
+                trace.add(new Access("image/" + image++, IMAGE_SIZE));
+                continue;
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            int rank = index >= 0 ? index : -index - 1;
+            trace.add(new Access("api/" + rank, API_RESPONSE_SIZE));
+        }
+        return trace;
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static List<Access> readTrace(String path) throws IOException
+    {
+        List<Access> trace = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2)
+                {
+                    trace.add(new Access(parts[0], Long.parseLong(parts[1])));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return trace;
+    }
+
+    /**
+     * A size-bounded cache pruning the way {@link DiskCache} does: once it is full, it evicts in
+     * the order given by the policy until it is under the low water mark.
+     */
+    private static class Simulator
+    {
+        private final EvictionPolicy mPolicy;
+
+        private final long mMaxSize;
+
+        private final Map<String, SimEntry> mEntries = new HashMap<>();
+
+        private long mSize;
+
+        private long mClock;
+
+        Simulator(EvictionPolicy policy, long maxSize)
+        {
+            mPolicy = policy;
+            mMaxSize = maxSize;
+        }
+
+        /**
+         * @return the share of accesses that were hits
+         */
+        double replay(List<Access> trace)
+        {
+            int hits = 0;
+            for (Access access : trace)
+            {
+                SimEntry entry = mEntries.get(access.key);
+                if (entry != null)
+                {
+                    hits++;
+                    entry.lastAccess = ++mClock;
+                    mPolicy.onAccess(entry);
+                    continue;
+                }
+                entry = new SimEntry(access.key, access.size, ++mClock);
+                mEntries.put(access.key, entry);
+                mSize += entry.size;
+                mPolicy.onWrite(entry);
+                prune();
+            }
+            return (double) hits / trace.size();
+        }
+
+        private void prune()
+        {
+            if (mSize < mMaxSize)
+            {
+                return;
+            }
+            List<SimEntry> candidates = new ArrayList<>(mEntries.values());
+            mPolicy.sortForEviction(candidates);
+            for (SimEntry entry : candidates)
+            {
+                if (mSize < mMaxSize * DiskCache.HYSTERESIS_FACTOR)
+                {
+                    break;
+                }
+                mEntries.remove(entry.key);
+                mSize -= entry.size;
+                mPolicy.onRemove(entry, true);
+            }
+        }
+    }
+
+    private static class Access
+    {
+        final String key;
+
+        final long size;
+
+        Access(String key, long size)
+        {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    private static class SimEntry implements EvictionPolicy.Candidate
+    {
+        final String key;
+
+        final long size;
+
+        long lastAccess;
+
+        SimEntry(String key, long size, long lastAccess)
+        {
+            this.key = key;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public long getLastAccess()
+        {
+            return lastAccess;
+        }
+    }
+
+    private static List<SimEntry> entries(SimEntry... entries)
+    {
+        return new ArrayList<>(Arrays.asList(entries));
+    }
+
+    private static String keys(List<SimEntry> entries)
+    {
+        StringBuilder keys = new StringBuilder();
+        for (SimEntry entry : entries)
+        {
+            if (keys.length() > 0)
+            {
+                keys.append(' ');
+            }
+            keys.append(entry.key);
+        }
+        return keys.toString();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.network.NetworkResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HostFairQueueTest
+{
+    private int mSequence;
+
+    @Test
+    public void takesTurnsBetweenHosts() throws Exception
+    {
+        HostFairQueue queue = new HostFairQueue();
+        PriorityRequest a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        PriorityRequest a2 = request("http://a.com/2", Request.Priority.NORMAL);
+        PriorityRequest a3 = request("http://a.com/3", Request.Priority.NORMAL);
+        PriorityRequest b1 = request("http://b.com/1", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(a3);
+        queue.add(b1);
+
+        assertEquals(4, queue.size());
+        assertSame(a1, queue.take());
+        assertSame(b1, queue.take());
+        assertSame(a2, queue.take());
+        assertSame(a3, queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void higherPriorityGoesFirstAcrossHosts() throws Exception
+    {
+        HostFairQueue queue = new HostFairQueue();
+        PriorityRequest a1 = request("http://a.com/1", Request.Priority.LOW);
+        PriorityRequest a2 = request("http://a.com/2", Request.Priority.HIGH);
+        PriorityRequest b1 = request("http://b.com/1", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(b1);
+        queue.add(a2);
+
+        assertSame(a2, queue.take());
+        assertSame(b1, queue.take());
+        assertSame(a1, queue.take());
+    }
+
+    @Test
+    public void skipsHostsAtTheirLimit() throws Exception
+    {
+        HostFairQueue queue = new HostFairQueue();
+        queue.setMaxPerHost(1);
+        PriorityRequest a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        PriorityRequest a2 = request("http://a.com/2", Request.Priority.HIGH);
+        PriorityRequest b1 = request("http://b.com/1", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(b1);
+
+        assertSame(a2, queue.take());
+        // a.com is at its limit, so b.com goes ahead despite the lower priority.
+        assertSame(b1, queue.take());
+        assertNull(queue.poll());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        queue.release(a2);
+        assertSame(a1, queue.take());
+        // Releasing twice doesn't free another slot.
+        queue.release(a2);
+        queue.add(request("http://a.com/3", Request.Priority.NORMAL));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void releaseWakesWaitingTake() throws Exception
+    {
+        final HostFairQueue queue = new HostFairQueue();
+        queue.setMaxPerHost(1);
+        final PriorityRequest a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        PriorityRequest a2 = request("http://a.com/2", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(a2);
+        assertSame(a1, queue.take());
+
+        Thread releaser = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queue.release(a1);
+            }
+        });
+        releaser.start();
+
+        assertSame(a2, queue.poll(5, TimeUnit.SECONDS));
+        releaser.join();
+    }
+
+    @Test
+    public void removeLeavesRequestsInFlightAlone() throws Exception
+    {
+        HostFairQueue queue = new HostFairQueue();
+        queue.setMaxPerHost(1);
+        PriorityRequest a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        PriorityRequest a2 = request("http://a.com/2", Request.Priority.NORMAL);
+        PriorityRequest a3 = request("http://a.com/3", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(a3);
+        assertSame(a1, queue.take());
+
+        assertTrue(queue.remove(a2));
+        assertFalse(queue.remove(a2));
+        // Requests in flight aren't waiting, so there is nothing to remove.
+        assertFalse(queue.remove(a1));
+        assertEquals(1, queue.size());
+
+        queue.release(a1);
+        assertSame(a3, queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void clearFreesNoSlots() throws Exception
+    {
+        HostFairQueue queue = new HostFairQueue();
+        queue.setMaxPerHost(1);
+        PriorityRequest a1 = request("http://a.com/1", Request.Priority.NORMAL);
+        queue.add(a1);
+        queue.add(request("http://a.com/2", Request.Priority.NORMAL));
+        queue.add(request("http://b.com/1", Request.Priority.NORMAL));
+        assertSame(a1, queue.take());
+
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+
+        // a.com still has a1 in flight, and b.com took no slot while being cleared.
+        PriorityRequest a3 = request("http://a.com/3", Request.Priority.NORMAL);
+        PriorityRequest b2 = request("http://b.com/2", Request.Priority.NORMAL);
+        queue.add(a3);
+        queue.add(b2);
+        assertSame(b2, queue.take());
+        assertNull(queue.poll());
+        queue.release(a1);
+        assertSame(a3, queue.take());
+    }
+
+    private PriorityRequest request(String url,
+                                    Request.Priority priority)
+    {
+        PriorityRequest request = new PriorityRequest(url, priority);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    private static class PriorityRequest extends Request<Void>
+    {
+        private final Priority mPriority;
+
+        PriorityRequest(String url,
+                        Priority priority)
+        {
+            super(Method.GET, url, null);
+            mPriority = priority;
+        }
+
+        @Override
+        public Priority getPriority()
+        {
+            return mPriority;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response)
+        {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response)
+        {
+        }
+    }
+}
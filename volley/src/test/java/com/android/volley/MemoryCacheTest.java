@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class MemoryCacheTest
+{
+    private @Mock
+    LazyCache mDelegate;
+    private MemoryCache mCache;
+
+    @Before
+    public void setUp()
+    {
+        initMocks(this);
+        mCache = new MemoryCache(mDelegate, 100, 40);
+    }
+
+    private static Cache.Entry entry(int size)
+    {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        entry.ttl = 1000;
+        entry.softTtl = 1000;
+        return entry;
+    }
+
+    @Test
+    public void putWritesThroughAndServesFromMemory()
+    {
+        Cache.Entry entry = entry(10);
+        mCache.put("key", entry);
+
+        verify(mDelegate).put("key", entry);
+        Cache.Entry read = mCache.get("key");
+        assertNotSame(entry, read);
+        assertSame(entry.data, read.data);
+        verify(mDelegate, times(0)).get("key");
+    }
+
+    @Test
+    public void delegateHitIsPromoted()
+    {
+        Cache.Entry entry = entry(10);
+        when(mDelegate.get("key")).thenReturn(entry);
+
+        assertSame(entry, mCache.get("key"));
+        mCache.get("key");
+        mCache.get("key");
+
+        verify(mDelegate, times(1)).get("key");
+        assertEquals(10, mCache.getSizeInBytes());
+    }
+
+    @Test
+    public void lazyEntriesArePromotedOnlyWithData()
+    {
+        Cache.Entry small = entry(10);
+        when(mDelegate.getLazy("small")).thenReturn(small);
+        Cache.Entry onDisk = entry(0);
+        onDisk.data = null;
+        onDisk.body = Cache.Body.wrap(new byte[10]);
+        when(mDelegate.getLazy("onDisk")).thenReturn(onDisk);
+
+        assertSame(small, mCache.getLazy("small"));
+        assertSame(onDisk, mCache.getLazy("onDisk"));
+
+        assertEquals(10, mCache.getSizeInBytes());
+        assertSame(small.data, mCache.getLazy("small").data);
+        verify(mDelegate, times(1)).getLazy("small");
+    }
+
+    @Test
+    public void metadataIsReadThroughUnlessInMemory()
+    {
+        Cache.Entry small = entry(10);
+        mCache.put("small", small);
+        Cache.Entry onDisk = entry(0);
+        onDisk.data = null;
+        onDisk.body = Cache.Body.wrap(new byte[10]);
+        when(mDelegate.getMetadata("onDisk")).thenReturn(onDisk);
+
+        assertSame(small.data, mCache.getMetadata("small").data);
+        assertSame(onDisk, mCache.getMetadata("onDisk"));
+
+        verify(mDelegate, never()).getMetadata("small");
+        assertEquals(10, mCache.getSizeInBytes());
+    }
+
+    @Test
+    public void largeEntriesAreNotAdmitted()
+    {
+        Cache.Entry small = entry(10);
+        mCache.put("key", small);
+        Cache.Entry large = entry(41);
+        mCache.put("key", large);
+
+        // The older, smaller version must not be served from memory.
+        assertEquals(0, mCache.getSizeInBytes());
+        when(mDelegate.get("key")).thenReturn(large);
+        assertSame(large, mCache.get("key"));
+        assertEquals(0, mCache.getSizeInBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted()
+    {
+        mCache.put("a", entry(40));
+        mCache.put("b", entry(40));
+        mCache.get("a");
+        mCache.put("c", entry(40));
+
+        assertEquals(80, mCache.getSizeInBytes());
+        // "b" was evicted from memory and has to come from the delegate.
+        assertNull(mCache.get("b"));
+        verify(mDelegate).get("b");
+        mCache.get("a");
+        mCache.get("c");
+        verify(mDelegate, times(0)).get("a");
+        verify(mDelegate, times(0)).get("c");
+    }
+
+    @Test
+    public void updateReplacesEntryInMemory()
+    {
+        mCache.put("key", entry(10));
+        Cache.Entry revalidated = entry(10);
+        revalidated.ttl = 2000;
+        mCache.update("key", revalidated);
+
+        verify(mDelegate).update("key", revalidated);
+        assertEquals(2000, mCache.get("key").ttl);
+    }
+
+    @Test
+    public void invalidateExpiresEntryInMemory()
+    {
+        mCache.put("key", entry(10));
+        mCache.invalidate("key", false);
+
+        verify(mDelegate).invalidate("key", false);
+        Cache.Entry read = mCache.get("key");
+        assertEquals(0, read.softTtl);
+        assertEquals(1000, read.ttl);
+    }
+
+    @Test
+    public void removeAndClearDropMemory()
+    {
+        mCache.put("key", entry(10));
+        mCache.put("other", entry(10));
+
+        mCache.remove("key");
+        verify(mDelegate).remove("key");
+        assertNull(mCache.get("key"));
+        assertEquals(10, mCache.getSizeInBytes());
+
+        mCache.clear();
+        verify(mDelegate).clear();
+        assertEquals(0, mCache.getSizeInBytes());
+    }
+}
@@ -19,6 +19,7 @@ package com.android.volley;
 import com.android.volley.Cache.NoCache;
 import com.android.volley.exception.ServerError;
 import com.android.volley.exception.VolleyError;
+import com.android.volley.network.AsyncNetwork;
 import com.android.volley.network.Network;
 import com.android.volley.network.NetworkResponse;
 import com.android.volley.toolbox.StringRequest;
@@ -43,6 +44,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -161,4 +163,74 @@ public class NetworkDispatcherTest
         verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
         assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
     }
+
+    @Test
+    public void asyncDispatchFinishesOnceResponseIsProcessed() throws Exception
+    {
+        RequestQueue.RequestEventListener listener = mock(RequestQueue.RequestEventListener.class);
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, 0, mDelivery);
+        queue.addRequestEventListener(listener);
+        mRequest.setRequestQueue(queue);
+        mRequest.setCachePolicy(new CachePolicy.DefaultCachePolicy());
+        PendingAsyncNetwork network = new PendingAsyncNetwork();
+        AsyncNetworkDispatcher dispatcher =
+                new AsyncNetworkDispatcher(mNetworkQueue, network, mCache, mDelivery, 1);
+
+        dispatcher.processRequest(mRequest);
+
+        // Nothing is posted until the network completes the request.
+        verify(listener)
+                .onRequestEvent(
+                        mRequest, RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_STARTED);
+        verify(listener, never())
+                .onRequestEvent(
+                        mRequest, RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED);
+        verify(mDelivery, never()).postResponse(any(Request.class), any(Response.class));
+
+        network.mCallback.onSuccess(new NetworkResponse(CANNED_DATA));
+
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(mDelivery, timeout(1000)).postResponse(any(Request.class), response.capture());
+        assertEquals(response.getValue().result, new String(CANNED_DATA, StandardCharsets.UTF_8));
+        verify(listener, timeout(1000))
+                .onRequestEvent(
+                        mRequest, RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_FINISHED);
+        dispatcher.quit();
+    }
+
+    @Test
+    public void asyncErrorPostsError() throws Exception
+    {
+        PendingAsyncNetwork network = new PendingAsyncNetwork();
+        AsyncNetworkDispatcher dispatcher =
+                new AsyncNetworkDispatcher(mNetworkQueue, network, mCache, mDelivery, 1);
+
+        dispatcher.processRequest(mRequest);
+        network.mCallback.onError(new ServerError());
+
+        verify(mDelivery, timeout(1000)).postError(any(Request.class), any(VolleyError.class));
+        verify(mDelivery, never()).postResponse(any(Request.class), any(Response.class));
+        dispatcher.quit();
+    }
+
+    /**
+     * Holds on to the callback of the last request, for the test to complete it.
+     */
+    private static class PendingAsyncNetwork implements AsyncNetwork
+    {
+        volatile OnRequestComplete mCallback;
+
+        @Override
+        public void performRequest(Request<?> request,
+                                   OnRequestComplete callback)
+        {
+            mCallback = callback;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
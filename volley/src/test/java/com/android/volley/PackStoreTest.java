@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "src/main/AndroidManifest.xml", sdk = 16)
+public class PackStoreTest
+{
+    /**
+     * Typical size of the API responses packing is meant for.
+     */
+    private static final int ENTRY_SIZE = 1500;
+
+    /**
+     * Number of entries written by the benchmark.
+     */
+    private static final int ENTRY_COUNT = 2000;
+
+    /**
+     * Allocation unit assumed when estimating disk usage.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void locationsRoundTrip()
+    {
+        long location = PackStore.location(12, 3456789012L);
+        assertEquals(12, PackStore.segmentOf(location));
+        assertEquals(3456789012L, PackStore.offsetOf(location));
+        assertEquals(location, PackStore.parseLocation(PackStore.formatLocation(location)));
+        assertEquals(PackStore.NOT_PACKED,
+                PackStore.parseLocation("0123456789abcdef0123456789abcdef"));
+        assertEquals(PackStore.NOT_PACKED, PackStore.parseLocation("pack-x:1"));
+    }
+
+    @Test
+    public void recordsAreReadBackUpToTornTail() throws IOException
+    {
+        PackStore store = new PackStore(temporaryFolder.getRoot());
+        byte[] first = {1, 2, 3};
+        byte[] second = new byte[100];
+        long location = store.append(PackStore.TYPE_ENTRY, first);
+        store.appendTombstone("key");
+        store.append(PackStore.TYPE_ENTRY, second);
+        assertArrayEquals(first, store.read(location, first.length));
+
+        // Cut the last record short, as a crash in the middle of an append would.
+        File segment = new File(temporaryFolder.getRoot(), PackStore.PACK_PREFIX + "0");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(segment.length() - 10);
+        file.close();
+
+        List<PackStore.Record> records =
+                new PackStore(temporaryFolder.getRoot()).readRecords(0);
+        assertEquals(2, records.size());
+        assertEquals(location, records.get(0).location);
+        assertArrayEquals(first, records.get(0).payload);
+        assertEquals(PackStore.TYPE_TOMBSTONE, records.get(1).type);
+        assertEquals("key", new String(records.get(1).payload, "UTF-8"));
+    }
+
+    @Test
+    public void newSegmentsFollowExistingOnes() throws IOException
+    {
+        PackStore store = new PackStore(temporaryFolder.getRoot());
+        store.append(PackStore.TYPE_ENTRY, new byte[10]);
+
+        long location = new PackStore(temporaryFolder.getRoot())
+                .append(PackStore.TYPE_ENTRY, new byte[10]);
+        assertEquals(1, PackStore.segmentOf(location));
+        assertArrayEquals(new int[] {0, 1},
+                new PackStore(temporaryFolder.getRoot()).listSegments());
+    }
+
+    @Test
+    public void packingSavesFilesAndDiskSpace() throws IOException
+    {
+        Layout files = runLayout(0, 200);
+        Layout packed = runLayout(4096, 200);
+        assertTrue(packed.files < files.files / 10);
+        assertTrue(packed.diskBytes < files.diskBytes);
+    }
+
+    /**
+     * Compares packing small entries against a file per entry, when run with
+     * -Dvolley.packBenchmark. Prints the results, as timings depend too much on the machine to be
+     * asserted.
+     */
+    @Test
+    public void benchmarkAgainstFilePerEntry() throws IOException
+    {
+        Assume.assumeTrue(System.getProperty("volley.packBenchmark") != null);
+        report("file per entry", runLayout(0, ENTRY_COUNT));
+        report("packed", runLayout(4096, ENTRY_COUNT));
+    }
+
+    private static void report(String name, Layout layout)
+    {
+        System.out.println(String.format(
+                "%s: %d files, %d KB on disk, put %.1f us, get %.1f us, load %d ms",
+                name, layout.files, layout.diskBytes / 1024,
+                layout.putNanos / 1000.0 / layout.entries,
+                layout.getNanos / 1000.0 / layout.entries,
+                layout.loadNanos / 1000000));
+    }
+
+    private Layout runLayout(int packThreshold, int entries) throws IOException
+    {
+        File root = temporaryFolder.newFolder();
+        DiskCache cache = new DiskCache(root, 64 * 1024 * 1024);
+        cache.setPackThreshold(packThreshold);
+        cache.setCompressionThreshold(Integer.MAX_VALUE);
+        cache.initialize();
+        Random random = new Random(42);
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[ENTRY_SIZE];
+        random.nextBytes(entry.data);
+        Layout layout = new Layout();
+        layout.entries = entries;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+        {
+            cache.put("https://example.com/api/items/" + i, entry);
+        }
+        layout.putNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++)
+        {
+            assertNotNull(cache.get("https://example.com/api/items/" + random.nextInt(entries)));
+        }
+        layout.getNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        DiskCache reloaded = new DiskCache(root, 64 * 1024 * 1024);
+        reloaded.initialize();
+        layout.loadNanos = System.nanoTime() - start;
+        assertNotNull(reloaded.get("https://example.com/api/items/0"));
+
+        File[] all = root.listFiles();
+        for (File file : all)
+        {
+            if (!CacheJournal.isJournalFile(file))
+            {
+                layout.files++;
+                layout.diskBytes += (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            }
+        }
+        return layout;
+    }
+
+    private static class Layout
+    {
+        int entries;
+
+        int files;
+
+        long diskBytes;
+
+        long putNanos;
+
+        long getNanos;
+
+        long loadNanos;
+    }
+}
@@ -29,6 +29,8 @@ import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -138,4 +140,21 @@ public class RequestQueueTest
 
         verifyNoMoreInteractions(listener);
     }
+
+    @Test
+    public void finish_recordsTimeToFirstResponse() throws Exception
+    {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.start();
+        StringRequest failed = mock(StringRequest.class);
+        StringRequest delivered = mock(StringRequest.class);
+        when(delivered.hasHadResponseDelivered()).thenReturn(true);
+
+        queue.finish(failed);
+        assertEquals(-1, queue.getTimeToFirstResponseMs());
+
+        queue.finish(delivered);
+        assertTrue(queue.getTimeToFirstResponseMs() >= 0);
+        queue.stop();
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindCacheTest
+{
+    private @Mock
+    LazyCache mDelegate;
+    private WriteBehindCache mCache;
+
+    /**
+     * Released to let the delegate's put() return.
+     */
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    /**
+     * Counted down when the delegate's put() is entered.
+     */
+    private final CountDownLatch mWriting = new CountDownLatch(1);
+
+    @Before
+    public void setUp()
+    {
+        initMocks(this);
+        mCache = new WriteBehindCache(mDelegate, 2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mRelease.countDown();
+        mCache.shutdown();
+    }
+
+    private void blockDelegatePuts()
+    {
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                mWriting.countDown();
+                mRelease.await();
+                return null;
+            }
+        }).when(mDelegate).put(anyString(), any(Cache.Entry.class));
+    }
+
+    private static Cache.Entry entry(long ttl)
+    {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[] {1, 2, 3};
+        entry.ttl = ttl;
+        entry.softTtl = ttl;
+        return entry;
+    }
+
+    @Test
+    public void putIsWrittenInBackground()
+    {
+        Cache.Entry entry = entry(1000);
+        mCache.put("key", entry);
+        mCache.flush();
+
+        verify(mDelegate).put(eq("key"), any(Cache.Entry.class));
+        assertEquals(0, mCache.getPendingCount());
+    }
+
+    @Test
+    public void pendingPutIsVisibleToReads() throws Exception
+    {
+        blockDelegatePuts();
+        Cache.Entry entry = entry(1000);
+        mCache.put("key", entry);
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+
+        // In flight, but not landed yet.
+        Cache.Entry read = mCache.get("key");
+        assertNotSame(entry, read);
+        assertSame(entry.data, read.data);
+        assertEquals(1000, read.ttl);
+        verify(mDelegate, never()).get(anyString());
+    }
+
+    @Test
+    public void writesToSameKeyAreCoalesced() throws Exception
+    {
+        blockDelegatePuts();
+        mCache.put("first", entry(1));
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+
+        // While the writer is stuck on "first", "key" is written three times.
+        mCache.put("key", entry(1));
+        mCache.put("key", entry(2));
+        mCache.update("key", entry(3));
+        assertEquals(2, mCache.getPendingCount());
+        assertEquals(3, mCache.get("key").ttl);
+
+        mRelease.countDown();
+        mCache.flush();
+        verify(mDelegate).put(eq("first"), any(Cache.Entry.class));
+        verify(mDelegate).put(eq("key"), any(Cache.Entry.class));
+        verify(mDelegate, never()).update(anyString(), any(Cache.Entry.class));
+    }
+
+    @Test
+    public void pendingRemoveHidesEntry() throws Exception
+    {
+        blockDelegatePuts();
+        when(mDelegate.get("key")).thenReturn(entry(1000));
+        mCache.put("first", entry(1));
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+
+        mCache.remove("key");
+        assertNull(mCache.get("key"));
+
+        mRelease.countDown();
+        mCache.flush();
+        verify(mDelegate).remove("key");
+    }
+
+    @Test
+    public void invalidateExpiresPendingPut() throws Exception
+    {
+        blockDelegatePuts();
+        mCache.put("first", entry(1));
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+
+        mCache.put("key", entry(1000));
+        mCache.invalidate("key", true);
+        Cache.Entry read = mCache.get("key");
+        assertEquals(0, read.softTtl);
+        assertEquals(0, read.ttl);
+
+        mRelease.countDown();
+        mCache.flush();
+        verify(mDelegate, never()).invalidate(anyString(), eq(true));
+    }
+
+    @Test
+    public void writersBlockWhenQueueIsFull() throws Exception
+    {
+        blockDelegatePuts();
+        mCache.put("first", entry(1));
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+        mCache.put("second", entry(1));
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                mCache.put("third", entry(1));
+                queued.countDown();
+            }
+        };
+        writer.start();
+        assertTrue(!queued.await(100, TimeUnit.MILLISECONDS));
+
+        mRelease.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        writer.join();
+    }
+
+    @Test
+    public void clearDropsPendingWrites() throws Exception
+    {
+        blockDelegatePuts();
+        mCache.put("first", entry(1));
+        assertTrue(mWriting.await(5, TimeUnit.SECONDS));
+        mCache.put("key", entry(1));
+
+        mRelease.countDown();
+        mCache.clear();
+
+        assertEquals(0, mCache.getPendingCount());
+        verify(mDelegate).clear();
+    }
+
+    @Test
+    public void writesAfterShutdownAreSynchronous()
+    {
+        mCache.shutdown();
+        mCache.put("key", entry(1));
+
+        verify(mDelegate).put(eq("key"), any(Cache.Entry.class));
+        assertEquals(0, mCache.getPendingCount());
+    }
+}
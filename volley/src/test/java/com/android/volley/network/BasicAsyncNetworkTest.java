@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.network;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.RetryPolicy;
+import com.android.volley.exception.AuthFailureError;
+import com.android.volley.exception.VolleyError;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BasicAsyncNetworkTest
+{
+    @Mock
+    private RetryPolicy mMockRetryPolicy;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        initMocks(this);
+    }
+
+    @Test
+    public void successReadsBody() throws Exception
+    {
+        QueuedAsyncHttpStack stack = new QueuedAsyncHttpStack();
+        stack.mOutcomes.add(
+                new HttpResponse(
+                        200,
+                        Collections.<Header>emptyList(),
+                        6,
+                        new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8))));
+        RecordingCallback callback = new RecordingCallback();
+
+        new BasicAsyncNetwork(stack).performRequest(buildRequest(), callback);
+
+        assertEquals("foobar", new String(callback.mResponse.data, StandardCharsets.UTF_8));
+        assertNull(callback.mError);
+    }
+
+    @Test
+    public void timeoutIsRetried() throws Exception
+    {
+        QueuedAsyncHttpStack stack = new QueuedAsyncHttpStack();
+        stack.mOutcomes.add(new SocketTimeoutException());
+        stack.mOutcomes.add(new HttpResponse(204, Collections.<Header>emptyList()));
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        RecordingCallback callback = new RecordingCallback();
+
+        new BasicAsyncNetwork(stack).performRequest(request, callback);
+
+        verify(mMockRetryPolicy).retry(any(VolleyError.class));
+        assertEquals(204, callback.mResponse.statusCode);
+        assertEquals(2, stack.mRequestCount);
+    }
+
+    @Test
+    public void errorAfterLastRetry() throws Exception
+    {
+        QueuedAsyncHttpStack stack = new QueuedAsyncHttpStack();
+        stack.mOutcomes.add(new SocketTimeoutException());
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        doThrow(new VolleyError()).when(mMockRetryPolicy).retry(any(VolleyError.class));
+        RecordingCallback callback = new RecordingCallback();
+
+        new BasicAsyncNetwork(stack).performRequest(request, callback);
+
+        verify(mMockRetryPolicy, times(1)).retry(any(VolleyError.class));
+        assertNull(callback.mResponse);
+        assertTrue(callback.mError != null);
+        assertEquals(1, stack.mRequestCount);
+    }
+
+    @Test
+    public void authErrorIsNotRetried() throws Exception
+    {
+        QueuedAsyncHttpStack stack = new QueuedAsyncHttpStack();
+        stack.mOutcomes.add(new AuthFailureError());
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        RecordingCallback callback = new RecordingCallback();
+
+        new BasicAsyncNetwork(stack).performRequest(request, callback);
+
+        verify(mMockRetryPolicy, times(0)).retry(any(VolleyError.class));
+        assertTrue(callback.mError instanceof AuthFailureError);
+    }
+
+    /**
+     * Completes each request right away with the next queued response or exception.
+     */
+    private static class QueuedAsyncHttpStack implements AsyncHttpStack
+    {
+        final Deque<Object> mOutcomes = new ArrayDeque<>();
+
+        int mRequestCount;
+
+        @Override
+        public void executeRequest(Request<?> request,
+                                   Map<String, String> additionalHeaders,
+                                   OnRequestComplete callback)
+        {
+            mRequestCount++;
+            Object outcome = mOutcomes.poll();
+            if (outcome instanceof HttpResponse)
+            {
+                callback.onSuccess((HttpResponse) outcome);
+            }
+            else if (outcome instanceof AuthFailureError)
+            {
+                callback.onAuthError((AuthFailureError) outcome);
+            }
+            else
+            {
+                callback.onError((IOException) outcome);
+            }
+        }
+
+        @Override
+        public HttpResponse executeRequest(Request<?> request,
+                                           Map<String, String> additionalHeaders)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class RecordingCallback implements AsyncNetwork.OnRequestComplete
+    {
+        NetworkResponse mResponse;
+
+        VolleyError mError;
+
+        @Override
+        public void onSuccess(NetworkResponse response)
+        {
+            mResponse = response;
+        }
+
+        @Override
+        public void onError(VolleyError error)
+        {
+            mError = error;
+        }
+    }
+
+    private static Request<String> buildRequest()
+    {
+        return new Request<String>(Request.Method.GET, "http://foo", null)
+        {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response)
+            {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response)
+            {
+            }
+        };
+    }
+}
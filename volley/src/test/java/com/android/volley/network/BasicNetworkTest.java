@@ -16,11 +16,13 @@
 
 package com.android.volley.network;
 
+import com.android.volley.Cache;
 import com.android.volley.Cache.Entry;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.RetryPolicy;
 import com.android.volley.exception.AuthFailureError;
+import com.android.volley.exception.ResponseTooLargeError;
 import com.android.volley.exception.ServerError;
 import com.android.volley.exception.TimeoutError;
 import com.android.volley.exception.VolleyError;
@@ -46,7 +48,9 @@ import java.util.Map;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -130,6 +134,54 @@ public class BasicNetworkTest
         assertThat(expectedHeaders, containsInAnyOrder(response.allHeaders.toArray(new Header[0])));
     }
 
+    @Test
+    public void notModifiedWithUnreadableCacheEntryAsksAgain() throws Exception
+    {
+        final byte[] body = "foobar".getBytes(StandardCharsets.UTF_8);
+        final List<Map<String, String>> sentHeaders = new ArrayList<>();
+        HttpStack stack = new HttpStack()
+        {
+            @Override
+            public HttpResponse executeRequest(Request<?> request,
+                                               Map<String, String> additionalHeaders)
+            {
+                sentHeaders.add(additionalHeaders);
+                return sentHeaders.size() == 1
+                        ? new HttpResponse(HttpURLConnection.HTTP_NOT_MODIFIED,
+                                           Collections.<Header>emptyList())
+                        : new HttpResponse(200, Collections.<Header>emptyList(), body.length,
+                                           new ByteArrayInputStream(body));
+            }
+        };
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        Entry entry = new Entry();
+        entry.etag = "foobar";
+        entry.body = new Cache.Body()
+        {
+            @Override
+            public long length()
+            {
+                return 1;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException
+            {
+                throw new IOException("gone");
+            }
+        };
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = new BasicNetwork(stack).performRequest(request);
+
+        assertEquals(200, response.statusCode);
+        assertEquals(2, sentHeaders.size());
+        assertEquals("foobar", sentHeaders.get(0).get("If-None-Match"));
+        assertNull(sentHeaders.get(1).get("If-None-Match"));
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
+
     @Test
     public void notModified_legacyCache() throws Exception
     {
@@ -361,6 +413,49 @@ public class BasicNetworkTest
         }
     }
 
+    @Test
+    public void bodyLongerThanContentLength() throws Exception
+    {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        InputStream responseStream =
+                new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8));
+        HttpResponse fakeResponse =
+                new HttpResponse(200, Collections.<Header>emptyList(), 3, responseStream);
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        NetworkResponse response = httpNetwork.performRequest(buildRequest());
+        assertEquals("foobar", new String(response.data, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void bodyOverMaxSize() throws Exception
+    {
+        for (int contentLength : new int[] {6, -1})
+        {
+            MockHttpStack mockHttpStack = new MockHttpStack();
+            InputStream responseStream =
+                    new ByteArrayInputStream("foobar".getBytes(StandardCharsets.UTF_8));
+            HttpResponse fakeResponse =
+                    new HttpResponse(200, Collections.<Header>emptyList(), contentLength, responseStream);
+            mockHttpStack.setResponseToReturn(fakeResponse);
+            BasicNetwork httpNetwork =
+                    new BasicNetwork(mockHttpStack, new ByteArrayPool(4096), 5);
+            Request<String> request = buildRequest();
+            request.setRetryPolicy(mMockRetryPolicy);
+            try
+            {
+                httpNetwork.performRequest(request);
+                fail("Should have thrown exception");
+            }
+            catch (ResponseTooLargeError e)
+            {
+                // expected
+            }
+            // A body that is too long now will be too long next time.
+            verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+        }
+    }
+
     private static Request<String> buildRequest()
     {
         return new Request<String>(Request.Method.GET, "http://foo", null)
@@ -17,6 +17,7 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.Cache;
+import com.android.volley.LazyCache;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -33,6 +34,8 @@ public class CacheTest
     {
         // Catch-all test to find API-breaking changes.
         assertNotNull(Cache.class.getMethod("get", String.class));
+        assertNotNull(LazyCache.class.getMethod("getLazy", String.class));
+        assertNotNull(LazyCache.class.getMethod("getMetadata", String.class));
         assertNotNull(Cache.class.getMethod("put", String.class, Cache.Entry.class));
         assertNotNull(Cache.class.getMethod("initialize"));
         assertNotNull(Cache.class.getMethod("invalidate", String.class, boolean.class));
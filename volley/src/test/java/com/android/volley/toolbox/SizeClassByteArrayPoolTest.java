@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.network.ByteArrayPool;
+import com.android.volley.network.SizeClassByteArrayPool;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SizeClassByteArrayPoolTest
+{
+    @Test
+    public void roundsUpToSizeClass()
+    {
+        SizeClassByteArrayPool pool = new SizeClassByteArrayPool(4096);
+
+        assertEquals(256, pool.getBuf(1).length);
+        assertEquals(256, pool.getBuf(256).length);
+        assertEquals(512, pool.getBuf(257).length);
+        assertEquals(4096, pool.getBuf(4096).length);
+        // Beyond the largest class buffers have the requested length.
+        assertEquals(4097, pool.getBuf(4097).length);
+    }
+
+    @Test
+    public void reusesBufferOfSameClass()
+    {
+        SizeClassByteArrayPool pool = new SizeClassByteArrayPool(4096);
+
+        byte[] buf1 = pool.getBuf(300);
+        pool.returnBuf(buf1);
+
+        assertNotSame(buf1, pool.getBuf(200));
+        assertSame(buf1, pool.getBuf(500));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void poolsForeignBuffersInClassTheyCanServe()
+    {
+        SizeClassByteArrayPool pool = new SizeClassByteArrayPool(4096);
+
+        byte[] buf1 = new byte[1000];
+        pool.returnBuf(buf1);
+
+        assertNotSame(buf1, pool.getBuf(1000));
+        assertSame(buf1, pool.getBuf(512));
+    }
+
+    @Test
+    public void obeysSizeLimit()
+    {
+        SizeClassByteArrayPool pool = new SizeClassByteArrayPool(1024);
+
+        byte[] buf1 = pool.getBuf(512);
+        byte[] buf2 = pool.getBuf(512);
+        byte[] buf3 = pool.getBuf(512);
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+        pool.returnBuf(buf3);
+
+        assertEquals(1024, pool.getPooledBytes());
+        byte[] buf4 = pool.getBuf(512);
+        byte[] buf5 = pool.getBuf(512);
+        byte[] buf6 = pool.getBuf(512);
+        assertFalse(buf4 == buf3 || buf5 == buf3 || buf6 == buf3);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void buffersAreNeverSharedBetweenThreads() throws Exception
+    {
+        final SizeClassByteArrayPool pool = new SizeClassByteArrayPool(64 * 1024);
+        final AtomicBoolean shared = new AtomicBoolean();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final byte mark = (byte) (t + 1);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++)
+                    {
+                        byte[] buf = pool.getBuf(256 << (i % 4));
+                        buf[0] = mark;
+                        Thread.yield();
+                        if (buf[0] != mark)
+                        {
+                            shared.set(true);
+                        }
+                        pool.returnBuf(buf);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertFalse(shared.get());
+        assertEquals(40000, pool.getHitCount() + pool.getMissCount());
+    }
+
+    /**
+     * Compares contended getBuf and returnBuf calls against {@link ByteArrayPool}, when run with
+     * -Dvolley.poolBenchmark. Prints the results, as timings depend too much on the machine to be
+     * asserted.
+     */
+    @Test
+    public void benchmarkAgainstByteArrayPool() throws Exception
+    {
+        Assume.assumeTrue(System.getProperty("volley.poolBenchmark") != null);
+        for (int threads = 1; threads <= 8; threads *= 2)
+        {
+            System.out.println(String.format("%d threads: ByteArrayPool %.1f ns, "
+                            + "SizeClassByteArrayPool %.1f ns per getBuf and returnBuf", threads,
+                    bestOf(new ByteArrayPool(256 * 1024), threads),
+                    bestOf(new SizeClassByteArrayPool(256 * 1024), threads)));
+        }
+    }
+
+    /**
+     * Returns the best of several rounds, the first of which also warm up the JIT.
+     */
+    private static double bestOf(ByteArrayPool pool, int threadCount) throws InterruptedException
+    {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 10; round++)
+        {
+            best = Math.min(best, runContended(pool, threadCount));
+        }
+        return best;
+    }
+
+    /**
+     * Has the given number of threads get and return buffers of mixed sizes at once.
+     *
+     * @return the wall-clock nanoseconds per pair of calls, over all threads
+     */
+    private static double runContended(final ByteArrayPool pool, int threadCount)
+            throws InterruptedException
+    {
+        final int iterations = 200000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < iterations; i++)
+                    {
+                        pool.returnBuf(pool.getBuf(256 << (i % 5)));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        return (double) (System.nanoTime() - begin) / ((long) iterations * threadCount);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.CachePolicy;
+import com.android.volley.Response;
+import com.android.volley.exception.ResponseTooLargeError;
+import com.android.volley.mock.MockHttpStack;
+import com.android.volley.network.BasicNetwork;
+import com.android.volley.network.ByteArrayPool;
+import com.android.volley.network.Header;
+import com.android.volley.network.Headers;
+import com.android.volley.network.HttpResponse;
+import com.android.volley.network.NetworkResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingRequestTest
+{
+    private static final byte[] BODY = "foobar".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void uncachedBodyIsOnlyStreamed() throws Exception
+    {
+        TrackingInputStream content = new TrackingInputStream(BODY);
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, Collections.<Header>emptyList(), BODY.length, content));
+        PrefixRequest request = new PrefixRequest();
+        request.setCachePolicy(new CachePolicy.NoCachePolicy());
+
+        NetworkResponse networkResponse = new BasicNetwork(mockHttpStack).performRequest(request);
+
+        assertEquals(0, networkResponse.data.length);
+        assertTrue(content.closed);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+        assertEquals("foo", response.result);
+        assertNull(response.cacheEntry);
+    }
+
+    @Test
+    public void cachedBodyIsCopiedWhole() throws Exception
+    {
+        TrackingInputStream content = new TrackingInputStream(BODY);
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, Collections.<Header>emptyList(), BODY.length, content));
+        PrefixRequest request = new PrefixRequest();
+
+        NetworkResponse networkResponse = new BasicNetwork(mockHttpStack).performRequest(request);
+
+        // The parser only read part of the body, but the cache gets all of it.
+        assertArrayEquals(BODY, networkResponse.data);
+        assertTrue(content.closed);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+        assertEquals("foo", response.result);
+        assertNotNull(response.cacheEntry);
+        assertArrayEquals(BODY, response.cacheEntry.getData());
+    }
+
+    @Test
+    public void cachedBodyIsLimitedWhileParsed() throws Exception
+    {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(new HttpResponse(
+                200, Collections.<Header>emptyList(), -1, new ByteArrayInputStream(BODY)));
+        WholeBodyRequest request = new WholeBodyRequest();
+
+        try
+        {
+            new BasicNetwork(mockHttpStack, new ByteArrayPool(4096), BODY.length - 1)
+                    .performRequest(request);
+            fail("Should have thrown exception");
+        }
+        catch (ResponseTooLargeError e)
+        {
+            // expected
+        }
+        // The parser never got past the limit.
+        assertFalse(request.parsed);
+    }
+
+    @Test
+    public void cacheEntryIsStreamed() throws Exception
+    {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = BODY;
+        entry.allResponseHeaders =
+                Arrays.asList(new Header("Set-Cookie", "a=1"), new Header("Set-Cookie", "b=2"));
+        entry.responseHeaders = Headers.toHeaderMap(entry.allResponseHeaders);
+        PrefixRequest request = new PrefixRequest();
+
+        Response<String> response = request.parseCacheEntry(entry);
+
+        assertEquals("foo", response.result);
+        assertEquals(entry.allResponseHeaders, request.lastResponse.allHeaders);
+    }
+
+    @Test
+    public void notModifiedIsParsedFromCachedData() throws Exception
+    {
+        NetworkResponse networkResponse =
+                new NetworkResponse(304, BODY, true, 0, Collections.<Header>emptyList());
+
+        Response<String> response = new PrefixRequest().parseNetworkResponse(networkResponse);
+
+        assertEquals("foo", response.result);
+    }
+
+    /**
+     * Parses the first three bytes of the body and ignores the rest.
+     */
+    private static class PrefixRequest extends StreamingRequest<String>
+    {
+        NetworkResponse lastResponse;
+
+        PrefixRequest()
+        {
+            super("http://foo", null, null);
+        }
+
+        @Override
+        protected String parseStream(NetworkResponse response,
+                                     InputStream content) throws IOException
+        {
+            lastResponse = response;
+            byte[] prefix = new byte[3];
+            int count = 0;
+            while (count < prefix.length)
+            {
+                count += content.read(prefix, count, prefix.length - count);
+            }
+            return new String(prefix, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the whole body.
+     */
+    private static class WholeBodyRequest extends StreamingRequest<Void>
+    {
+        boolean parsed;
+
+        WholeBodyRequest()
+        {
+            super("http://foo", null, null);
+        }
+
+        @Override
+        protected Void parseStream(NetworkResponse response,
+                                   InputStream content) throws IOException
+        {
+            byte[] buffer = new byte[64];
+            while (content.read(buffer) != -1)
+            {
+                // Only reaching the end matters.
+            }
+            parsed = true;
+            return null;
+        }
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream
+    {
+        boolean closed;
+
+        TrackingInputStream(byte[] buf)
+        {
+            super(buf);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            closed = true;
+            super.close();
+        }
+    }
+}